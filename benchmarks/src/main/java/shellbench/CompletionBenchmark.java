@@ -0,0 +1,66 @@
+package shellbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// TAB completion and PATH lookup against a synthetic PATH directory
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompletionBenchmark {
+    private static final String[] TYPING = {"g", "gi", "git", "git-", "git-1"};
+
+    @Param({"1000", "10000"})
+    int executables;
+
+    Object completion;
+    Object paths;
+    String hashedName;
+    int step;
+
+    @Setup
+    public void setup() {
+        String pathEnv = Fixtures.pathDir(executables).toString();
+        completion = ShellHandles.completionIndex(pathEnv);
+        paths = ShellHandles.pathIndex(pathEnv);
+        hashedName = Fixtures.executableNames(executables).get(executables / 2);
+    }
+
+    // One keystroke worth of narrowing: each call extends the previous prefix, then starts over
+    @Benchmark
+    public int completeWhileTyping() {
+        String prefix = TYPING[step];
+        step = (step + 1) % TYPING.length;
+        return ShellHandles.size(ShellHandles.complete(completion, prefix));
+    }
+
+    // Alternating unrelated prefixes, so no previous range can be reused
+    @Benchmark
+    public int completeUnrelated() {
+        String prefix = (step++ & 1) == 0 ? "java" : "ls";
+        return ShellHandles.size(ShellHandles.complete(completion, prefix));
+    }
+
+    @Benchmark
+    public String longestCommonPrefix() {
+        return ShellHandles.commonPrefix(ShellHandles.complete(completion, "x86"));
+    }
+
+    @Benchmark
+    public String pathLookupHit() {
+        return ShellHandles.lookup(paths, hashedName);
+    }
+}
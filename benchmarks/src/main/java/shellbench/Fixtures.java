@@ -0,0 +1,105 @@
+package shellbench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Deterministic inputs shared by the benchmarks. Everything is derived from a fixed seed so two
+// runs (or two commits) measure exactly the same data. Generated files live under
+// ${java.io.tmpdir}/shellbench and are reused across forks.
+final class Fixtures {
+    private static final long SEED = 0x5eed5e11L;
+    private static final String[] STEMS = {
+        "git", "gcc", "grep", "gzip", "java", "javac", "jar", "python3", "perl", "pip",
+        "ls", "lsblk", "lsof", "make", "mkdir", "mktemp", "ssh", "scp", "sed", "sort",
+        "x86_64-linux-gnu-", "kube", "docker", "node", "npm"
+    };
+    private static final String[] COMMANDS = {
+        "ls -la", "cd /var/log", "git status", "git commit -m 'fix build'", "grep -r TODO src",
+        "make -j8", "echo \"hello world\"", "cat notes.txt | sort | uniq -c", "ssh build-01",
+        "tail -f app.log", "history 20", "type java", "pwd"
+    };
+
+    private Fixtures() {
+    }
+
+    static Path root() {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "shellbench");
+        try {
+            return Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // A PATH directory holding `count` empty executable files with realistic, clustered names
+    static Path pathDir(int count) {
+        Path dir = root().resolve("path-" + count);
+        Path done = dir.resolve(".complete");
+        if (Files.exists(done)) return dir;
+        try {
+            Files.createDirectories(dir);
+            for (String name : executableNames(count)) {
+                Path f = dir.resolve(name);
+                if (!Files.exists(f)) Files.createFile(f);
+                f.toFile().setExecutable(true);
+            }
+            Files.createFile(done);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return dir;
+    }
+
+    static List<String> executableNames(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(STEMS[i % STEMS.length] + "-" + Integer.toString(i, 36));
+        }
+        return names;
+    }
+
+    static List<String> historyLines(int count) {
+        Random rnd = new Random(SEED);
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(COMMANDS[rnd.nextInt(COMMANDS.length)] + " " + rnd.nextInt(1000));
+        }
+        return lines;
+    }
+
+    // A HISTFILE-style file with `count` lines
+    static Path historyFile(int count) {
+        Path f = root().resolve("history-" + count);
+        if (Files.exists(f)) return f;
+        try {
+            Files.write(f, historyLines(count), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return f;
+    }
+
+    // One command line with `words` arguments mixing quoting styles, escapes and a pipe
+    static String quotedLine(int words) {
+        Random rnd = new Random(SEED);
+        StringBuilder sb = new StringBuilder("echo");
+        for (int i = 0; i < words; i++) {
+            sb.append(' ');
+            switch (rnd.nextInt(5)) {
+                case 0: sb.append("'single quoted ").append(i).append('\''); break;
+                case 1: sb.append("\"double \\\"quoted\\\" ").append(i).append('"'); break;
+                case 2: sb.append("back\\ slash").append(i); break;
+                case 3: sb.append("plain").append(i); break;
+                default: sb.append("| cat"); break;
+            }
+        }
+        return sb.toString();
+    }
+}
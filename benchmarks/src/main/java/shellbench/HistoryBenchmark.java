@@ -0,0 +1,50 @@
+package shellbench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Printing the history list through the builtin
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    private static final List<String> ALL = List.of("history");
+    private static final List<String> LAST_TEN = List.of("history", "10");
+
+    @Param({"1000", "100000"})
+    int entries;
+
+    File dir;
+
+    @Setup
+    public void setup() {
+        dir = Fixtures.root().toFile();
+        ShellHandles.setHistory(Fixtures.historyLines(entries));
+    }
+
+    @Benchmark
+    public void printAll() {
+        ShellHandles.execBuiltin(ALL, dir, null, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void printLastTen() {
+        ShellHandles.execBuiltin(LAST_TEN, dir, null, OutputStream.nullOutputStream());
+    }
+}
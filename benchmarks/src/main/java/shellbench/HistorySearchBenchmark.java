@@ -0,0 +1,53 @@
+package shellbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Ctrl-R over a HISTFILE: the newest match of a query, and stepping to older matches with
+// repeated Ctrl-R. The trigram index is built in setup, as by the first search of a session.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class HistorySearchBenchmark {
+    private static final String RARE = "git commit -m 'fix build' 42";
+    private static final String COMMON = "ssh build-01";
+
+    @Param({"100000", "1000000"})
+    int entries;
+
+    int size;
+    int cursor;
+
+    @Setup
+    public void setup() {
+        ShellHandles.openHistory(Fixtures.historyFile(entries));
+        size = ShellHandles.historySize();
+        ShellHandles.searchHistory(RARE, size);
+        cursor = size;
+    }
+
+    @Benchmark
+    public int newestMatch() {
+        return ShellHandles.searchHistory(RARE, size);
+    }
+
+    @Benchmark
+    public int nextOlderMatch() {
+        int found = ShellHandles.searchHistory(COMMON, cursor);
+        cursor = found > 0 ? found : size;
+        return found;
+    }
+}
@@ -0,0 +1,40 @@
+package shellbench;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Loading HISTFILE at startup and recalling the newest entry (the first UP arrow)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryStartupBenchmark {
+    @Param({"1000", "500000"})
+    int entries;
+
+    Path file;
+
+    @Setup
+    public void setup() {
+        file = Fixtures.historyFile(entries);
+    }
+
+    @Benchmark
+    public String openAndRecallLast() {
+        ShellHandles.openHistory(file);
+        return ShellHandles.historyEntry(ShellHandles.historySize() - 1);
+    }
+}
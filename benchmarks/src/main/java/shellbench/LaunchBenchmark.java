@@ -0,0 +1,55 @@
+package shellbench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per-command launch latency of `true`: the raw strategies, and the shell's own launch path
+// with each strategy selected through -Dshell.launch.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LaunchBenchmark {
+    File dir;
+    Object trueCommand;
+
+    @Setup
+    public void setup() {
+        dir = Fixtures.root().toFile();
+        trueCommand = ShellHandles.pipeline("true");
+    }
+
+    @Benchmark
+    public int directExec() throws IOException, InterruptedException {
+        return new ProcessBuilder("true").directory(dir).start().waitFor();
+    }
+
+    @Benchmark
+    public int shTrampoline() throws IOException, InterruptedException {
+        return new ProcessBuilder("/bin/sh", "-c", "exec \"$0\" \"$@\"", "true").directory(dir).start().waitFor();
+    }
+
+    @Benchmark
+    public void shellDirect() {
+        ShellHandles.executePipeline(trueCommand, dir);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dshell.launch=trampoline")
+    public void shellTrampoline() {
+        ShellHandles.executePipeline(trueCommand, dir);
+    }
+}
@@ -0,0 +1,72 @@
+package shellbench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// End-to-end pipelines mixing builtins and external commands. Final output goes to /dev/null.
+// utilities=builtin runs cat, grep, wc and friends in-process (`enable`), external forks them.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    @Param({"external", "builtin"})
+    String utilities;
+
+    File dir;
+    Object historyGrepWc;
+    Object echoCat;
+    Object externalOnly;
+    Object builtinsOnly;
+    Object filterChain;
+
+    @Setup
+    public void setup() {
+        dir = Fixtures.root().toFile();
+        ShellHandles.useUtilities("builtin".equals(utilities));
+        ShellHandles.setHistory(Fixtures.historyLines(10_000));
+        historyGrepWc = ShellHandles.pipeline("history | grep git | wc -l > /dev/null");
+        echoCat = ShellHandles.pipeline("echo hello | cat > /dev/null");
+        externalOnly = ShellHandles.pipeline("printf 'a\\nb\\nc\\n' | sort | uniq > /dev/null");
+        builtinsOnly = ShellHandles.pipeline("history | type echo > /dev/null");
+        filterChain = ShellHandles.pipeline("history | grep x | head -n 5 | wc -l > /dev/null");
+    }
+
+    @Benchmark
+    public void historyGrepWc() {
+        ShellHandles.executePipeline(historyGrepWc, dir);
+    }
+
+    @Benchmark
+    public void echoCat() {
+        ShellHandles.executePipeline(echoCat, dir);
+    }
+
+    @Benchmark
+    public void externalOnly() {
+        ShellHandles.executePipeline(externalOnly, dir);
+    }
+
+    @Benchmark
+    public void builtinsOnly() {
+        ShellHandles.executePipeline(builtinsOnly, dir);
+    }
+
+    @Benchmark
+    public void filterChain() {
+        ShellHandles.executePipeline(filterChain, dir);
+    }
+}
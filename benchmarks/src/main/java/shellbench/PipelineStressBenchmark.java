@@ -0,0 +1,77 @@
+package shellbench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Multi-megabyte streams through pipelines that mix builtin and external stages. Each stage
+// pair moves far more than an OS pipe buffer, so a stage that stops draining while it is still
+// feeding another would hang here. Setup checks that every byte arrives before measuring.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineStressBenchmark {
+    // About 1 MB and 16 MB of `history` output
+    @Param({"30000", "500000"})
+    int entries;
+
+    File dir;
+    Object historyCatCat;
+    Object catIntoEcho;
+    Object historyCatHistory;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Fixtures.root().toFile();
+        ShellHandles.setHistory(Fixtures.historyLines(entries));
+        String big = Fixtures.historyFile(entries).toString();
+        historyCatCat = ShellHandles.pipeline("history | cat | cat > /dev/null");
+        // The builtin never reads its input; the upstream cat must be cut off, not left blocked
+        catIntoEcho = ShellHandles.pipeline("cat '" + big + "' | echo done > /dev/null");
+        historyCatHistory = ShellHandles.pipeline("history | cat | history 1 > /dev/null");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ShellHandles.execBuiltin(List.of("history"), dir, null, expected);
+        Path count = Fixtures.root().resolve("stress-count");
+        ShellHandles.executePipeline(ShellHandles.pipeline("history | cat | wc -c > '" + count + "'"), dir);
+        long got = Long.parseLong(new String(Files.readAllBytes(count), StandardCharsets.UTF_8).trim());
+        if (got != expected.size()) {
+            throw new UncheckedIOException(new IOException("history | cat lost data: " + got + " of " + expected.size() + " bytes"));
+        }
+    }
+
+    @Benchmark
+    public void historyCatCat() {
+        ShellHandles.executePipeline(historyCatCat, dir);
+    }
+
+    @Benchmark
+    public void catIntoEcho() {
+        ShellHandles.executePipeline(catIntoEcho, dir);
+    }
+
+    @Benchmark
+    public void historyCatHistory() {
+        ShellHandles.executePipeline(historyCatHistory, dir);
+    }
+}
@@ -0,0 +1,292 @@
+package shellbench;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Reflective access to the shell internals. The shell lives in the default package, which code
+// in a named package (and JMH requires one) cannot import, so every entry point the benchmarks
+// drive is bound here once as a MethodHandle.
+final class ShellHandles {
+    private static final Class<?> MAIN = load("Main");
+    private static final Class<?> SESSION_CLASS = load("Session");
+    private static final Class<?> PATH_INDEX = load("PathIndex");
+    private static final Class<?> COMPLETION_INDEX = load("CompletionIndex");
+    private static final Class<?> MATCHES = load("CompletionIndex$Matches");
+    private static final Class<?> HISTORY_CLASS = load("History");
+    private static final Class<?> LEXER = load("Lexer");
+    private static final Class<?> PARSER = load("Parser");
+    private static final Class<?> SCRIPT = load("Ast$Script");
+    private static final Class<?> ITEM = load("Ast$Item");
+    private static final Class<?> PIPELINE = load("Ast$Pipeline");
+
+    private static final MethodHandle LEX = method(LEXER, "lex", String.class);
+    private static final MethodHandle PARSE = method(PARSER, "parse", String.class);
+    private static final MethodHandle NEW_PARSER = constructor(PARSER, String.class);
+    private static final MethodHandle PARSE_SCRIPT = method(PARSER, "script");
+    private static final MethodHandle SCRIPT_ITEMS = getter(SCRIPT, "items");
+    private static final MethodHandle ITEM_PIPELINES = getter(ITEM, "pipelines");
+    private static final MethodHandle EXEC_BUILTIN = method(MAIN, "runSubshellBuiltin",
+        SESSION_CLASS, List.class, File.class, InputStream.class, OutputStream.class, OutputStream.class);
+    private static final MethodHandle EXEC_PIPELINE = method(MAIN, "executePipelineChain", SESSION_CLASS, PIPELINE);
+    private static final MethodHandle SET_DIR = setter(SESSION_CLASS, "dir");
+    private static final MethodHandle PATH_FOR = method(PATH_INDEX, "forPath", String.class);
+    private static final MethodHandle PATH_LOOKUP = method(PATH_INDEX, "lookup", String.class, File.class);
+    private static final MethodHandle COMPLETION_FOR = method(COMPLETION_INDEX, "forPath", String.class, String[].class);
+    private static final MethodHandle COMPLETE = method(COMPLETION_INDEX, "complete", String.class, File.class);
+    private static final MethodHandle MATCHES_SIZE = method(MATCHES, "size");
+    private static final MethodHandle MATCHES_PREFIX = method(MATCHES, "commonPrefix");
+    private static final MethodHandle HISTORY_OPEN = method(HISTORY_CLASS, "open", Path.class);
+    private static final MethodHandle HISTORY_CLEAR = method(HISTORY_CLASS, "clear");
+    private static final MethodHandle HISTORY_ADD = method(HISTORY_CLASS, "add", String.class);
+    private static final MethodHandle HISTORY_SIZE = method(HISTORY_CLASS, "size");
+    private static final MethodHandle HISTORY_GET = method(HISTORY_CLASS, "get", int.class);
+    private static final MethodHandle HISTORY_SEARCH = method(HISTORY_CLASS, "searchBackward", String.class, int.class);
+    private static final String[] BUILTINS = staticField(MAIN, "BUILTIN_NAMES");
+    private static final Map<String, ?> UTILITIES = staticField(MAIN, "UTILITIES");
+    private static final File CWD = new File(System.getProperty("user.dir"));
+    // The shell on the benchmark process's own streams and environment
+    private static final Object SESSION = invoke(method(SESSION_CLASS, "console", File.class), CWD);
+    private static final Object HISTORY = invoke(getter(SESSION_CLASS, "history"), SESSION);
+    @SuppressWarnings("unchecked")
+    private static final Set<String> ENABLED = (Set<String>) invoke(getter(SESSION_CLASS, "enabled"), SESSION);
+
+    private ShellHandles() {
+    }
+
+    static List<?> lex(String line) {
+        try {
+            return (List<?>) LEX.invoke(line);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Through the parse cache, as the shell does
+    static Object parse(String line) {
+        try {
+            return PARSE.invoke(line);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Lex and parse from scratch, bypassing the cache
+    static Object parseUncached(String line) {
+        try {
+            return PARSE_SCRIPT.invoke(NEW_PARSER.invoke(line));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // The first pipeline of a parsed line, ready for executePipeline
+    static Object pipeline(String line) {
+        try {
+            List<?> items = (List<?>) SCRIPT_ITEMS.invoke(parse(line));
+            return ((List<?>) ITEM_PIPELINES.invoke(items.get(0))).get(0);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void execBuiltin(List<String> tokens, File dir, InputStream in, OutputStream out) {
+        try {
+            EXEC_BUILTIN.invoke(SESSION, tokens, dir, in, out, OutputStream.nullOutputStream());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // `enable` or `enable -n` every in-process utility
+    static void useUtilities(boolean inProcess) {
+        if (inProcess) ENABLED.addAll(UTILITIES.keySet());
+        else ENABLED.clear();
+    }
+
+    static void executePipeline(Object pipeline, File dir) {
+        try {
+            SET_DIR.invoke(SESSION, dir);
+            EXEC_PIPELINE.invoke(SESSION, pipeline);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object pathIndex(String pathEnv) {
+        try {
+            return PATH_FOR.invoke(pathEnv);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String lookup(Object pathIndex, String name) {
+        try {
+            return (String) PATH_LOOKUP.invoke(pathIndex, name, CWD);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object completionIndex(String pathEnv) {
+        try {
+            return COMPLETION_FOR.invoke(pathEnv, BUILTINS);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object complete(Object completionIndex, String prefix) {
+        try {
+            return COMPLETE.invoke(completionIndex, prefix, CWD);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int size(Object matches) {
+        try {
+            return (int) MATCHES_SIZE.invoke(matches);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String commonPrefix(Object matches) {
+        try {
+            return (String) MATCHES_PREFIX.invoke(matches);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setHistory(List<String> lines) {
+        try {
+            HISTORY_CLEAR.invoke(HISTORY);
+            for (String line : lines) HISTORY_ADD.invoke(HISTORY, line);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Start over from file as the shell does at startup when HISTFILE is set
+    static void openHistory(Path file) {
+        try {
+            HISTORY_CLEAR.invoke(HISTORY);
+            HISTORY_OPEN.invoke(HISTORY, file);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int historySize() {
+        try {
+            return (int) HISTORY_SIZE.invoke(HISTORY);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String historyEntry(int i) {
+        try {
+            return (String) HISTORY_GET.invoke(HISTORY, i);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Ctrl-R: index of the newest entry below before containing query, or -1
+    static int searchHistory(String query, int before) {
+        try {
+            return (int) HISTORY_SEARCH.invoke(HISTORY, query, before);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("shell class not on classpath: " + name, e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?>... params) {
+        try {
+            Method m = owner.getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            return MethodHandles.lookup().unreflect(m);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("shell method changed: " + owner.getName() + "." + name
+                + MethodType.methodType(void.class, params), e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+        try {
+            Constructor<?> c = owner.getDeclaredConstructor(params);
+            c.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(c);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("shell constructor changed: " + owner.getName()
+                + MethodType.methodType(void.class, params), e);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> owner, String name) {
+        try {
+            Field f = owner.getDeclaredField(name);
+            f.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(f);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("shell field changed: " + owner.getName() + "." + name, e);
+        }
+    }
+
+    private static MethodHandle setter(Class<?> owner, String name) {
+        try {
+            Field f = owner.getDeclaredField(name);
+            f.setAccessible(true);
+            return MethodHandles.lookup().unreflectSetter(f);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("shell field changed: " + owner.getName() + "." + name, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T staticField(Class<?> owner, String name) {
+        try {
+            Field f = owner.getDeclaredField(name);
+            f.setAccessible(true);
+            return (T) f.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("shell field changed: " + owner.getName() + "." + name, e);
+        }
+    }
+
+    private static Object invoke(MethodHandle handle, Object arg) {
+        try {
+            return handle.invoke(arg);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,50 @@
+package shellbench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of turning one input line into typed tokens and a command tree
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizerBenchmark {
+    @Param({"4", "64", "1024"})
+    int words;
+
+    String line;
+
+    @Setup
+    public void setup() {
+        line = Fixtures.quotedLine(words);
+    }
+
+    @Benchmark
+    public List<?> lex() {
+        return ShellHandles.lex(line);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return ShellHandles.parseUncached(line);
+    }
+
+    // A repeated line (history recall, script loops) served from the parse cache
+    @Benchmark
+    public Object parseCached() {
+        return ShellHandles.parse(line);
+    }
+}
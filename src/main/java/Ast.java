@@ -0,0 +1,82 @@
+import java.util.List;
+
+// Immutable parse tree of a command line, produced by Parser and run by Main. Nodes are shared
+// between executions of the same line through the parse cache, so none of them may change.
+final class Ast {
+    private Ast() {
+    }
+
+    // Items in order; each runs after the previous one finished (or was put in the background)
+    static final class Script {
+        final List<Item> items;
+
+        Script(List<Item> items) {
+            this.items = List.copyOf(items);
+        }
+    }
+
+    // An and-or list (pipelines joined by && and ||), and whether it was terminated by `&`.
+    // operators.get(i) is Lexer.Kind.AND_IF or OR_IF and sits between pipelines i and i + 1.
+    static final class Item {
+        final List<Pipeline> pipelines;
+        final List<Lexer.Kind> operators;
+        final boolean background;
+        final String text; // source text, shown by `jobs`
+
+        Item(List<Pipeline> pipelines, List<Lexer.Kind> operators, boolean background, String text) {
+            this.pipelines = List.copyOf(pipelines);
+            this.operators = List.copyOf(operators);
+            this.background = background;
+            this.text = text;
+        }
+    }
+
+    static final class Pipeline {
+        final List<Command> commands;
+        final String text; // source text, shown by `jobs`
+
+        Pipeline(List<Command> commands, String text) {
+            this.commands = List.copyOf(commands);
+            this.text = text;
+        }
+    }
+
+    // A simple command: its words and its redirections in source order
+    static final class Command {
+        final List<String> argv;
+        final List<Redirect> redirects;
+        // Some word or target holds Lexer.STATUS and must be expanded before each run
+        final boolean expands;
+
+        Command(List<String> argv, List<Redirect> redirects) {
+            this.argv = List.copyOf(argv);
+            this.redirects = List.copyOf(redirects);
+            boolean expands = false;
+            for (String word : argv) expands |= word.indexOf(Lexer.STATUS) >= 0;
+            for (Redirect r : redirects) expands |= r.target.indexOf(Lexer.STATUS) >= 0;
+            this.expands = expands;
+        }
+    }
+
+    // One redirection; a command applies them in source order. &>file and &>>file are parsed
+    // into 1>file 2>&1 and 1>>file 2>&1.
+    static final class Redirect {
+        enum Op {
+            READ,       // [fd]<file
+            WRITE,      // [fd]>file
+            APPEND,     // [fd]>>file
+            DUP,        // [fd]>&n, [fd]<&n: fd becomes a copy of descriptor n (the target)
+            HERE_STRING // <<<word: stdin reads the word and a newline
+        }
+
+        final int fd;
+        final Op op;
+        final String target;
+
+        Redirect(int fd, Op op, String target) {
+            this.fd = fd;
+            this.op = op;
+            this.target = target;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+// A shell builtin. One implementation serves every context: a command run by the shell itself
+// (with its redirections already applied to the streams), a pipeline stage and a parallel job.
+// Returns the exit status.
+interface Builtin {
+    int run(Context ctx) throws IOException;
+
+    final class Context {
+        final Session session;     // the shell running it: $?, options, environment
+        final List<String> argv;
+        final InputStream in;      // null when the builtin has no input
+        final BuiltinOutput out;
+        final BuiltinOutput err;   // the same as out when both go to one place (2>&1)
+        final FileChannel inFile;  // stdin when it is redirected from a file, else null
+        final FileChannel outFile; // stdout when it is redirected to a file, else null
+        // Pipeline stage or parallel job: like a bash subshell, changes to shell state (cd, set,
+        // exit) do not outlive the command
+        final boolean subshell;
+        File dir;                  // working directory; cd changes it
+
+        Context(Session session, List<String> argv, File dir, InputStream in, OutputStream out, OutputStream err,
+                boolean subshell) {
+            this(session, argv, dir, in, null, out, null, err, subshell);
+        }
+
+        // On the streams of a command's descriptor table
+        Context(Session session, List<String> argv, File dir, FdTable.Streams streams, boolean subshell) {
+            this(session, argv, dir, streams.in, streams.inFile, streams.out, streams.outFile, streams.err, subshell);
+        }
+
+        private Context(Session session, List<String> argv, File dir, InputStream in, FileChannel inFile,
+                        OutputStream out, FileChannel outFile, OutputStream err, boolean subshell) {
+            this.session = session;
+            this.argv = argv;
+            this.dir = dir;
+            this.in = in;
+            this.inFile = inFile;
+            this.out = new BuiltinOutput(out);
+            this.outFile = outFile;
+            this.err = err == out ? this.out : new BuiltinOutput(err);
+            this.subshell = subshell;
+        }
+
+        // argv[i], or null if there are not that many words
+        String arg(int i) {
+            return i < argv.size() ? argv.get(i) : null;
+        }
+
+        // Copy all of stdin to stdout and return the byte count. From one file to another this is
+        // FileChannel.transferTo, which the kernel does without the data passing through the JVM
+        // (copy_file_range or sendfile); anything else is a buffered stream copy.
+        long copyInput() throws IOException {
+            if (in == null) return 0;
+            if (inFile == null || outFile == null) return in.transferTo(out);
+            out.flush(); // anything printed before goes first
+            long position = inFile.position();
+            long size = inFile.size();
+            long copied = 0;
+            while (position + copied < size) {
+                long n = inFile.transferTo(position + copied, size - position - copied, outFile);
+                if (n <= 0) break;
+                copied += n;
+            }
+            inFile.position(position + copied);
+            return copied;
+        }
+    }
+}
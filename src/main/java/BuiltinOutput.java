@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Buffered output of a builtin. Raw bytes and text share one buffer, which goes to the
+// underlying stream when it fills up and on flush. Text is encoded to UTF-8 straight into the
+// buffer and numbers are written digit by digit, so printing a line allocates nothing.
+// Not thread-safe: each builtin run has its own.
+final class BuiltinOutput extends OutputStream {
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final OutputStream sink;
+    private final byte[] buf;
+    private int count;
+
+    BuiltinOutput(OutputStream sink) {
+        this(sink, 8192);
+    }
+
+    BuiltinOutput(OutputStream sink, int size) {
+        this.sink = sink;
+        this.buf = new byte[size];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) drain();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buf.length) {
+            drain();
+            sink.write(b, off, len);
+            return;
+        }
+        if (len > buf.length - count) drain();
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    BuiltinOutput print(char c) throws IOException {
+        if (c < 0x80) {
+            write(c);
+        } else {
+            print(String.valueOf(c));
+        }
+        return this;
+    }
+
+    BuiltinOutput print(CharSequence s) throws IOException {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (count + 4 > buf.length) drain();
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | c >> 6);
+                buf[count++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[count++] = (byte) (0xf0 | cp >> 18);
+                buf[count++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buf[count++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buf[count++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buf[count++] = '?'; // unpaired surrogate, as String.getBytes replaces it
+            } else {
+                buf[count++] = (byte) (0xe0 | c >> 12);
+                buf[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[count++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return this;
+    }
+
+    BuiltinOutput print(long n) throws IOException {
+        return pad(n, 0);
+    }
+
+    // n right-aligned in width columns, as "%5d" would print it
+    BuiltinOutput pad(long n, int width) throws IOException {
+        if (count + 20 + width > buf.length) drain();
+        int digits = 1;
+        for (long rest = n < 0 ? -(n / 10) : n / 10; rest > 0; rest /= 10) digits++;
+        int len = n < 0 ? digits + 1 : digits;
+        for (int i = len; i < width; i++) buf[count++] = ' ';
+        if (n < 0) buf[count++] = '-';
+        int end = count + digits;
+        long rest = n;
+        for (int i = end - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + Math.abs(rest % 10));
+            rest /= 10;
+        }
+        count = end;
+        return this;
+    }
+
+    BuiltinOutput newline() throws IOException {
+        return print(NEWLINE);
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            sink.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        sink.flush();
+    }
+
+    // Flushes, but leaves the underlying stream open: it belongs to whoever passed it in
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Sorted name table (builtins plus PATH executables) for first-word TAB completion.
+// Names sharing a prefix are contiguous in the sorted array, so a prefix query is two binary
+// searches and the common prefix of all matches is just the common prefix of the first and
+// last match. The last answered range is kept so typing more characters only searches inside it.
+// PATH directories are re-checked on the first completion after each prompt (see revalidate), not
+// on every TAB, so a burst of completions on one line costs no stat calls.
+final class CompletionIndex {
+    // Tables of the most recently used PATH values
+    private static final int INDEXES_SIZE = 16;
+    private static final Map<String, CompletionIndex> INDEXES = new LinkedHashMap<>(INDEXES_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletionIndex> eldest) {
+            return size() > INDEXES_SIZE;
+        }
+    };
+
+    private final PathIndex paths;
+    private final String[] builtins;
+    private String[] names = new String[0];
+    private long builtGeneration = -1;
+    // Whether PATH needs checking before the next answer, and the directory it was last checked from
+    private boolean stale = true;
+    private File checkedFrom;
+
+    // Previous query, reused when the next prefix extends it
+    private String lastPrefix;
+    private int lastFrom;
+    private int lastTo;
+
+    private CompletionIndex(PathIndex paths, String[] builtins) {
+        this.paths = paths;
+        this.builtins = builtins.clone();
+    }
+
+    static CompletionIndex forPath(String pathEnv, String[] builtins) {
+        synchronized (INDEXES) {
+            return INDEXES.computeIfAbsent(pathEnv == null ? "" : pathEnv,
+                p -> new CompletionIndex(PathIndex.forPath(p), builtins));
+        }
+    }
+
+    // All names starting with prefix, with relative PATH entries taken from cwd. An empty prefix
+    // matches nothing.
+    synchronized Matches complete(String prefix, File cwd) {
+        if (stale || !cwd.equals(checkedFrom)) {
+            long gen = paths.refresh(cwd);
+            stale = false;
+            checkedFrom = cwd;
+            if (gen != builtGeneration) {
+                rebuild(cwd);
+                builtGeneration = gen;
+            }
+        }
+        if (prefix == null || prefix.isEmpty()) return new Matches(names, 0, 0);
+        int lo = 0;
+        int hi = names.length;
+        if (lastPrefix != null && prefix.startsWith(lastPrefix)) {
+            lo = lastFrom;
+            hi = lastTo;
+        }
+        int from = lowerBound(names, lo, hi, prefix);
+        int to = prefixEnd(names, from, hi, prefix);
+        lastPrefix = prefix;
+        lastFrom = from;
+        lastTo = to;
+        return new Matches(names, from, to);
+    }
+
+    // A new prompt: the next completion checks PATH for changes again
+    synchronized void revalidate() {
+        stale = true;
+    }
+
+    private void rebuild(File cwd) {
+        Set<String> all = new LinkedHashSet<>(Arrays.asList(builtins));
+        all.addAll(paths.allExecutables(cwd));
+        String[] sorted = all.toArray(new String[0]);
+        Arrays.sort(sorted);
+        names = sorted;
+        lastPrefix = null;
+    }
+
+    // First index in [lo, hi) whose name is >= key
+    private static int lowerBound(String[] a, int lo, int hi, String key) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid].compareTo(key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // First index in [lo, hi) whose name does not start with prefix (names from lo on are >= prefix)
+    private static int prefixEnd(String[] a, int lo, int hi, String prefix) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid].startsWith(prefix)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // A view over a contiguous run of the sorted table
+    static final class Matches {
+        private final String[] names;
+        private final int from;
+        private final int to;
+
+        Matches(String[] names, int from, int to) {
+            this.names = names;
+            this.from = from;
+            this.to = to;
+        }
+
+        int size() {
+            return to - from;
+        }
+
+        String get(int i) {
+            return names[from + i];
+        }
+
+        // Matches in sorted order
+        List<String> list() {
+            return new ArrayList<>(Arrays.asList(names).subList(from, to));
+        }
+
+        // Longest common prefix of every match ("" when there are none)
+        String commonPrefix() {
+            if (to == from) return "";
+            String first = names[from];
+            String last = names[to - 1];
+            int max = Math.min(first.length(), last.length());
+            int j = 0;
+            while (j < max && first.charAt(j) == last.charAt(j)) j++;
+            return first.substring(0, j);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Descriptor table of one command: where its stdin, stdout and stderr point once its
+// redirections have been applied in order. Targets are only described here and each is opened
+// once, by whoever runs the command: ProcessBuilder for external commands, open() for builtins.
+// A descriptor duplicated from another shares its Target, so `>out 2>&1` is one open file.
+final class FdTable {
+    enum Kind {
+        SHELL, // one of the shell's own descriptors
+        PIPE,  // the pipe to the neighbouring pipeline stage
+        FILE,
+        HERE   // here-string
+    }
+
+    static final class Target {
+        final Kind kind;
+        final int shellFd;    // SHELL
+        final File file;      // FILE
+        final boolean write;  // FILE: opened for writing rather than reading
+        final boolean append; // FILE
+        final byte[] data;    // HERE
+
+        private Target(Kind kind, int shellFd, File file, boolean write, boolean append, byte[] data) {
+            this.kind = kind;
+            this.shellFd = shellFd;
+            this.file = file;
+            this.write = write;
+            this.append = append;
+            this.data = data;
+        }
+    }
+
+    static final Target STDIN = new Target(Kind.SHELL, 0, null, false, false, null);
+    static final Target STDOUT = new Target(Kind.SHELL, 1, null, false, false, null);
+    static final Target STDERR = new Target(Kind.SHELL, 2, null, false, false, null);
+    static final Target PIPE = new Target(Kind.PIPE, -1, null, false, false, null);
+
+    static Target file(File file, boolean write, boolean append) {
+        return new Target(Kind.FILE, -1, file, write, append, null);
+    }
+
+    private final Target[] fds;
+
+    FdTable(Target in, Target out, Target err) {
+        this.fds = new Target[]{in, out, err};
+    }
+
+    Target get(int fd) {
+        return fds[fd];
+    }
+
+    // Apply redirections in order. An input file must exist, and so must an output file's
+    // directory. Output files that a later redirection replaces are created (or truncated) here,
+    // as bash does, because nothing else will open them. Errors carry bash's message, e.g. "in.txt: No such file or directory".
+    // In the end stdin must be readable and stdout and stderr writable (`1<file` and `0>file`
+    // fail with "Bad file descriptor"), since neither a builtin nor ProcessBuilder can use them
+    // the other way round.
+    FdTable apply(List<Ast.Redirect> redirects, File dir) throws IOException {
+        List<Target> created = null;
+        for (Ast.Redirect r : redirects) {
+            switch (r.op) {
+                case READ: {
+                    File f = resolve(dir, r.target);
+                    if (!f.exists()) throw new IOException(r.target + ": No such file or directory");
+                    if (f.isDirectory()) throw new IOException(r.target + ": Is a directory");
+                    fds[r.fd] = file(f, false, false);
+                    break;
+                }
+                case WRITE:
+                case APPEND: {
+                    File f = resolve(dir, r.target);
+                    if (f.isDirectory()) throw new IOException(r.target + ": Is a directory");
+                    File parent = f.getAbsoluteFile().getParentFile();
+                    if (parent != null && !parent.isDirectory()) throw new IOException(r.target + ": No such file or directory");
+                    Target t = file(f, true, r.op == Ast.Redirect.Op.APPEND);
+                    if (created == null) created = new ArrayList<>();
+                    created.add(t);
+                    fds[r.fd] = t;
+                    break;
+                }
+                case DUP: {
+                    int from = Integer.parseInt(r.target);
+                    if (from > 2) throw new IOException(r.target + ": Bad file descriptor");
+                    fds[r.fd] = fds[from];
+                    break;
+                }
+                case HERE_STRING:
+                    fds[r.fd] = new Target(Kind.HERE, -1, null, false, false,
+                                           (r.target + "\n").getBytes(StandardCharsets.UTF_8));
+                    break;
+            }
+        }
+        for (int fd = 0; fd < 3; fd++) {
+            if (fd == 0 ? !readable(fds[fd]) : !writable(fds[fd])) throw new IOException(fd + ": Bad file descriptor");
+        }
+        if (created != null) {
+            for (Target t : created) {
+                if (t != fds[0] && t != fds[1] && t != fds[2]) touch(t);
+            }
+        }
+        return this;
+    }
+
+    private static boolean readable(Target t) {
+        return t.kind != Kind.FILE || !t.write;
+    }
+
+    private static boolean writable(Target t) {
+        return t.kind == Kind.FILE ? t.write : t.kind != Kind.HERE; // a here-string is input only
+    }
+
+    // Create or truncate the output files without running anything (a command of redirections only)
+    void touchAll() throws IOException {
+        for (int fd = 0; fd < 3; fd++) {
+            Target t = fds[fd];
+            if (t.kind == Kind.FILE && t.write && (fd == 0 || t != fds[fd - 1])) touch(t);
+        }
+    }
+
+    private static void touch(Target t) throws IOException {
+        openWrite(t).close();
+    }
+
+    // Point an external command's ProcessBuilder at the table. PIPE and HERE become
+    // Redirect.PIPE (the caller connects or feeds them), and stderr sharing stdout's target is
+    // merged into it. The shell's own descriptors are inherited on the console; otherwise they
+    // are pipes too, which the caller pumps to and from the session's streams.
+    void configure(ProcessBuilder pb, boolean console) {
+        pb.redirectInput(redirect(fds[0], 0, console));
+        pb.redirectOutput(redirect(fds[1], 1, console));
+        if (fds[2] == fds[1]) {
+            pb.redirectErrorStream(true);
+        } else if (fds[2].kind == Kind.PIPE) {
+            pb.redirectError(console ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE);
+        } else {
+            pb.redirectError(redirect(fds[2], 2, console));
+        }
+    }
+
+    private static ProcessBuilder.Redirect redirect(Target t, int fd, boolean console) {
+        switch (t.kind) {
+            case SHELL:
+                if (!console) return ProcessBuilder.Redirect.PIPE;
+                if (t.shellFd == fd) return ProcessBuilder.Redirect.INHERIT;
+                // Another of the shell's descriptors: reopen it through /dev/fd
+                File dev = new File("/dev/fd/" + t.shellFd);
+                return fd == 0 ? ProcessBuilder.Redirect.from(dev) : ProcessBuilder.Redirect.appendTo(dev);
+            case FILE:
+                if (!t.write) return ProcessBuilder.Redirect.from(t.file);
+                return t.append ? ProcessBuilder.Redirect.appendTo(t.file) : ProcessBuilder.Redirect.to(t.file);
+            default:
+                return ProcessBuilder.Redirect.PIPE;
+        }
+    }
+
+    // A builtin's streams, each target opened once and shared by the descriptors pointing at it.
+    // pipeIn and pipeOut stand for PIPE targets; they belong to the caller, as do the session's
+    // streams, and close() only closes what was opened here.
+    Streams open(Session session, InputStream pipeIn, OutputStream pipeOut) throws IOException {
+        Streams s = new Streams();
+        try {
+            Target in = fds[0];
+            if (in.kind == Kind.FILE && !in.write) {
+                s.inFile = FileChannel.open(in.file.toPath(), StandardOpenOption.READ);
+                s.opened.add(s.inFile);
+                s.in = Channels.newInputStream(s.inFile);
+            } else if (in.kind == Kind.HERE) {
+                s.in = new ByteArrayInputStream(in.data);
+            } else if (in.kind == Kind.PIPE) {
+                s.in = pipeIn;
+            } else if (in.kind == Kind.SHELL && in.shellFd == 0) {
+                s.in = session.in;
+            } else {
+                s.in = InputStream.nullInputStream(); // <&1, <&2, <>file: not readable here
+            }
+            s.out = output(fds[1], session, pipeOut, s, true);
+            s.err = fds[2] == fds[1] ? s.out : output(fds[2], session, pipeOut, s, false);
+            return s;
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    private static OutputStream output(Target t, Session session, OutputStream pipeOut, Streams s,
+                                       boolean stdout) throws IOException {
+        switch (t.kind) {
+            case FILE: {
+                if (!t.write) return OutputStream.nullOutputStream(); // >&0 after <file
+                FileChannel channel = openWrite(t);
+                s.opened.add(channel);
+                if (stdout) s.outFile = channel;
+                return Channels.newOutputStream(channel);
+            }
+            case PIPE:
+                return pipeOut != null ? pipeOut : OutputStream.nullOutputStream();
+            case SHELL:
+                return t.shellFd == 2 ? session.err : t.shellFd == 1 ? session.out : OutputStream.nullOutputStream();
+            default:
+                return OutputStream.nullOutputStream();
+        }
+    }
+
+    private static FileChannel openWrite(Target t) throws IOException {
+        try {
+            return t.append
+                ? FileChannel.open(t.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(t.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new IOException(t.file.getPath() + ": " + (t.file.isDirectory() ? "Is a directory"
+                : t.file.getParentFile() != null && !t.file.getParentFile().isDirectory() ? "No such file or directory"
+                : "Permission denied"), e);
+        }
+    }
+
+    private static File resolve(File dir, String target) {
+        return target.startsWith("/") ? new File(target) : new File(dir, target);
+    }
+
+    static final class Streams implements Closeable {
+        InputStream in;
+        FileChannel inFile;  // stdin when it is a file
+        OutputStream out;
+        FileChannel outFile; // stdout when it is a file
+        OutputStream err;
+        private final List<Closeable> opened = new ArrayList<>(2);
+
+        @Override
+        public void close() throws IOException {
+            IOException failed = null;
+            for (Closeable c : opened) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    failed = e;
+                }
+            }
+            opened.clear();
+            if (failed != null) throw failed;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// How often and how lately each command was run, for ordering the candidates that a second TAB
+// lists. Completion itself never picks a candidate by score. Every
+// command line run at the prompt counts one use of its command name, both overall and in the
+// working directory; a score halves for every week without use. Candidates are ordered by their
+// overall score plus twice their score in the current directory.
+//
+// The store is $SHELL_FRECENCY_FILE (default ~/.shell_frecency), a small binary file that is
+// only read the first time a score is needed. Uses are also kept aside until exit, when they are
+// merged into what is on disk then and written back in place, all under a lock on the file itself,
+// so shells that run at the same time do not overwrite each other and no lock file is left behind. Without a file yet, the store starts from the newest history
+// entries, counted as uses a week old.
+final class Frecency {
+    private static final int MAGIC = 0x46524543; // "FREC"
+    private static final double HALF_LIFE = 7 * 24 * 60; // minutes
+    private static final double DIR_WEIGHT = 2;
+    // Scores that have decayed below this are not saved
+    private static final double FORGET = 0.01;
+    // History entries that seed a new store
+    private static final int SEED_ENTRIES = 5000;
+    // File locks are held per process, so sessions of this JVM take turns on these first
+    private static final Map<Path, ReentrantLock> HELD = new ConcurrentHashMap<>();
+
+    private Path file;
+    private History history;
+    // Loaded on first use: name -> overall score, and directory -> name -> score there
+    private Map<String, Score> overall;
+    private Map<String, Map<String, Score>> byDir;
+    // Uses recorded by this session that are not in the file yet
+    private final List<Use> pending = new ArrayList<>();
+
+    // Keep the store in file, or only in memory if file is null; history seeds a new one
+    void open(Path file, History history) {
+        this.file = file;
+        this.history = history;
+        overall = null;
+        byDir = null;
+    }
+
+    // A command line was run in dir
+    void record(String line, File dir) {
+        String name = commandName(line);
+        if (name == null) return;
+        Use use = new Use(name, dir.getPath(), now());
+        pending.add(use);
+        if (overall != null) apply(overall, byDir, use);
+    }
+
+    // names ordered by score in dir, best first; names never used keep their order after them
+    List<String> rank(List<String> names, File dir) {
+        load();
+        int now = now();
+        Map<String, Score> here = byDir.get(dir.getPath());
+        Map<String, Double> scores = new HashMap<>();
+        for (String name : names) scores.put(name, score(name, here, now));
+        List<String> ranked = new ArrayList<>(names);
+        ranked.sort(Comparator.comparingDouble((String name) -> scores.get(name)).reversed());
+        return ranked;
+    }
+
+    // On exit: merge this session's uses into the file
+    void save() {
+        if (file == null || pending.isEmpty()) return;
+        ReentrantLock local = local(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.CREATE)) {
+            channel.lock(); // released with the channel
+            Map<String, Score> all = new HashMap<>();
+            Map<String, Map<String, Score>> dirs = new HashMap<>();
+            try {
+                if (!read(file, channel, all, dirs)) seed(all);
+            } catch (IOException e) {
+                // unreadable: replaced by what this session knows
+                all.clear();
+                dirs.clear();
+            }
+            for (Use use : pending) apply(all, dirs, use);
+            ByteBuffer bytes = ByteBuffer.wrap(write(all, dirs));
+            channel.position(0);
+            while (bytes.hasRemaining()) channel.write(bytes);
+            channel.truncate(bytes.limit());
+            pending.clear();
+        } catch (IOException ignored) {
+            // keep the uses; a later save may manage
+        } finally {
+            local.unlock();
+        }
+    }
+
+    private double score(String name, Map<String, Score> here, int now) {
+        Score s = overall.get(name);
+        double total = s == null ? 0 : s.at(now);
+        Score d = here == null ? null : here.get(name);
+        return d == null ? total : total + DIR_WEIGHT * d.at(now);
+    }
+
+    private void load() {
+        if (overall != null) return;
+        overall = new HashMap<>();
+        byDir = new HashMap<>();
+        try {
+            if (file == null || !read(file, overall, byDir)) seed(overall);
+        } catch (NoSuchFileException e) {
+            seed(overall);
+        } catch (IOException e) {
+            // unreadable: start over, saving replaces it
+            overall.clear();
+            byDir.clear();
+        }
+        for (Use use : pending) apply(overall, byDir, use);
+    }
+
+    // Count the command names of the newest history entries as uses one half-life ago
+    private void seed(Map<String, Score> all) {
+        if (history == null) return;
+        int now = now();
+        int size = history.size();
+        for (int i = Math.max(0, size - SEED_ENTRIES); i < size; i++) {
+            String name = commandName(history.get(i));
+            if (name != null) all.computeIfAbsent(name, k -> new Score()).add(0.5, now);
+        }
+    }
+
+    private static void apply(Map<String, Score> all, Map<String, Map<String, Score>> dirs, Use use) {
+        all.computeIfAbsent(use.name, k -> new Score()).add(1, use.minute);
+        dirs.computeIfAbsent(use.dir, k -> new HashMap<>()).computeIfAbsent(use.name, k -> new Score()).add(1, use.minute);
+    }
+
+    // The first word of line, or null for a blank line
+    private static String commandName(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty()) return null;
+        int end = 0;
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) end++;
+        return trimmed.substring(0, end);
+    }
+
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 60_000);
+    }
+
+    // File layout: MAGIC, then the directories (count, then each as UTF), then the names (count,
+    // then each as UTF, its overall score, the number of directories it was used in and, for each,
+    // the directory's index and the score there). A score is a float and the minute it was set.
+    // Returns false if the file is still empty. Reads under a shared lock, since save() rewrites
+    // the file in place.
+    private static boolean read(Path file, Map<String, Score> all, Map<String, Map<String, Score>> dirs)
+            throws IOException {
+        ReentrantLock local = local(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.lock(0, Long.MAX_VALUE, true);
+            return read(file, channel, all, dirs);
+        } finally {
+            local.unlock();
+        }
+    }
+
+    // This JVM's turn at file, taken
+    private static ReentrantLock local(Path file) {
+        ReentrantLock local = HELD.computeIfAbsent(file.toAbsolutePath().normalize(), k -> new ReentrantLock());
+        local.lock();
+        return local;
+    }
+
+    private static boolean read(Path file, FileChannel channel, Map<String, Score> all,
+                                Map<String, Map<String, Score>> dirs) throws IOException {
+        if (channel.size() == 0) return false;
+        ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+        channel.position(0);
+        while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+            // until the whole file is in
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array(), 0, bytes.position()))) {
+            if (in.readInt() != MAGIC) throw new IOException(file + ": not a frecency file");
+            String[] dirNames = new String[in.readInt()];
+            for (int i = 0; i < dirNames.length; i++) dirNames[i] = in.readUTF();
+            for (int n = in.readInt(); n > 0; n--) {
+                String name = in.readUTF();
+                all.put(name, Score.read(in));
+                for (int k = in.readShort(); k > 0; k--) {
+                    String dir = dirNames[in.readInt()];
+                    dirs.computeIfAbsent(dir, d -> new HashMap<>()).put(name, Score.read(in));
+                }
+            }
+            return true;
+        }
+    }
+
+    private static byte[] write(Map<String, Score> all, Map<String, Map<String, Score>> dirs) throws IOException {
+        int now = now();
+        // name -> where it was used, forgetting what has decayed away
+        Map<String, List<Place>> usedIn = new HashMap<>();
+        List<String> dirNames = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Score>> dir : dirs.entrySet()) {
+            int index = -1;
+            for (Map.Entry<String, Score> e : dir.getValue().entrySet()) {
+                if (e.getValue().at(now) < FORGET) continue;
+                if (index < 0) {
+                    index = dirNames.size();
+                    dirNames.add(dir.getKey());
+                }
+                usedIn.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(new Place(index, e.getValue()));
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(dirNames.size());
+            for (String dir : dirNames) out.writeUTF(dir);
+            List<String> names = new ArrayList<>();
+            for (Map.Entry<String, Score> e : all.entrySet()) {
+                if (e.getValue().at(now) >= FORGET || usedIn.containsKey(e.getKey())) names.add(e.getKey());
+            }
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+                all.get(name).write(out);
+                List<Place> places = usedIn.getOrDefault(name, List.of());
+                places = places.subList(0, Math.min(places.size(), Short.MAX_VALUE));
+                out.writeShort(places.size());
+                for (Place place : places) {
+                    out.writeInt(place.dir);
+                    place.score.write(out);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    // A decaying count: value as of minute
+    private static final class Score {
+        double value;
+        int minute;
+
+        double at(int now) {
+            return value * Math.pow(2, -(now - minute) / HALF_LIFE);
+        }
+
+        // Count uses made at minute when, which may be before the last one counted
+        void add(double uses, int when) {
+            if (when >= minute) {
+                value = at(when) + uses;
+                minute = when;
+            } else {
+                value += uses * Math.pow(2, -(minute - when) / HALF_LIFE);
+            }
+        }
+
+        static Score read(DataInputStream in) throws IOException {
+            Score s = new Score();
+            s.value = in.readFloat();
+            s.minute = in.readInt();
+            return s;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeFloat((float) value);
+            out.writeInt(minute);
+        }
+    }
+
+    private static final class Use {
+        final String name;
+        final String dir;
+        final int minute;
+
+        Use(String name, String dir, int minute) {
+            this.name = name;
+            this.dir = dir;
+            this.minute = minute;
+        }
+    }
+
+    // A name's score in the directory with index dir in the file
+    private static final class Place {
+        final int dir;
+        final Score score;
+
+        Place(int dir, Score score) {
+            this.dir = dir;
+            this.score = score;
+        }
+    }
+}
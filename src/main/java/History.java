@@ -0,0 +1,1036 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Command history: the HISTFILE contents from startup followed by entries added in this session.
+// The file is memory-mapped rather than read, line offsets are indexed on a background thread
+// once HISTSIZE is known (or the first time an entry is needed, if that comes first), and entries
+// are only decoded into Strings when displayed or navigated to, so neither startup nor the first
+// command waits for a pass over the file. New entries can be appended to HISTFILE one by
+// one as they are added, which makes a full rewrite on exit unnecessary.
+//
+// At most HISTSIZE entries are kept: only the newest HISTSIZE lines of a file are indexed, and
+// session entries live in a ring buffer that evicts the oldest entry once the limit is reached.
+// Session entries are identified by a sequence number that keeps counting across evictions, so
+// the history -a/-w marks stay correct when entries they point past are dropped.
+//
+// Several shells may share one HISTFILE. Every write to a history file happens under an
+// exclusive FileChannel.lock on its sidecar "<file>.lock" (see HistoryLock), which stays put
+// while compaction renames a trimmed copy over the file, so no append can land in a file that
+// is about to be replaced. The last shell to close the file deletes the sidecar. Rewritten
+// files keep the permissions of the file they replace. history -n picks up what other shells appended, reading only the bytes
+// past the offset this session has seen. Cutting HISTFILE down to HISTFILESIZE lines runs on a
+// background thread as the file grows, and once more on exit.
+final class History {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int SMALL_FILE = 1 << 16;
+    // Appended entries between two background compactions of HISTFILE
+    private static final int COMPACT_EVERY = 64;
+    // Compacts history files off the prompt's thread, one at a time
+    private static final ExecutorService COMPACTION = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+    // Indexes mapped history files off the prompt's thread
+    private static final ExecutorService INDEXING = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "history-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Path histFile;       // HISTFILE, or null
+    private boolean appendOnAdd; // write each new entry to HISTFILE immediately
+    private int limit = -1;      // HISTSIZE; negative = unlimited
+    private int fileLimit = -1;  // HISTFILESIZE; negative = unlimited
+    private boolean ignoreSpace; // HISTCONTROL=ignorespace
+    private boolean ignoreDups;  // HISTCONTROL=ignoredups
+    private boolean eraseDups;   // HISTCONTROL=erasedups
+    private int evicted;         // entries dropped by the limit; history numbers start after them
+
+    // HISTFILE as mapped at startup; line starts are indexed lazily
+    private ByteBuffer base = EMPTY;
+    private int[] baseStarts;
+    private int baseCount = -1;
+    private int baseFrom;        // first indexed line still in history
+    private boolean baseClean;   // every indexed line trimmed and non-blank, ending in '\n'
+    // The index of base being built in the background, and the HISTSIZE it was started for
+    private Future<BaseIndex> indexing;
+    private int indexingLimit;
+    private boolean limitsSet;
+
+    // Session entries: ring[head] holds sequence number nextSeq - ringCount.
+    // Entries removed by erasedups stay as null slots until the next compaction.
+    private String[] ring = new String[16];
+    private int head;
+    private int ringCount;
+    private int dead;
+    private long nextSeq;
+    private long persisted;      // entries below this sequence number are in HISTFILE
+    private long appendMark;     // entries below this sequence number were written by history -a/-w
+
+    // erasedups: entry -> sequence number of its one live occurrence; built on first use
+    private Map<String, Long> latest;
+
+    // Ctrl-R: index of entries by history number, built on the indexing thread (see
+    // prepareSearch) and extended by add() as history grows. History numbers only stay put while
+    // entries are added and the oldest evicted; anything that removes entries elsewhere
+    // (history -c, erasedups) drops the index, and the next prompt starts another.
+    private TrigramIndex search;
+    private int searchEnd;       // first history number not yet indexed
+    private Future<SearchIndex> searchBuild;
+
+    // HISTFILE offsets count from the first byte the file ever had, including what compaction has
+    // cut from its front since. readOffset: bytes already read or written by this session.
+    private long readOffset;
+    // Ranges {start, end} past readOffset that this session appended itself, skipped by -n
+    private final List<long[]> ownAppends = new ArrayList<>();
+    private int appendedSinceCompaction = COMPACT_EVERY;
+    private Future<?> compaction;
+    // Keeps HISTFILE's sidecar while this session has it open
+    private Closeable held;
+
+    // Map HISTFILE as the initial history. Missing or unreadable files leave history empty.
+    void open(Path file) {
+        ShellEvents.HistoryLoad event = new ShellEvents.HistoryLoad();
+        event.begin();
+        release();
+        this.histFile = file;
+        held = HistoryLock.hold(file);
+        try (HistoryLock lock = HistoryLock.acquire(file, true)) {
+            base = map(file);
+            readOffset = lock.trimmed() + Files.size(file);
+        } catch (IOException e) {
+            base = EMPTY;
+            readOffset = 0;
+        }
+        ownAppends.clear();
+        loaded(event, file, "open", base.capacity());
+        baseStarts = null;
+        baseCount = -1;
+        baseFrom = 0;
+        dropSearch();
+        if (limitsSet) startIndexing();
+    }
+
+    // HISTFILE, or null
+    Path file() {
+        return histFile;
+    }
+
+    // Interactive sessions save each entry as it is added; batch runs only on exit
+    void appendOnAdd(boolean on) {
+        appendOnAdd = on;
+    }
+
+    // HISTSIZE and HISTFILESIZE; negative means unlimited
+    void limits(int size, int fileSize) {
+        limit = size;
+        fileLimit = fileSize;
+        limitsSet = true;
+        if (baseCount < 0) {
+            // the window of the file changes, and the numbers of its lines with it
+            dropSearch();
+            startIndexing();
+        }
+        trim();
+    }
+
+    // HISTCONTROL: colon-separated ignorespace, ignoredups, ignoreboth, erasedups
+    void control(String value) {
+        ignoreSpace = false;
+        ignoreDups = false;
+        eraseDups = false;
+        if (value == null) return;
+        for (String opt : value.split(":")) {
+            switch (opt) {
+                case "ignorespace": ignoreSpace = true; break;
+                case "ignoredups": ignoreDups = true; break;
+                case "ignoreboth": ignoreSpace = true; ignoreDups = true; break;
+                case "erasedups": eraseDups = true; break;
+                default: break;
+            }
+        }
+        if (!eraseDups) latest = null;
+    }
+
+    int size() {
+        return indexBase() - baseFrom + ringCount - dead;
+    }
+
+    // History number shown for entry 0
+    int firstNumber() {
+        return evicted + 1;
+    }
+
+    // Entry i (0-based), decoded on demand
+    String get(int i) {
+        int b = indexBase() - baseFrom;
+        if (i < b) return line(base, baseStarts[baseFrom + i]);
+        if (dead > 0) compact();
+        return ring[(head + i - b) % ring.length];
+    }
+
+    // Record a command line as typed (before trimming, so ignorespace can see it)
+    void add(String line) {
+        if (ignoreSpace && !line.isEmpty() && line.charAt(0) == ' ') return;
+        store(line.trim());
+        if (appendOnAdd) sync();
+    }
+
+    // history -c
+    void clear() {
+        base = EMPTY;
+        indexing = null;
+        baseStarts = null;
+        baseCount = -1;
+        baseFrom = 0;
+        Arrays.fill(ring, null);
+        head = 0;
+        ringCount = 0;
+        dead = 0;
+        evicted = 0;
+        persisted = nextSeq;
+        appendMark = nextSeq;
+        if (latest != null) latest.clear();
+        dropSearch();
+    }
+
+    // Interactive sessions, at each prompt: have the Ctrl-R index built off this thread, unless
+    // it exists or is being built
+    void prepareSearch() {
+        if (search != null || searchBuild != null) return;
+        ByteBuffer buf = base;
+        Future<BaseIndex> baseIndex = baseCount >= 0
+            ? CompletableFuture.completedFuture(new BaseIndex(baseStarts, baseCount, baseClean))
+            : indexing;
+        int limitNow = limit;
+        // Base line i has number baseFirst + i; the session entries follow the base, if its
+        // length is known yet
+        int baseFirst = evicted - baseFrom + 1;
+        int baseLines = baseCount >= 0 ? baseCount : buf.limit() == 0 ? 0 : -1;
+        int ringFirst = baseLines >= 0 ? firstNumber() + baseLines - baseFrom : -1;
+        String[] entries = new String[ringFirst < 0 ? 0 : ringCount - dead];
+        for (int i = 0, n = 0; n < entries.length; i++) {
+            String e = ring[(head + i) % ring.length];
+            if (e != null) entries[n++] = e;
+        }
+        searchBuild = INDEXING.submit(() -> SearchIndex.of(buf, baseIndex, limitNow, baseFirst, entries, ringFirst));
+    }
+
+    // Ctrl-R: index (as for get) of the newest entry below before that contains query, or -1.
+    // Queries of fewer than three chars have no trigram and are matched by a backward scan.
+    int searchBackward(String query, int before) {
+        int total = size();
+        before = Math.min(before, total);
+        if (query.isEmpty()) return -1;
+        if (query.length() < 3) {
+            for (int i = before - 1; i >= 0; i--) {
+                if (get(i).contains(query)) return i;
+            }
+            return -1;
+        }
+        int first = firstNumber();
+        if (search == null && searchBuild != null) {
+            try {
+                SearchIndex built = searchBuild.get();
+                search = built.index;
+                searchEnd = built.end;
+            } catch (ExecutionException e) {
+                // index here
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            searchBuild = null;
+        }
+        if (search == null) {
+            search = new TrigramIndex();
+            searchEnd = first;
+        }
+        for (int number = Math.max(searchEnd, first); number < first + total; number++) {
+            search.add(number, get(number - first), first);
+        }
+        searchEnd = first + total;
+        int found = search.search(query, first + before, first, number -> get(number - first));
+        return found < 0 ? -1 : found - first;
+    }
+
+    // history -r: append the non-blank lines of file. Only the newest HISTSIZE lines can
+    // survive, so only those are decoded.
+    void read(Path file) throws IOException {
+        ShellEvents.HistoryLoad event = new ShellEvents.HistoryLoad();
+        event.begin();
+        ByteBuffer buf = map(file);
+        loaded(event, file, "read", buf.capacity());
+        int[] starts = index(buf, windowStart(buf, limit), new boolean[1]);
+        for (int start : starts) {
+            if (start < 0) break;
+            store(line(buf, start));
+        }
+    }
+
+    // history -n: add the lines other shells have appended to HISTFILE since this one opened or
+    // last read it. Only those bytes are read; entries this session wrote itself are skipped.
+    void readNew() throws IOException {
+        if (histFile == null) return;
+        // Pending entries first, so that everything read here comes after them. Compaction
+        // waits until the read is done: it would cut lines that are about to be read.
+        appendPending();
+        ShellEvents.HistoryLoad event = new ShellEvents.HistoryLoad();
+        event.begin();
+        long before = nextSeq;
+        long read;
+        try (HistoryLock lock = HistoryLock.acquire(histFile, true);
+             FileChannel ch = FileChannel.open(histFile, StandardOpenOption.READ)) {
+            long trimmed = lock.trimmed();
+            long size = ch.size();
+            // Compaction may have cut lines this session never read; they are gone. A file that
+            // is shorter than expected was replaced by hand: carry on from its end.
+            long from = Math.max(readOffset - trimmed, 0);
+            if (from > size) from = size;
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size - from, Integer.MAX_VALUE - 8));
+            while (buf.hasRemaining() && ch.read(buf, from + buf.position()) >= 0) {
+                // keep reading
+            }
+            buf.flip();
+            read = buf.limit();
+            int consumed = 0;
+            for (int pos = 0; pos < buf.limit(); pos++) {
+                if (buf.get(pos) != '\n') continue;
+                if (!ownAppend(trimmed + from + consumed)) {
+                    String entry = line(buf, consumed);
+                    if (!entry.isEmpty()) store(entry);
+                }
+                consumed = pos + 1;
+            }
+            // A line still being written stays unread until it is complete
+            readOffset = trimmed + from + consumed;
+            ownAppends.removeIf(r -> r[1] <= readOffset);
+        }
+        // What came from the file does not need to go back to it
+        if (persisted == before) persisted = nextSeq;
+        if (appendMark == before) appendMark = nextSeq;
+        loaded(event, histFile, "read new", read);
+        if (appendedSinceCompaction >= COMPACT_EVERY) scheduleCompaction();
+    }
+
+    private boolean ownAppend(long offset) {
+        for (long[] r : ownAppends) {
+            if (offset >= r[0] && offset < r[1]) return true;
+        }
+        return false;
+    }
+
+    // history -w: replace file with the whole history. Other shells reading the file with -n see
+    // all of it as new.
+    void write(Path file) throws IOException {
+        ShellEvents.HistorySave event = new ShellEvents.HistorySave();
+        event.begin();
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, ".history", ".tmp");
+        try (HistoryLock lock = HistoryLock.acquire(file, false)) {
+            long oldSize = Files.exists(file) ? Files.size(file) : 0;
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                writeBase(ch);
+                writeAdded(ch, 0);
+            }
+            // Rename over the target so a mapping of the old file (ours included) stays valid
+            if (Files.exists(file)) copyPermissions(file, tmp);
+            replace(tmp, file);
+            if (file.equals(histFile)) {
+                lock.addTrimmed(oldSize);
+                readOffset = lock.trimmed() + Files.size(file);
+                ownAppends.clear();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        appendMark = nextSeq;
+        if (file.equals(histFile)) {
+            persisted = nextSeq;
+            scheduleCompaction();
+        }
+        saved(event, file, "write", size());
+    }
+
+    // history -a: append entries added since the last -a/-w (creates file even if nothing is new)
+    void appendNew(Path file) throws IOException {
+        ShellEvents.HistorySave event = new ShellEvents.HistorySave();
+        event.begin();
+        long entries = nextSeq - appendMark;
+        append(file, appendMark);
+        if (file.equals(histFile)) persisted = nextSeq;
+        appendMark = nextSeq;
+        saved(event, file, "append", entries);
+    }
+
+    // Append every entry not yet in HISTFILE (also retries earlier failed appends)
+    void sync() {
+        appendPending();
+        if (appendedSinceCompaction >= COMPACT_EVERY) scheduleCompaction();
+    }
+
+    private void appendPending() {
+        if (histFile == null || persisted >= nextSeq) return;
+        ShellEvents.HistorySave event = new ShellEvents.HistorySave();
+        event.begin();
+        long entries = nextSeq - persisted;
+        try {
+            append(histFile, persisted);
+            persisted = nextSeq;
+        } catch (IOException ignored) {
+            // keep them pending; the next add or exit tries again
+            return;
+        }
+        saved(event, histFile, "sync", entries);
+        appendedSinceCompaction += entries;
+    }
+
+    // Append the entries from sequence number from on to file, under its lock. Bytes appended to
+    // HISTFILE are remembered as this session's, so -n does not read them back.
+    private void append(Path file, long from) throws IOException {
+        try (HistoryLock lock = HistoryLock.acquire(file, false);
+             FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                                               StandardOpenOption.WRITE)) {
+            long start = ch.size();
+            writeAdded(ch, from);
+            if (!file.equals(histFile) || ch.size() == start) return;
+            long trimmed = lock.trimmed();
+            if (trimmed + start == readOffset) readOffset = trimmed + ch.size(); // nothing unread in between
+            else ownAppends.add(new long[]{trimmed + start, trimmed + ch.size()});
+        }
+    }
+
+    // Trim HISTFILE on the compaction thread, unless a compaction is still pending
+    private void scheduleCompaction() {
+        appendedSinceCompaction = 0;
+        if (histFile == null || fileLimit < 0 || (compaction != null && !compaction.isDone())) return;
+        Path file = histFile;
+        int max = fileLimit;
+        compaction = COMPACTION.submit(() -> {
+            try {
+                compact(file, max);
+            } catch (IOException ignored) {
+                // the next one tries again
+            }
+        });
+    }
+
+    private static void loaded(ShellEvents.HistoryLoad event, Path file, String operation, long bytes) {
+        if (event.shouldCommit()) {
+            event.path = file.toString();
+            event.operation = operation;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    private static void saved(ShellEvents.HistorySave event, Path file, String operation, long entries) {
+        if (event.shouldCommit()) {
+            event.path = file.toString();
+            event.operation = operation;
+            event.entries = entries;
+            event.commit();
+        }
+    }
+
+    // On exit: save pending entries and cut HISTFILE down to its newest HISTFILESIZE lines
+    void close() {
+        sync();
+        if (histFile == null) return;
+        try {
+            if (compaction != null) compaction.get();
+            if (fileLimit >= 0) compact(histFile, fileLimit);
+        } catch (IOException | ExecutionException e) {
+            // leave the file as it is
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        release();
+    }
+
+    private void release() {
+        if (held == null) return;
+        try {
+            held.close();
+        } catch (IOException ignored) {
+        }
+        held = null;
+    }
+
+    private void store(String entry) {
+        if (entry.isEmpty() || limit == 0) return;
+        // The newest ring slot is never an erased one
+        if ((ignoreDups || eraseDups) && ringCount > 0 && ring[slot(nextSeq - 1)].equals(entry)) return;
+        if (eraseDups) {
+            Long prev = dedupIndex().put(entry, nextSeq);
+            if (prev != null) {
+                ring[slot(prev)] = null;
+                dead++;
+                dropSearch();
+            }
+        } else if (ignoreDups && ringCount == 0) {
+            if (entry.equals(lastBaseLine())) return;
+        }
+        if (ringCount == ring.length) {
+            if (dead > ringCount / 2) compact();
+            else grow();
+        }
+        ring[(head + ringCount) % ring.length] = entry;
+        ringCount++;
+        nextSeq++;
+        trim();
+        // An index that exists has had a search, which indexed the base, so size() is cheap
+        if (search != null) {
+            int number = evicted + size();
+            if (searchEnd == number) {
+                search.add(number, entry, firstNumber());
+                searchEnd++;
+            }
+        }
+    }
+
+    private void dropSearch() {
+        search = null;
+        if (searchBuild != null) searchBuild.cancel(false);
+        searchBuild = null;
+    }
+
+    // Evict the oldest entries until at most HISTSIZE are left. The lines of a base that is not
+    // indexed yet are evicted once it is (see indexBase), unless the ring alone is over the limit.
+    private void trim() {
+        if (limit < 0) return;
+        if (baseCount < 0 && ringCount - dead <= limit) return;
+        while (size() > limit) {
+            if (baseFrom < baseCount) {
+                baseFrom++;
+                evicted++;
+                continue;
+            }
+            String gone = ring[head];
+            long seq = nextSeq - ringCount;
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            ringCount--;
+            if (gone == null) {
+                dead--;
+            } else {
+                evicted++;
+                if (latest != null) latest.remove(gone, seq);
+            }
+        }
+    }
+
+    private int slot(long seq) {
+        return (int) ((head + (seq - (nextSeq - ringCount))) % ring.length);
+    }
+
+    private void grow() {
+        String[] bigger = new String[ring.length * 2];
+        for (int i = 0; i < ringCount; i++) bigger[i] = ring[(head + i) % ring.length];
+        ring = bigger;
+        head = 0;
+    }
+
+    // Squeeze out erased slots. Sequence numbers are reassigned so they stay contiguous, and the
+    // -a/-w marks move with the entries they point at.
+    private void compact() {
+        long oldest = nextSeq - ringCount;
+        long newOldest = nextSeq - (ringCount - dead);
+        long newPersisted = newOldest;
+        long newMark = newOldest;
+        String[] packed = new String[ring.length];
+        int n = 0;
+        for (int i = 0; i < ringCount; i++) {
+            String e = ring[(head + i) % ring.length];
+            if (e == null) continue;
+            if (oldest + i < persisted) newPersisted++;
+            if (oldest + i < appendMark) newMark++;
+            packed[n++] = e;
+        }
+        ring = packed;
+        head = 0;
+        ringCount = n;
+        dead = 0;
+        if (persisted < nextSeq) persisted = newPersisted;
+        if (appendMark < nextSeq) appendMark = newMark;
+        if (latest != null) {
+            latest.clear();
+            for (int i = 0; i < n; i++) latest.put(ring[i], newOldest + i);
+        }
+    }
+
+    // Build the erasedups index. Lines from the file move into the ring (ahead of session
+    // entries) so that any entry can be erased; duplicates already in the file are dropped.
+    private Map<String, Long> dedupIndex() {
+        if (latest != null) return latest;
+        int fromFile = indexBase() - baseFrom;
+        long oldest = nextSeq - ringCount;
+        // Marks below the ring belong to evicted entries; keep them off the file lines
+        if (persisted < oldest) persisted = oldest;
+        if (appendMark < oldest) appendMark = oldest;
+        String[] merged = new String[Math.max(16, Integer.highestOneBit(fromFile + ringCount + 1) * 2)];
+        for (int i = 0; i < fromFile; i++) merged[i] = line(base, baseStarts[baseFrom + i]);
+        for (int i = 0; i < ringCount; i++) merged[fromFile + i] = ring[(head + i) % ring.length];
+        ring = merged;
+        head = 0;
+        ringCount += fromFile;
+        base = EMPTY;
+        indexing = null;
+        baseStarts = null;
+        baseCount = -1;
+        baseFrom = 0;
+        latest = new HashMap<>();
+        long first = nextSeq - ringCount;
+        for (int i = 0; i < ringCount; i++) {
+            String e = ring[i];
+            if (e == null) continue;
+            Long prev = latest.put(e, first + i);
+            if (prev != null) {
+                ring[(int) (prev - first)] = null;
+                dead++;
+                dropSearch();
+            }
+        }
+        return latest;
+    }
+
+    private void writeBase(FileChannel ch) throws IOException {
+        int b = indexBase();
+        if (b == baseFrom) return;
+        if (baseClean) {
+            // Already in canonical form: copy the mapped bytes as they are
+            ByteBuffer all = base.duplicate();
+            all.clear();
+            all.position(baseStarts[baseFrom]);
+            while (all.hasRemaining()) ch.write(all);
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16);
+        for (int i = baseFrom; i < b; i++) {
+            out.write(line(base, baseStarts[i]).getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private void writeAdded(FileChannel ch, long from) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (long seq = Math.max(from, nextSeq - ringCount); seq < nextSeq; seq++) {
+            String e = ring[slot(seq)];
+            if (e != null) sb.append(e).append('\n');
+        }
+        if (sb.length() == 0) return;
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) ch.write(bytes);
+    }
+
+    // Keep only the newest max lines of file. The tail is copied to a new file that is renamed over
+    // the old one, so mappings of the old file stay valid; holding the lock throughout means no
+    // append can go to the old file meanwhile.
+    private static void compact(Path file, int max) throws IOException {
+        try (HistoryLock lock = HistoryLock.acquire(file, false)) {
+            if (!Files.exists(file)) return;
+            long size = Files.size(file);
+            ByteBuffer buf = map(file);
+            int start = windowStart(buf, max);
+            if (start == 0) return;
+            Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), ".history", ".tmp");
+            try {
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    ByteBuffer tail = buf.duplicate();
+                    tail.position(start);
+                    while (tail.hasRemaining()) ch.write(tail);
+                }
+                copyPermissions(file, tmp);
+                replace(tmp, file);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            lock.addTrimmed(size - (buf.limit() - start));
+        }
+    }
+
+    // createTempFile makes tmp readable by its owner only; give it what the file it replaces has
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system: the default is all there is
+        }
+    }
+
+    private static void replace(Path tmp, Path file) throws IOException {
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Index the newest HISTSIZE lines of base on the indexing thread
+    private void startIndexing() {
+        if (indexing != null) indexing.cancel(false);
+        indexing = null;
+        if (base.limit() == 0) return;
+        ByteBuffer buf = base;
+        int max = limit;
+        indexingLimit = max;
+        indexing = INDEXING.submit(() -> BaseIndex.of(buf, max));
+    }
+
+    // Number of indexed base lines, taking the background index if it was started for the
+    // current HISTSIZE (waiting for it if need be), else indexing here
+    private int indexBase() {
+        if (baseCount < 0) {
+            BaseIndex index = null;
+            if (indexing != null && indexingLimit == limit) {
+                try {
+                    index = indexing.get();
+                } catch (ExecutionException e) {
+                    // index it here
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (indexing != null) indexing.cancel(false);
+            indexing = null;
+            if (index == null) index = BaseIndex.of(base, limit);
+            baseStarts = index.starts;
+            baseCount = index.count;
+            baseFrom = 0;
+            baseClean = index.clean;
+            trim(); // what add() left for now
+        }
+        return baseCount;
+    }
+
+    // The newest line of base that history keeps, or null; without indexing base
+    private String lastBaseLine() {
+        if (baseCount >= 0) return baseCount > baseFrom ? line(base, baseStarts[baseCount - 1]) : null;
+        if (limit == 0) return null;
+        int end = base.limit();
+        while (end > 0 && (base.get(end - 1) & 0xff) <= ' ') end--;
+        if (end == 0) return null;
+        int start = end;
+        while (start > 0 && base.get(start - 1) != '\n') start--;
+        return line(base, start);
+    }
+
+    // A Ctrl-R index built on the indexing thread, and the first number it does not cover
+    private static final class SearchIndex {
+        final TrigramIndex index;
+        final int end;
+
+        private SearchIndex(TrigramIndex index, int end) {
+            this.index = index;
+            this.end = end;
+        }
+
+        // Index the lines of buf (by baseIndex, or indexed here for HISTSIZE max) from number
+        // baseFirst on, then entries from number entriesFirst on; entriesFirst is -1 when the
+        // entries were left for the prompt's thread to add
+        static SearchIndex of(ByteBuffer buf, Future<BaseIndex> baseIndex, int max, int baseFirst,
+                              String[] entries, int entriesFirst) throws Exception {
+            BaseIndex lines = baseIndex == null ? BaseIndex.of(buf, max) : baseIndex.get();
+            TrigramIndex index = new TrigramIndex();
+            for (int i = 0; i < lines.count; i++) index.add(baseFirst + i, line(buf, lines.starts[i]), baseFirst);
+            int end = baseFirst + lines.count;
+            for (int i = 0; i < entries.length; i++) index.add(entriesFirst + i, entries[i], baseFirst);
+            return new SearchIndex(index, entries.length > 0 ? entriesFirst + entries.length : end);
+        }
+    }
+
+    // Line starts of the newest max lines of a mapped file (all of them if max is negative)
+    private static final class BaseIndex {
+        final int[] starts;
+        final int count;
+        final boolean clean;
+
+        BaseIndex(int[] starts, int count, boolean clean) {
+            this.starts = starts;
+            this.count = count;
+            this.clean = clean;
+        }
+
+        static BaseIndex of(ByteBuffer buf, int max) {
+            boolean[] clean = new boolean[1];
+            int[] starts = index(buf, windowStart(buf, max), clean);
+            int n = 0;
+            while (n < starts.length && starts[n] >= 0) n++;
+            return new BaseIndex(starts, n, clean[0]);
+        }
+    }
+
+    // Offset of the first of the last max non-blank lines of buf (0 if there are fewer).
+    // Scans backwards, so the cost depends on max rather than on the file size.
+    private static int windowStart(ByteBuffer buf, int max) {
+        int end = buf.limit();
+        if (max < 0) return 0;
+        if (max == 0) return end;
+        int found = 0;
+        boolean blank = true;
+        for (int pos = end - 1; pos >= 0; pos--) {
+            byte c = buf.get(pos);
+            if (c == '\n') {
+                if (!blank && ++found == max) return pos + 1;
+                blank = true;
+            } else if ((c & 0xff) > ' ') {
+                blank = false;
+            }
+        }
+        return 0;
+    }
+
+    // Start offsets of the non-blank lines of buf from offset from, terminated by -1 (or the
+    // array end). clean[0] reports whether that part of buf is exactly "entry\n" repeated.
+    private static int[] index(ByteBuffer buf, int from, boolean[] clean) {
+        int limit = buf.limit();
+        int[] starts = new int[Math.max(16, (limit - from) / 32)];
+        int n = 0;
+        boolean tidy = limit == 0 || buf.get(limit - 1) == '\n';
+        int pos = from;
+        while (pos < limit) {
+            int lineStart = pos;
+            int first = -1;
+            int lastNonWs = -1;
+            while (pos < limit) {
+                byte c = buf.get(pos);
+                if (c == '\n') break;
+                if ((c & 0xff) > ' ') {
+                    if (first < 0) first = pos;
+                    lastNonWs = pos;
+                }
+                pos++;
+            }
+            if (first < 0) {
+                tidy = false; // blank line
+            } else {
+                if (first != lineStart || lastNonWs != pos - 1) tidy = false;
+                if (n == starts.length) starts = Arrays.copyOf(starts, n * 2);
+                starts[n++] = lineStart;
+            }
+            pos++; // skip '\n'
+        }
+        if (n < starts.length) starts[n] = -1;
+        clean[0] = tidy;
+        return starts;
+    }
+
+    // Decode and trim the line starting at start
+    private static String line(ByteBuffer buf, int start) {
+        int end = start;
+        int limit = buf.limit();
+        while (end < limit && buf.get(end) != '\n') end++;
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8).trim();
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0) return EMPTY;
+            if (size < SMALL_FILE) {
+                // Reading a small file is cheaper than setting up (and later tearing down) a mapping
+                ByteBuffer buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && ch.read(buf) >= 0) {
+                    // keep reading
+                }
+                buf.flip();
+                return buf;
+            }
+            // A single mapping is limited to 2 GiB; keep the newest part of larger files
+            long offset = Math.max(0, size - Integer.MAX_VALUE);
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, offset, size - offset);
+            if (offset > 0) {
+                int skip = 0;
+                while (skip < buf.limit() && buf.get(skip) != '\n') skip++;
+                buf.position(Math.min(buf.limit(), skip + 1));
+                buf = buf.slice();
+            }
+            return buf;
+        }
+    }
+
+    // Exclusive (or shared) FileChannel.lock on the sidecar "<file>.lock". The history file itself
+    // cannot be locked: compaction renames a new file over it, and a lock on the old one keeps
+    // nobody out of the new one. The sidecar's first 8 bytes count how many bytes compaction has
+    // cut from the front of file over time, so byte offsets into it stay comparable across
+    // compactions. Every shell that has file open as its HISTFILE also holds a shared lock on the
+    // byte after the count (see hold()). When the last one lets go, nobody holds an offset the
+    // count is needed for, and the sidecar is deleted.
+    //
+    // POSIX drops all of a process's locks on a file as soon as it closes any descriptor for it,
+    // so this JVM keeps one channel per sidecar for as long as anything in it uses the sidecar,
+    // and its threads queue on a ReentrantLock before locking. If the sidecar cannot be created
+    // the file is used unlocked.
+    static final class HistoryLock implements Closeable {
+        private static final long PRESENT = Long.BYTES;
+
+        private final Sidecar sidecar;
+        private final FileLock lock; // null when unlocked
+
+        private HistoryLock(Sidecar sidecar, FileLock lock) {
+            this.sidecar = sidecar;
+            this.lock = lock;
+        }
+
+        static HistoryLock acquire(Path file, boolean shared) {
+            Sidecar sidecar = Sidecar.retain(file);
+            sidecar.local.lock();
+            FileLock lock;
+            try {
+                lock = sidecar.open() ? sidecar.channel.lock(0, PRESENT, shared) : null;
+            } catch (IOException e) {
+                lock = null;
+            }
+            return new HistoryLock(sidecar, lock);
+        }
+
+        // Mark file as some shell's HISTFILE until the returned handle is closed
+        static Closeable hold(Path file) {
+            Sidecar sidecar = Sidecar.retain(file);
+            sidecar.local.lock();
+            try {
+                sidecar.open();
+            } finally {
+                sidecar.local.unlock();
+            }
+            return () -> Sidecar.release(sidecar);
+        }
+
+        long trimmed() throws IOException {
+            if (lock == null) return 0;
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES);
+            while (buf.hasRemaining() && sidecar.channel.read(buf, buf.position()) > 0) {
+                // keep reading
+            }
+            return buf.hasRemaining() ? 0 : buf.getLong(0);
+        }
+
+        void addTrimmed(long bytes) throws IOException {
+            if (lock == null || bytes == 0) return;
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES).putLong(0, trimmed() + bytes);
+            while (buf.hasRemaining()) sidecar.channel.write(buf, buf.position());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (lock != null) lock.release();
+            } finally {
+                sidecar.local.unlock();
+                Sidecar.release(sidecar);
+            }
+        }
+
+        // This JVM's channel on one sidecar, open while users > 0. Holds the shared lock on the
+        // byte at PRESENT for the whole time, so no other shell deletes the sidecar meanwhile.
+        private static final class Sidecar {
+            private static final Map<Path, Sidecar> OPEN = new HashMap<>(); // guarded by itself
+            // Written at PRESENT just before a sidecar is deleted, for shells that opened it before
+            private static final byte DELETED = 1;
+
+            final Path path;
+            final ReentrantLock local = new ReentrantLock();
+            FileChannel channel; // null until opened, or when it cannot be
+            FileLock present;
+            int users;           // guarded by OPEN
+
+            private Sidecar(Path path) {
+                this.path = path;
+            }
+
+            static Sidecar retain(Path file) {
+                Path path = file.toAbsolutePath().normalize();
+                path = path.resolveSibling(path.getFileName() + ".lock");
+                synchronized (OPEN) {
+                    Sidecar sidecar = OPEN.computeIfAbsent(path, Sidecar::new);
+                    sidecar.users++;
+                    return sidecar;
+                }
+            }
+
+            // The last user of this JVM deletes the sidecar if no other shell is using it either
+            static void release(Sidecar sidecar) {
+                synchronized (OPEN) {
+                    if (--sidecar.users > 0) return;
+                    OPEN.remove(sidecar.path);
+                    sidecar.delete();
+                }
+            }
+
+            // With local held: open the sidecar and join its users. Whether it is open.
+            boolean open() {
+                if (channel != null) return true;
+                try {
+                    for (;;) {
+                        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE);
+                        present = channel.lock(PRESENT, 1, true);
+                        ByteBuffer mark = ByteBuffer.allocate(1);
+                        if (channel.read(mark, PRESENT) <= 0 || mark.get(0) != DELETED) return true;
+                        // deleted after it was opened here: a new one takes its place
+                        channel.close();
+                        channel = null;
+                    }
+                } catch (IOException e) {
+                    closeChannel();
+                    return false;
+                }
+            }
+
+            private void delete() {
+                if (channel == null) return;
+                try {
+                    // Only for a moment; these fail if any other shell has the count or the
+                    // sidecar itself locked
+                    present.release();
+                    FileLock all = channel.tryLock(0, PRESENT + 1, false);
+                    if (all != null) {
+                        channel.write(ByteBuffer.wrap(new byte[]{DELETED}), PRESENT);
+                        Files.deleteIfExists(path);
+                    }
+                } catch (IOException | OverlappingFileLockException ignored) {
+                    // someone else is using it
+                } finally {
+                    closeChannel();
+                }
+            }
+
+            private void closeChannel() {
+                if (channel == null) return;
+                try {
+                    channel.close(); // releases every lock on it
+                } catch (IOException ignored) {
+                }
+                channel = null;
+                present = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+// Job table for commands started with `&`.
+// A job completes when its exit status future does, which Main builds from Process.onExit()
+// and the builtin stage futures, so nothing is polled. Finished jobs are queued so the REPL can
+// report them before the next prompt.
+final class Jobs {
+    // Job id -> job, in id order (what `jobs` prints)
+    private final TreeMap<Integer, Job> table = new TreeMap<>();
+    // Most recently started or resumed job last: the last one is `+`, the one before it `-`
+    private final List<Job> recent = new ArrayList<>();
+    // Finished jobs not yet reported
+    private final List<Job> finished = new ArrayList<>();
+
+    static final class Job {
+        final int id;
+        final String command;
+        final List<Process> processes;
+        // Completes once the whole pipeline has finished
+        CompletableFuture<Void> completion;
+        volatile boolean done;
+        volatile int status;
+
+        Job(int id, String command, List<Process> processes) {
+            this.id = id;
+            this.command = command;
+            this.processes = processes;
+        }
+
+        // PID reported when the job starts: the last process, or the shell for builtin-only jobs
+        long pid() {
+            if (processes.isEmpty()) return ProcessHandle.current().pid();
+            return processes.get(processes.size() - 1).pid();
+        }
+    }
+
+    // Register a started pipeline or list. status completes with its exit status once all of it
+    // has finished; processes may still grow while a background list runs.
+    Job add(String command, List<Process> processes, CompletableFuture<Integer> status) {
+        Job job;
+        synchronized (this) {
+            int id = table.isEmpty() ? 1 : table.lastKey() + 1;
+            job = new Job(id, command, processes);
+            table.put(id, job);
+            recent.add(job);
+        }
+        job.completion = status.handle((value, error) -> {
+            finish(job, error == null ? value : 1);
+            return null;
+        });
+        return job;
+    }
+
+    private synchronized void finish(Job job, int status) {
+        job.status = status;
+        job.done = true;
+        if (table.get(job.id) == job) finished.add(job);
+    }
+
+    // Job for a jobspec (%n, %+, %%, %-, or null for the current job); null if there is none
+    synchronized Job find(String spec) {
+        if (spec == null || "%+".equals(spec) || "%%".equals(spec)) {
+            return recent.isEmpty() ? null : recent.get(recent.size() - 1);
+        }
+        if ("%-".equals(spec)) {
+            return recent.size() < 2 ? null : recent.get(recent.size() - 2);
+        }
+        try {
+            return table.get(Integer.parseInt(spec.startsWith("%") ? spec.substring(1) : spec));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Job whose pipeline contains pid, or null
+    synchronized Job byPid(long pid) {
+        for (Job job : table.values()) {
+            for (Process p : job.processes) {
+                if (p.pid() == pid) return job;
+            }
+        }
+        return null;
+    }
+
+    synchronized List<Job> all() {
+        return new ArrayList<>(table.values());
+    }
+
+    // fg/bg: make job the current one
+    synchronized void touch(Job job) {
+        if (recent.remove(job)) recent.add(job);
+    }
+
+    // Forget a job without reporting it (fg waited for it in the foreground)
+    synchronized void remove(Job job) {
+        table.remove(job.id);
+        recent.remove(job);
+        finished.remove(job);
+    }
+
+    // `jobs`: one line per job; finished ones are shown once and then dropped
+    synchronized String list() {
+        StringBuilder out = new StringBuilder();
+        for (Job job : new ArrayList<>(table.values())) {
+            out.append(line(job)).append(System.lineSeparator());
+            if (job.done) remove(job);
+        }
+        return out.toString();
+    }
+
+    // Lines for jobs that finished since the last call; they leave the table
+    synchronized String takeFinished() {
+        if (finished.isEmpty()) return "";
+        StringBuilder out = new StringBuilder();
+        for (Job job : new ArrayList<>(finished)) {
+            out.append(line(job)).append(System.lineSeparator());
+            remove(job);
+        }
+        return out.toString();
+    }
+
+    // "[1]+  Running                 sleep 10 &" as bash prints it
+    synchronized String line(Job job) {
+        char mark = ' ';
+        int pos = recent.indexOf(job);
+        if (pos >= 0 && pos == recent.size() - 1) mark = '+';
+        else if (pos >= 0 && pos == recent.size() - 2) mark = '-';
+        String state;
+        if (job.done) state = job.status == 0 ? "Done" : "Exit " + job.status;
+        else if (stopped(job)) state = "Stopped";
+        else state = "Running";
+        StringBuilder sb = new StringBuilder();
+        sb.append('[').append(job.id).append(']').append(mark).append("  ").append(state);
+        for (int i = state.length(); i < 24; i++) sb.append(' ');
+        sb.append(job.command);
+        if (!job.done && !"Stopped".equals(state)) sb.append(" &");
+        return sb.toString();
+    }
+
+    // A job is stopped (SIGSTOP/SIGTSTP) if any of its processes is; read from /proc on Linux
+    static boolean stopped(Job job) {
+        for (Process p : job.processes) {
+            if (!p.isAlive()) continue;
+            try {
+                String stat = new String(Files.readAllBytes(Paths.get("/proc", Long.toString(p.pid()), "stat")),
+                                         StandardCharsets.US_ASCII);
+                // Field 3, after the parenthesised command name
+                int close = stat.lastIndexOf(')');
+                if (close >= 0 && close + 2 < stat.length() && stat.charAt(close + 2) == 'T') return true;
+            } catch (IOException e) {
+                // no procfs: assume running
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Single-pass lexer for a command line. Quoting and escapes are resolved while scanning, and
+// operators come out as typed tokens, so a quoted '|' or '>' is an ordinary word character.
+// `$?` outside single quotes is left in the word as the STATUS placeholder, because parsed lines
+// are cached and the value is only known when the command runs (see Main.expand).
+final class Lexer {
+    static final char STATUS = '\0';
+
+    enum Kind {
+        WORD,     // text: the word with quotes removed
+        PIPE,     // |
+        REDIRECT, // [n]< [n]> [n]>> [n]>& [n]<& &> &>> <<< (<< is lexed but not supported);
+                  // fd is -1 without a digit prefix; the target is the following WORD
+        AMP,      // &
+        AND_IF,   // &&
+        OR_IF,    // ||
+        SEMI      // ;
+    }
+
+    static final class Token {
+        final Kind kind;
+        final String text;
+        final int fd;
+        final int start; // source offsets, for messages and job display
+        final int end;
+
+        Token(Kind kind, String text, int fd, int start, int end) {
+            this.kind = kind;
+            this.text = text;
+            this.fd = fd;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return kind == Kind.WORD ? text : kind + "(" + text + ")";
+        }
+    }
+
+    private Lexer() {
+    }
+
+    static List<Token> lex(String input) {
+        List<Token> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inWord = false;      // a word has started (possibly with an empty "" so far)
+        boolean quoted = false;      // some of the current word was quoted or escaped
+        int wordStart = 0;
+        boolean inSingle = false;
+        boolean inDouble = false;
+        int n = input.length();
+        for (int i = 0; i < n; i++) {
+            char c = input.charAt(i);
+            if (inSingle) {
+                if (c == '\'') {
+                    inSingle = false;
+                } else {
+                    current.append(c); // backslashes are literal in single quotes
+                }
+                continue;
+            }
+            if (inDouble) {
+                if (c == '"') {
+                    inDouble = false;
+                } else if (c == '\\' && i + 1 < n && (input.charAt(i + 1) == '"' || input.charAt(i + 1) == '\\'
+                                                      || input.charAt(i + 1) == '$')) {
+                    // In double quotes, backslash escapes ", \ and $; it is kept literally before other chars
+                    current.append(input.charAt(++i));
+                } else if (c == '$' && i + 1 < n && input.charAt(i + 1) == '?') {
+                    current.append(STATUS);
+                    i++;
+                } else {
+                    current.append(c);
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                if (inWord) tokens.add(word(current, wordStart, i));
+                inWord = false;
+                continue;
+            }
+            if (c == '|' || c == ';' || c == '>' || c == '<' || c == '&') {
+                int fd = -1;
+                int start = i;
+                if ((c == '>' || c == '<') && inWord && !quoted && current.length() == 1
+                    && current.charAt(0) >= '0' && current.charAt(0) <= '2') {
+                    // 2>file: the digit is the descriptor, not a word. Only 0-2 exist here, so
+                    // 3>file stays the word 3 followed by >file.
+                    fd = current.charAt(0) - '0';
+                    start = wordStart;
+                } else if (inWord) {
+                    tokens.add(word(current, wordStart, i));
+                }
+                inWord = false;
+                String op = operator(input, i);
+                i += op.length() - 1;
+                Kind kind;
+                switch (op) {
+                    case "|": kind = Kind.PIPE; break;
+                    case "||": kind = Kind.OR_IF; break;
+                    case "&": kind = Kind.AMP; break;
+                    case "&&": kind = Kind.AND_IF; break;
+                    case ";": kind = Kind.SEMI; break;
+                    default: kind = Kind.REDIRECT;
+                }
+                tokens.add(new Token(kind, op, fd, start, i + 1));
+                continue;
+            }
+            if (!inWord) {
+                inWord = true;
+                quoted = false;
+                wordStart = i;
+                current.setLength(0);
+            }
+            if (c == '\'') {
+                inSingle = true;
+                quoted = true;
+            } else if (c == '"') {
+                inDouble = true;
+                quoted = true;
+            } else if (c == '\\') {
+                quoted = true;
+                // Outside quotes, backslash escapes next char (including whitespace)
+                current.append(i + 1 < n ? input.charAt(++i) : '\\');
+            } else if (c == '$' && i + 1 < n && input.charAt(i + 1) == '?') {
+                current.append(STATUS);
+                i++;
+            } else {
+                current.append(c);
+            }
+        }
+        if (inWord) tokens.add(word(current, wordStart, n));
+        return tokens;
+    }
+
+    // The longest operator starting at input[i], which is one of | ; > < &
+    private static String operator(String input, int i) {
+        char next = i + 1 < input.length() ? input.charAt(i + 1) : 0;
+        switch (input.charAt(i)) {
+            case '|':
+                return next == '|' ? "||" : "|";
+            case ';':
+                return ";";
+            case '>':
+                return next == '>' ? ">>" : next == '&' ? ">&" : next == '|' ? ">|" : ">";
+            case '<':
+                if (next == '<') return input.startsWith("<<<", i) ? "<<<" : "<<";
+                return next == '&' ? "<&" : "<";
+            default:
+                if (next == '>') return input.startsWith("&>>", i) ? "&>>" : "&>";
+                return next == '&' ? "&&" : "&";
+        }
+    }
+
+    private static Token word(StringBuilder current, int start, int end) {
+        Token t = new Token(Kind.WORD, current.toString(), 0, start, end);
+        current.setLength(0);
+        return t;
+    }
+}
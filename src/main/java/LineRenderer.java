@@ -0,0 +1,91 @@
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+// Terminal output for the interactive line editor.
+// It remembers what is currently shown after the prompt and turns each buffer change into the
+// smallest edit: typed characters are just echoed, erasing moves the cursor back and clears to
+// end of line, and history/completion replacements only rewrite the part that differs.
+// During Ctrl-R the line shows the search prompt instead; the next update redraws the whole line.
+// Output is collected and written with a single write() per flush.
+final class LineRenderer {
+    private static final String PROMPT = "$ ";
+    private static final String CLEAR_TO_EOL = "\u001B[K";
+
+    private final PrintStream out;
+    private final StringBuilder pending = new StringBuilder(256);
+    // Text after the prompt as the terminal currently shows it
+    private final StringBuilder shown = new StringBuilder(256);
+    // The line shows the Ctrl-R search prompt rather than the prompt and buffer
+    private boolean searching;
+
+    LineRenderer(PrintStream out) {
+        this.out = out;
+    }
+
+    // Start a fresh input line
+    void prompt() {
+        pending.append(PROMPT);
+        shown.setLength(0);
+        searching = false;
+    }
+
+    // Bring the terminal in line with buffer, emitting only the difference
+    void update(CharSequence buffer) {
+        if (searching) {
+            pending.append('\r').append(PROMPT).append(buffer).append(CLEAR_TO_EOL);
+            shown.setLength(0);
+            shown.append(buffer);
+            searching = false;
+            return;
+        }
+        int common = 0;
+        int max = Math.min(shown.length(), buffer.length());
+        while (common < max && shown.charAt(common) == buffer.charAt(common)) common++;
+        int back = shown.length() - common;
+        if (back > 0) {
+            if (back <= 4) {
+                for (int i = 0; i < back; i++) pending.append('\b');
+            } else {
+                pending.append("\u001B[").append(back).append('D');
+            }
+            pending.append(CLEAR_TO_EOL);
+        }
+        pending.append(buffer, common, buffer.length());
+        shown.setLength(common);
+        shown.append(buffer, common, buffer.length());
+    }
+
+    // Ctrl-R: show the query and the entry it currently matches in place of prompt and buffer
+    void search(CharSequence query, CharSequence match, boolean failed) {
+        pending.append('\r').append(failed ? "(failed reverse-i-search)`" : "(reverse-i-search)`")
+               .append(query).append("': ").append(match).append(CLEAR_TO_EOL);
+        searching = true;
+    }
+
+    void bell() {
+        pending.append('\u0007');
+    }
+
+    // Finish the current line (Enter)
+    void newline() {
+        pending.append('\n');
+        shown.setLength(0);
+        searching = false;
+    }
+
+    // Print lines below the input (candidate lists), then restore prompt and buffer
+    void printAbove(CharSequence text, CharSequence buffer) {
+        pending.append('\n').append(text).append('\n').append(PROMPT).append(buffer).append(CLEAR_TO_EOL);
+        shown.setLength(0);
+        shown.append(buffer);
+        searching = false;
+    }
+
+    void flush() {
+        if (pending.length() == 0) return;
+        byte[] bytes = pending.toString().getBytes(StandardCharsets.UTF_8);
+        pending.setLength(0);
+        out.write(bytes, 0, bytes.length);
+        out.flush();
+    }
+}
@@ -1,79 +1,197 @@
-import java.util.Scanner;
-import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
  
 
 public class Main {
-    // In-memory command history (stores trimmed input lines in order)
-    private static final List<String> HISTORY = new ArrayList<>();
-    // Index marker for history -a (append since last -a)
-    private static int LAST_APPEND_INDEX = 0;
+    // External commands are exec'd directly unless -Dshell.launch=trampoline asks for /bin/sh
+    private static final boolean DIRECT_LAUNCH = !"trampoline".equals(System.getProperty("shell.launch"));
+    // Where the JDK itself looks for a program named without a slash
+    private static final String JVM_PATH = System.getenv("PATH");
+    // A shell whose exec takes -a, for running a program under another argv[0]; null if none
+    private static final String ARGV0_SHELL = argv0Shell();
+    // Buffer size of the in-memory pipe between two adjacent builtin pipeline stages
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    // Status of a builtin stage whose output pipe was closed, as for a process killed by SIGPIPE
+    private static final int BROKEN_PIPE = 128 + 13;
+    // Runs builtin pipeline stages: virtual threads when the JDK has them, else reused daemon threads
+    private static final ExecutorService STAGES = stageExecutor();
+    // Upper bound on parallel -j: every worker holds a STAGES thread until the items run out
+    private static final int PARALLEL_MAX_WORKERS = Math.max(32, 4 * Runtime.getRuntime().availableProcessors());
+    // Builtin commands by name; every way of running a command looks here first
+    private static final Map<String, Builtin> BUILTINS = builtins();
+    // In-process cat, head, tail, wc, grep and tee. Off until `enable name` selects one for the
+    // session; until then (and after `enable -n name`) the name runs the program from PATH.
+    private static final Map<String, Builtin> UTILITIES = Utilities.table();
+    // Offered by TAB completion
+    private static final String[] BUILTIN_NAMES = BUILTINS.keySet().toArray(new String[0]);
     public static void main(String[] args) throws Exception {
-    Scanner scanner = new Scanner(System.in);
         // Track current working directory inside the shell
         File currentDir = new File(System.getProperty("user.dir")).getCanonicalFile();
 
-        // Load history from HISTFILE on startup (if provided)
-        String histFileEnv = System.getenv("HISTFILE");
-        if (histFileEnv != null && !histFileEnv.isEmpty()) {
+        // --server [socket]: run scripts sent by ShellClient instead of reading commands here
+        if (args.length > 0 && "--server".equals(args[0])) {
+            ShellServer.serve(args.length > 1 ? Path.of(args[1]) : ShellServer.defaultSocket());
+            return;
+        }
+
+        // Non-interactive runs: -c 'commands', a script file, or stdin that is not a terminal.
+        // -i forces the interactive line editor even without a console.
+        String commandArg = null;
+        String scriptArg = null;
+        boolean forceInteractive = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("-c".equals(args[i]) && i + 1 < args.length) {
+                commandArg = args[++i];
+            } else if ("-i".equals(args[i])) {
+                forceInteractive = true;
+            } else if (scriptArg == null) {
+                scriptArg = args[i];
+            }
+        }
+        if (commandArg != null) {
+            System.exit(runBatch(new BufferedReader(new StringReader(commandArg)), currentDir));
+        }
+        if (scriptArg != null) {
+            BufferedReader script;
             try {
-                File hf = resolvePath(currentDir, histFileEnv);
-                List<String> lines = Files.readAllLines(hf.toPath(), StandardCharsets.UTF_8);
-                for (String line : lines) {
-                    String t = line.trim();
-                    if (!t.isEmpty()) HISTORY.add(t);
-                }
-                // After loading existing history, new appends should start from here
-                LAST_APPEND_INDEX = HISTORY.size();
-            } catch (IOException ignored) {
-                // If no file or unreadable, start with empty history
+                script = Files.newBufferedReader(resolvePath(currentDir, scriptArg).toPath(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.println(scriptArg + ": No such file or directory");
+                System.exit(127);
+                return;
             }
+            int status;
+            try (BufferedReader r = script) {
+                status = runBatch(r, currentDir);
+            }
+            System.exit(status);
+        }
+        if (!forceInteractive && !TerminalMode.stdinIsTerminal()) {
+            System.exit(runBatch(new BufferedReader(new InputStreamReader(System.in), 1 << 16), currentDir));
         }
 
+    Session session = consoleSession(currentDir);
+    // Interactive sessions save each command to HISTFILE as soon as it is entered
+    session.history.appendOnAdd(true);
+    session.interactive = true;
+    session.frecency.open(frecencyFile(currentDir), session.history);
+
     // Simple line editor to support TAB completion for builtins
     InputStream in = System.in;
     StringBuilder lineBuffer = new StringBuilder();
-    // No explicit tabstop/prompt width needed with newline redraw
+    // Renders prompt and buffer edits incrementally, one terminal write per input burst
+    LineRenderer screen = new LineRenderer(System.out);
     int ignoreSpaces = 0; // number of spaces to consume silently after a detected tab-expansion
 
     // Try to enable raw mode so we receive key presses like TAB. Ignore failures (e.g., non-tty).
-    boolean rawEnabled = setRawMode(true);
+    TerminalMode terminal = TerminalMode.open();
+    boolean rawEnabled = terminal.raw();
     // Track double-TAB state for ambiguous completion lists
     String lastTabPrefix = null;
     int tabPressCount = 0;
 
         // REPL: print prompt, read chars, handle TAB/backspace/enter, repeat until EOF
         while (true) {
-            System.out.print("$ ");
-            System.out.flush();
+            // Report background jobs that finished while the last command ran
+            String finished = session.jobs.takeFinished();
+            if (!finished.isEmpty()) {
+                System.out.print(finished);
+                System.out.flush();
+            }
+            screen.prompt();
+            completionIndex(session).revalidate();
+            session.history.prepareSearch();
 
             lineBuffer.setLength(0);
             // Reset per-prompt history navigation state (-1 means not browsing)
             int historyCursor = -1;
+            // Ctrl-R search state: the query (null when not searching), the index of the entry it
+            // matches (-1 for none yet), whether the last key found nothing, and the line from before
+            StringBuilder searchQuery = null;
+            int searchMatch = -1;
+            boolean searchFailed = false;
+            String searchSaved = null;
 
             int ch;
             readLoop:
-            while ((ch = in.read()) != -1) {
+            while ((ch = readKey(session, in, screen)) != -1) {
                 if (ch == '\r') {
                     continue;
                 }
+                if (searchQuery != null) {
+                    // Reverse incremental search: printable keys extend the query, Ctrl-R steps to
+                    // older matches, Ctrl-G gives up; any other key takes the match and is then
+                    // handled as usual (Enter runs it, arrows browse on from it)
+                    if (ch == 18 || ch >= ' ' || ch == '\b') {
+                        int from;
+                        if (ch == 18) { // Ctrl-R: the next older match
+                            from = searchMatch >= 0 ? searchMatch : session.history.size();
+                        } else if (ch == 127 || ch == '\b') {
+                            if (searchQuery.length() > 0) searchQuery.setLength(searchQuery.length() - 1);
+                            searchMatch = -1;
+                            from = session.history.size();
+                        } else { // a longer query may still match the current entry
+                            searchQuery.append((char) ch);
+                            from = searchMatch >= 0 ? searchMatch + 1 : session.history.size();
+                        }
+                        int found = session.history.searchBackward(searchQuery.toString(), from);
+                        searchFailed = found < 0 && searchQuery.length() > 0;
+                        if (found >= 0) searchMatch = found;
+                        else if (searchFailed) screen.bell();
+                        screen.search(searchQuery, searchMatch >= 0 ? session.history.get(searchMatch) : "", searchFailed);
+                        continue;
+                    }
+                    lineBuffer.setLength(0);
+                    if (ch == 7) { // Ctrl-G: back to the line as it was
+                        lineBuffer.append(searchSaved);
+                    } else if (searchMatch >= 0) {
+                        lineBuffer.append(session.history.get(searchMatch));
+                        historyCursor = searchMatch;
+                    } else {
+                        lineBuffer.append(searchSaved);
+                    }
+                    screen.update(lineBuffer);
+                    searchQuery = null;
+                    if (ch == 7) continue;
+                }
+                if (ch == 18) { // Ctrl-R: start a reverse incremental search of history
+                    searchQuery = new StringBuilder();
+                    searchMatch = -1;
+                    searchFailed = false;
+                    searchSaved = lineBuffer.toString();
+                    screen.search(searchQuery, "", false);
+                    lastTabPrefix = null;
+                    tabPressCount = 0;
+                    continue;
+                }
                 if (ch == '\n') {
-                    System.out.print("\n");
-                    System.out.flush();
+                    screen.newline();
                     break readLoop; // process the current line
                 }
                 if (ignoreSpaces > 0 && ch == ' ') {
@@ -85,24 +203,22 @@ public class Main {
                     if (ch2 == '[') {
                         int ch3 = in.read();
                         if (ch3 == 'A') { // UP arrow
-                            if (HISTORY.isEmpty()) {
-                                System.out.print("\u0007");
-                                System.out.flush();
+                            if (session.history.size() == 0) {
+                                screen.bell();
                             } else {
-                                if (historyCursor == -1) historyCursor = HISTORY.size();
+                                if (historyCursor == -1) historyCursor = session.history.size();
                                 if (historyCursor > 0) historyCursor--;
                                 // else already at oldest; keep at 0 and bell
-                                if (historyCursor == 0 && HISTORY.size() > 0 && !HISTORY.get(0).equals(lineBuffer.toString())) {
+                                if (historyCursor == 0 && session.history.size() > 0 && !session.history.get(0).equals(lineBuffer.toString())) {
                                     // ok
                                 }
-                                if (historyCursor == 0 && HISTORY.size() > 0 && HISTORY.get(0).equals(lineBuffer.toString())) {
+                                if (historyCursor == 0 && session.history.size() > 0 && session.history.get(0).equals(lineBuffer.toString())) {
                                     // pressing up at oldest repeats; bell
-                                    System.out.print("\u0007");
-                                    System.out.flush();
+                                    screen.bell();
                                 }
                                 lineBuffer.setLength(0);
-                                lineBuffer.append(HISTORY.get(historyCursor));
-                                redrawLine(lineBuffer.toString());
+                                lineBuffer.append(session.history.get(historyCursor));
+                                screen.update(lineBuffer);
                                 // reset completion state
                                 lastTabPrefix = null;
                                 tabPressCount = 0;
@@ -110,19 +226,18 @@ public class Main {
                             continue;
                         } else if (ch3 == 'B') { // DOWN arrow
                             if (historyCursor == -1) {
-                                System.out.print("\u0007");
-                                System.out.flush();
+                                screen.bell();
                             } else {
-                                if (historyCursor < HISTORY.size() - 1) {
+                                if (historyCursor < session.history.size() - 1) {
                                     historyCursor++;
                                     lineBuffer.setLength(0);
-                                    lineBuffer.append(HISTORY.get(historyCursor));
+                                    lineBuffer.append(session.history.get(historyCursor));
                                 } else {
                                     // Move to current empty line
-                                    historyCursor = HISTORY.size();
+                                    historyCursor = session.history.size();
                                     lineBuffer.setLength(0);
                                 }
-                                redrawLine(lineBuffer.toString());
+                                screen.update(lineBuffer);
                                 lastTabPrefix = null;
                                 tabPressCount = 0;
                             }
@@ -137,88 +252,51 @@ public class Main {
                     }
                 }
                 if (ch == '\t') {
-                    // Direct TAB received: complete first token to echo/exit if unambiguous
+                    // Direct TAB received: complete the first token against builtins and PATH executables
                     String current = lineBuffer.toString();
                     int firstSpace = current.indexOf(' ');
                     if (firstSpace == -1) {
-                        String[] builtins = {"echo", "exit"};
-                        LinkedHashSet<String> cands = new LinkedHashSet<>();
-                        for (String b : builtins) {
-                            if (b.startsWith(current)) cands.add(b);
-                        }
-                        // Include executables from PATH
-                        List<String> execMatches = findExecutablesByPrefix(current);
-                        cands.addAll(execMatches);
-                        String match = null;
-                        if (cands.size() == 1) {
-                            match = cands.iterator().next();
-                        }
-                        if (match != null) {
-                            String completed = match + " ";
+                        CompletionIndex.Matches matches = complete(session, current);
+                        if (matches.size() == 1) {
                             lineBuffer.setLength(0);
-                            lineBuffer.append(completed);
-                            redrawLine(lineBuffer.toString());
+                            lineBuffer.append(matches.get(0)).append(' ');
+                            screen.update(lineBuffer);
                             ignoreSpaces = 0; // reset any pending space swallowing
                             // reset double-tab state
                             lastTabPrefix = null;
                             tabPressCount = 0;
                             historyCursor = -1;
-                        } else {
-                            // Ambiguous or no matches
-                            if (!execMatches.isEmpty() && cands.size() > 1) {
-                                // Try partial completion to the longest common prefix among executables
-                                String lcp = longestCommonPrefix(execMatches);
-                                if (lcp.length() > current.length()) {
-                                    // If LCP uniquely identifies a single executable, add trailing space
-                                    List<String> after = findExecutablesByPrefix(lcp);
-                                    lineBuffer.setLength(0);
-                                    if (after.size() == 1) {
-                                        lineBuffer.append(lcp).append(' ');
-                                    } else {
-                                        lineBuffer.append(lcp);
-                                    }
-                                    redrawLine(lineBuffer.toString());
-                                    lastTabPrefix = null;
-                                    tabPressCount = 0;
-                                    historyCursor = -1;
-                                } else {
-                                if (current.equals(lastTabPrefix) && tabPressCount >= 1) {
-                                    // Second TAB: print list of matches (executables only) sorted, two spaces separated
-                                    List<String> sorted = new ArrayList<>(new LinkedHashSet<>(execMatches));
-                                    Collections.sort(sorted);
-                                    System.out.print("\n");
-                                    for (int i = 0; i < sorted.size(); i++) {
-                                        if (i > 0) System.out.print("  ");
-                                        System.out.print(sorted.get(i));
-                                    }
-                                    System.out.print("\n");
-                                    System.out.flush();
-                                    // Reprint prompt and current buffer (unchanged) on a fresh line
-                                    System.out.print("$ ");
-                                    System.out.print(lineBuffer.toString());
-                                    System.out.print("\u001B[K");
-                                    System.out.flush();
-                                    // reset state after listing
-                                    lastTabPrefix = null;
-                                    tabPressCount = 0;
-                                } else {
-                                    System.out.print("\u0007");
-                                    System.out.flush();
-                                    lastTabPrefix = current;
-                                    tabPressCount = 1;
-                                }
-                                }
-                            } else {
-                                // No matches: just bell and reset
-                                System.out.print("\u0007");
-                                System.out.flush();
+                        } else if (matches.size() > 1) {
+                            // Ambiguous: try partial completion to the longest common prefix
+                            String lcp = matches.commonPrefix();
+                            if (lcp.length() > current.length()) {
+                                // If LCP uniquely identifies a single name, add trailing space
+                                lineBuffer.setLength(0);
+                                lineBuffer.append(lcp);
+                                if (complete(session, lcp).size() == 1) lineBuffer.append(' ');
+                                screen.update(lineBuffer);
                                 lastTabPrefix = null;
                                 tabPressCount = 0;
+                                historyCursor = -1;
+                            } else if (current.equals(lastTabPrefix) && tabPressCount >= 1) {
+                                // Second TAB: print the matches, most used first, two spaces separated
+                                printCandidates(screen, session.frecency.rank(matches.list(), session.dir), lineBuffer);
+                                // reset state after listing
+                                lastTabPrefix = null;
+                                tabPressCount = 0;
+                            } else {
+                                screen.bell();
+                                lastTabPrefix = current;
+                                tabPressCount = 1;
                             }
+                        } else {
+                            // No matches: just bell and reset
+                            screen.bell();
+                            lastTabPrefix = null;
+                            tabPressCount = 0;
                         }
                     } else {
-                        System.out.print("\u0007");
-                        System.out.flush();
+                        screen.bell();
                     }
                     continue;
                 }
@@ -228,38 +306,27 @@ public class Main {
                         String current = lineBuffer.toString();
                         int firstSpace = current.indexOf(' ');
                         if (firstSpace == -1) {
-                            String[] builtins = {"echo", "exit"};
-                            LinkedHashSet<String> cands = new LinkedHashSet<>();
-                            for (String b : builtins) {
-                                if (b.startsWith(current)) cands.add(b);
-                            }
-                            List<String> execMatches = findExecutablesByPrefix(current);
-                            cands.addAll(execMatches);
-                            if (cands.size() == 1) {
-                                String completed = cands.iterator().next() + " ";
+                            CompletionIndex.Matches matches = complete(session, current);
+                            if (matches.size() == 1) {
                                 // Treat this as a TAB expansion: swallow remaining spaces and redraw
                                 ignoreSpaces = 4; // small number just in case
                                 lineBuffer.setLength(0);
-                                lineBuffer.append(completed);
-                                redrawLine(lineBuffer.toString());
+                                lineBuffer.append(matches.get(0)).append(' ');
+                                screen.update(lineBuffer);
                                 // reset double-tab state
                                 lastTabPrefix = null;
                                 tabPressCount = 0;
                                 historyCursor = -1;
                                 continue;
-                            } else if (!execMatches.isEmpty() && cands.size() > 1) {
-                                // Ambiguous: try partial LCP completion first
+                            } else if (matches.size() > 1) {
+                                // Ambiguous: partial LCP completion
                                 ignoreSpaces = 4; // swallow expansion spaces
-                                String lcp = longestCommonPrefix(execMatches);
+                                String lcp = matches.commonPrefix();
                                 if (lcp.length() > current.length()) {
-                                    List<String> after = findExecutablesByPrefix(lcp);
                                     lineBuffer.setLength(0);
-                                    if (after.size() == 1) {
-                                        lineBuffer.append(lcp).append(' ');
-                                    } else {
-                                        lineBuffer.append(lcp);
-                                    }
-                                    redrawLine(lineBuffer.toString());
+                                    lineBuffer.append(lcp);
+                                    if (complete(session, lcp).size() == 1) lineBuffer.append(' ');
+                                    screen.update(lineBuffer);
                                     lastTabPrefix = null;
                                     tabPressCount = 0;
                                     historyCursor = -1;
@@ -267,24 +334,11 @@ public class Main {
                                 }
                                 // If no progress from LCP, emulate double-TAB list behavior
                                 if (current.equals(lastTabPrefix) && tabPressCount >= 1) {
-                                    List<String> sorted = new ArrayList<>(new LinkedHashSet<>(execMatches));
-                                    Collections.sort(sorted);
-                                    System.out.print("\n");
-                                    for (int i = 0; i < sorted.size(); i++) {
-                                        if (i > 0) System.out.print("  ");
-                                        System.out.print(sorted.get(i));
-                                    }
-                                    System.out.print("\n");
-                                    System.out.flush();
-                                    System.out.print("$ ");
-                                    System.out.print(lineBuffer.toString());
-                                    System.out.print("\u001B[K");
-                                    System.out.flush();
+                                    printCandidates(screen, session.frecency.rank(matches.list(), session.dir), lineBuffer);
                                     lastTabPrefix = null;
                                     tabPressCount = 0;
                                 } else {
-                                    System.out.print("\u0007");
-                                    System.out.flush();
+                                    screen.bell();
                                     lastTabPrefix = current;
                                     tabPressCount = 1;
                                 }
@@ -297,7 +351,7 @@ public class Main {
                     }
                     // Regular space (not a completion): update buffer and redraw
                     lineBuffer.append(' ');
-                    redrawLine(lineBuffer.toString());
+                    screen.update(lineBuffer);
                     // reset double-tab state when buffer changes
                     lastTabPrefix = null;
                     tabPressCount = 0;
@@ -307,878 +361,1470 @@ public class Main {
                 if (ch == 127 || ch == '\b') { // handle backspace/delete
                     if (lineBuffer.length() > 0) {
                         lineBuffer.setLength(lineBuffer.length() - 1);
-                        redrawLine(lineBuffer.toString());
+                        screen.update(lineBuffer);
                         // reset double-tab state when buffer changes
                         lastTabPrefix = null;
                         tabPressCount = 0;
                         historyCursor = -1;
                     } else {
-                        System.out.print("\u0007");
-                        System.out.flush();
+                        screen.bell();
                     }
                     continue;
                 }
                 // Regular printable character: update buffer and redraw
                 lineBuffer.append((char) ch);
-                redrawLine(lineBuffer.toString());
+                screen.update(lineBuffer);
                 // reset double-tab state when buffer changes
                 lastTabPrefix = null;
                 tabPressCount = 0;
                 historyCursor = -1;
             }
 
+            redraw(session, screen);
             if (ch == -1) {
                 break; // EOF
             }
 
-            String input = lineBuffer.toString();
-            input = input.trim();
+            String typed = lineBuffer.toString();
+            String input = typed.trim();
             if (input.isEmpty()) {
                 continue; // empty line, show prompt again
             }
 
-            // Record every non-empty command line in history BEFORE executing it
-            HISTORY.add(input);
+            // Record every non-empty command line in history BEFORE executing it (HISTCONTROL permitting)
+            session.history.add(typed);
+            session.frecency.record(input, session.dir);
 
-            List<String> tokenList = tokenize(input);
-            if (tokenList.isEmpty()) {
-                continue;
-            }
-            
-            // Check for pipelines. If multiple pipes, handle N-stage pipeline
-            int pipeCount = 0;
-            for (String t : tokenList) if ("|".equals(t)) pipeCount++;
-            if (pipeCount >= 1) {
-                // Split into stages
-                List<List<String>> stages = new ArrayList<>();
-                List<String> cur = new ArrayList<>();
-                for (String t : tokenList) {
-                    if ("|".equals(t)) {
-                        stages.add(cur);
-                        cur = new ArrayList<>();
-                    } else {
-                        cur.add(t);
-                    }
-                }
-                stages.add(cur);
-                executePipelineChain(stages, currentDir);
-                continue;
+            // Foreground commands get the terminal in its normal mode (only when switching is cheap)
+            if (terminal.inProcess()) terminal.cooked();
+            try {
+                runCommandLine(session, input);
+            } finally {
+                if (terminal.inProcess()) terminal.raw();
             }
-            
-            // Extract redirections and clean tokens (supports with/without space)
-            Redir redir = new Redir();
-            List<String> cleaned = new ArrayList<>();
-            for (int i = 0; i < tokenList.size(); i++) {
-                String t = tokenList.get(i);
-                String next = (i + 1 < tokenList.size()) ? tokenList.get(i + 1) : null;
-                if (t.equals(">") || t.equals("1>") || t.equals(">>") || t.equals("1>>")) {
-                    if (next != null) {
-                        redir.stdoutTarget = next;
-                        redir.stdoutAppend = t.endsWith(">>");
-                        i++;
-                    }
-                } else if (t.equals("2>") || t.equals("2>>")) {
-                    if (next != null) {
-                        redir.stderrTarget = next;
-                        redir.stderrAppend = t.endsWith(">>");
-                        i++;
-                    }
-                } else if (t.startsWith("1>>")) {
-                    redir.stdoutTarget = t.substring(3).isEmpty() && next != null ? next : t.substring(3);
-                    redir.stdoutAppend = true;
-                    if (t.substring(3).isEmpty() && next != null) { i++; }
-                } else if (t.startsWith(">>")) {
-                    redir.stdoutTarget = t.substring(2).isEmpty() && next != null ? next : t.substring(2);
-                    redir.stdoutAppend = true;
-                    if (t.substring(2).isEmpty() && next != null) { i++; }
-                } else if (t.startsWith("1>")) {
-                    redir.stdoutTarget = t.substring(2).isEmpty() && next != null ? next : t.substring(2);
-                    redir.stdoutAppend = false;
-                    if (t.substring(2).isEmpty() && next != null) { i++; }
-                } else if (t.startsWith(">")) {
-                    redir.stdoutTarget = t.substring(1).isEmpty() && next != null ? next : t.substring(1);
-                    redir.stdoutAppend = false;
-                    if (t.substring(1).isEmpty() && next != null) { i++; }
-                } else if (t.startsWith("2>>")) {
-                    redir.stderrTarget = t.substring(3).isEmpty() && next != null ? next : t.substring(3);
-                    redir.stderrAppend = true;
-                    if (t.substring(3).isEmpty() && next != null) { i++; }
-                } else if (t.startsWith("2>")) {
-                    redir.stderrTarget = t.substring(2).isEmpty() && next != null ? next : t.substring(2);
-                    redir.stderrAppend = false;
-                    if (t.substring(2).isEmpty() && next != null) { i++; }
-                } else {
-                    cleaned.add(t);
-                }
             }
-            if (cleaned.isEmpty()) {
-                continue;
+
+    // Restore terminal mode if we changed it
+    terminal.close();
+    // End of input exits like `exit` does
+    session.history.close();
+    session.frecency.save();
+    }
+
+    // Run batch input on the console and return the last status. Output is block-buffered and
+    // flushed before child processes start and after the last line.
+    private static int runBatch(BufferedReader reader, File currentDir) throws IOException {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        System.setOut(out);
+        Session session = consoleSession(currentDir);
+        try {
+            runScript(session, reader);
+        } finally {
+            out.flush();
+        }
+        return session.lastStatus;
+    }
+
+    // The shell on this process's own streams. Its history is mapped from HISTFILE (if set;
+    // entries are decoded only when used) and limited by HISTSIZE, HISTFILESIZE and HISTCONTROL.
+    private static Session consoleSession(File currentDir) throws IOException {
+        Session session = Session.console(currentDir);
+        String histFileEnv = System.getenv("HISTFILE");
+        if (histFileEnv != null && !histFileEnv.isEmpty()) {
+            session.history.open(resolvePath(currentDir, histFileEnv).toPath().normalize());
+        }
+        // HISTSIZE defaults to 500 and HISTFILESIZE to HISTSIZE, as in bash; negative = unlimited
+        int histSize = historyLimit(System.getenv("HISTSIZE"), 500);
+        session.history.limits(histSize, historyLimit(System.getenv("HISTFILESIZE"), histSize));
+        session.history.control(System.getenv("HISTCONTROL"));
+        return session;
+    }
+
+    // $SHELL_FRECENCY_FILE, else ~/.shell_frecency
+    private static Path frecencyFile(File currentDir) {
+        String file = System.getenv("SHELL_FRECENCY_FILE");
+        if (file != null && !file.isEmpty()) return resolvePath(currentDir, file).toPath().normalize();
+        String home = System.getenv("HOME");
+        if (home == null || home.isEmpty()) home = System.getProperty("user.home", "");
+        return Path.of(home, ".shell_frecency");
+    }
+
+    // Run input line by line: no prompt, no line editing, no completion
+    static void runScript(Session session, BufferedReader reader) throws IOException {
+        String line;
+        while (!session.exited && (line = reader.readLine()) != null) {
+            String input = line.trim();
+            if (input.isEmpty() || input.startsWith("#")) continue; // blank lines, comments, #!
+            session.history.add(line);
+            runCommandLine(session, input);
+        }
+    }
+
+    // Wait for every background job of the session, as the end of a server connection does
+    static void awaitJobs(Session session) {
+        for (Jobs.Job job : session.jobs.all()) {
+            job.completion.join();
+            session.jobs.remove(job);
+        }
+    }
+
+    // Execute one trimmed, non-empty command line
+    private static void runCommandLine(Session session, String input) throws IOException {
+        Ast.Script script;
+        long parseStart = System.nanoTime();
+        try {
+            script = Parser.parse(input);
+            session.parseNanos = System.nanoTime() - parseStart;
+        } catch (IllegalArgumentException e) {
+            session.err.println(e.getMessage());
+            session.lastStatus = 2;
+            return;
+        }
+        for (Ast.Item item : script.items) {
+            if (session.exited) break;
+            try {
+                if (item.background) runInBackground(session, item);
+                else runList(session, item);
+            } catch (RuntimeException e) {
+                // A command the JDK refuses to set up (say, ProcessBuilder rejecting a redirect)
+                // fails on its own; the shell and the rest of the line carry on
+                session.err.println("shell: " + (e.getMessage() != null ? e.getMessage() : e));
+                session.lastStatus = 1;
             }
-            String cmdName = cleaned.get(0);
-            String[] tokens = cleaned.toArray(new String[0]);
-            String[] buildInCommands = {"exit", "echo", "type", "pwd", "cd", "history"};
-
-            // Removed early exit so we can handle history write in the exit builtin block
-            if (cmdName.equals("pwd")) {
-                // Print absolute current working directory tracked by the shell
-                String line = currentDir.getCanonicalPath() + System.lineSeparator();
-                // Ensure stderr file exists if redirected (builtins don't naturally write stderr)
-                if (redir.stderrTarget != null) writeToFile(currentDir, redir.stderrTarget, "", redir.stderrAppend);
-                if (redir.stdoutTarget != null) {
-                    writeToFile(currentDir, redir.stdoutTarget, line, redir.stdoutAppend);
-                } else {
-                    System.out.print(line);
-                }
+        }
+    }
+
+    // Run an and-or list in the foreground: a pipeline after && runs only if the status so far
+    // is 0, one after || only if it is not. Skipped pipelines leave the status as it was.
+    private static void runList(Session session, Ast.Item item) throws IOException {
+        runPipeline(session, item.pipelines.get(0));
+        for (int i = 1; i < item.pipelines.size() && !session.exited; i++) {
+            if (runsAfter(item.operators.get(i - 1), session.lastStatus)) {
+                runPipeline(session, item.pipelines.get(i));
             }
-            else if (cmdName.equals("cd")) {
-                // cd handling (absolute and relative paths)
-                if (tokens.length < 2) {
-                    // No directory provided. Do nothing for now (later stages may use HOME).
-                } else {
-                    String target = tokens[1];
-                    // Expand ~ to HOME for this stage
-                    if (target.equals("~") || target.startsWith("~/")) {
-                        String home = System.getenv("HOME");
-                        if (home == null || home.isEmpty()) {
-                            home = System.getProperty("user.home", "");
-                        }
-                        if (home != null && !home.isEmpty()) {
-                            if (target.equals("~")) {
-                                target = home;
-                            } else {
-                                target = home + target.substring(1); // replace leading ~ with HOME
-                            }
-                        }
-                    }
-                    File dest;
-                    if (target.startsWith("/")) {
-                        dest = new File(target);
-                    } else {
-                        // relative path against currentDir
-                        dest = new File(currentDir, target);
-                    }
-                    File canonical;
-                    try {
-                        canonical = dest.getCanonicalFile();
-                    } catch (IOException e) {
-                        canonical = dest;
-                    }
-                    if (canonical.isDirectory()) {
-                        currentDir = canonical;
-                    } else {
-                        System.out.println("cd: " + target + ": No such file or directory");
-                    }
-                }
+        }
+    }
+
+    private static boolean runsAfter(Lexer.Kind operator, int status) {
+        return operator == Lexer.Kind.AND_IF ? status == 0 : status != 0;
+    }
+
+    // Run a foreground pipeline. Only a lone command can be a builtin that changes shell state.
+    private static void runPipeline(Session session, Ast.Pipeline pipeline) throws IOException {
+        session.stats.commands.increment();
+        ShellEvents.Command event = new ShellEvents.Command();
+        event.begin();
+        List<String> first = pipeline.commands.get(0).argv;
+        if (!first.isEmpty() && first.get(0).equals("time")) timePipeline(session, pipeline);
+        else runPipeline(session, pipeline, null);
+        if (event.shouldCommit()) {
+            event.command = pipeline.text;
+            event.status = session.lastStatus;
+            event.commit();
+        }
+    }
+
+    // timing: set under `time`, else null
+    private static void runPipeline(Session session, Ast.Pipeline pipeline, Timing timing) throws IOException {
+        if (pipeline.commands.size() > 1) session.lastStatus = executePipelineChain(session, pipeline, timing);
+        else runCommand(session, pipeline.commands.get(0), timing);
+    }
+
+    // time [-p] [-v] pipeline
+    // A keyword, as in bash: it times the whole pipeline it prefixes, builtins included, and
+    // reports real, user and system time on stderr once the pipeline is done. -p prints them in
+    // POSIX format. -v adds how long lexing and parsing took and, per stage, resolving the
+    // command name, starting it and waiting for it, then the shell's own overhead.
+    private static void timePipeline(Session session, Ast.Pipeline pipeline) throws IOException {
+        Ast.Command first = pipeline.commands.get(0);
+        boolean posix = false;
+        boolean verbose = false;
+        int i = 1;
+        for (; i < first.argv.size(); i++) {
+            String opt = first.argv.get(i);
+            if ("-p".equals(opt)) posix = true;
+            else if ("-v".equals(opt)) verbose = true;
+            else if ("-pv".equals(opt) || "-vp".equals(opt)) posix = verbose = true;
+            else if ("--".equals(opt)) { i++; break; }
+            else break;
+        }
+        List<Ast.Command> commands = new ArrayList<>(pipeline.commands);
+        commands.set(0, new Ast.Command(first.argv.subList(i, first.argv.size()), first.redirects));
+        Timing timing = new Timing(posix, verbose, session.parseNanos);
+        runPipeline(session, new Ast.Pipeline(commands, pipeline.text), timing);
+        session.out.flush();
+        session.err.print(timing.report());
+        session.err.flush();
+    }
+
+    // Run one simple command: builtins in the shell process, anything else as a child process.
+    // Sets the session's last status.
+    private static void runCommand(Session session, Ast.Command command, Timing timing) throws IOException {
+        command = expand(command, session.lastStatus);
+        List<String> cleaned = command.argv;
+        FdTable fds;
+        try {
+            fds = new FdTable(FdTable.STDIN, FdTable.STDOUT, FdTable.STDERR).apply(command.redirects, session.dir);
+            // Redirections alone just create (or truncate) their targets
+            if (cleaned.isEmpty()) fds.touchAll();
+        } catch (IOException e) {
+            session.err.println(e.getMessage());
+            session.lastStatus = 1;
+            return;
+        }
+        if (cleaned.isEmpty()) {
+            session.lastStatus = 0;
+            return;
+        }
+        String cmdName = cleaned.get(0);
+        Timing.Stage timed = timing == null ? null : timing.stage(cleaned);
+        long lookupStart = System.nanoTime();
+        Builtin builtin = builtin(session, cmdName);
+        if (builtin != null) {
+            if (timed != null) {
+                timed.started = System.nanoTime();
+                timed.lookupNanos = timed.started - lookupStart;
             }
-            else if (cmdName.equals("echo")) {
-                // Join arguments with a single space (outside-quote spaces collapsed, quoted spaces preserved in tokens)
-                if (redir.stderrTarget != null) writeToFile(currentDir, redir.stderrTarget, "", redir.stderrAppend);
-                if (tokens.length > 1) {
-                    StringBuilder out = new StringBuilder();
-                    for (int i = 1; i < tokens.length; i++) {
-                        if (i > 1) out.append(' ');
-                        out.append(tokens[i]);
-                    }
-                    if (redir.stdoutTarget != null) {
-                        writeToFile(currentDir, redir.stdoutTarget, out.toString() + System.lineSeparator(), redir.stdoutAppend);
-                    } else {
-                        System.out.println(out.toString());
-                    }
-                } else {
-                    if (redir.stdoutTarget != null) {
-                        writeToFile(currentDir, redir.stdoutTarget, System.lineSeparator(), redir.stdoutAppend);
-                    } else {
-                        System.out.println();
-                    }
+            runBuiltin(session, builtin, cleaned, fds);
+            if (timed != null) timed.finished = System.nanoTime();
+            return;
+        }
+
+        int status;
+        // Try to execute external command found in PATH
+        String path = commandPath(session, cmdName, session.dir);
+        if (timed != null) timed.lookupNanos = System.nanoTime() - lookupStart;
+        if (path != null) {
+            ProcessBuilder pb = externalCommand(session, path, cleaned, session.dir);
+            fds.configure(pb, session.console);
+            try {
+                long spawnStart = System.nanoTime();
+                Process process = startProcess(session, pb);
+                if (timed != null) {
+                    timed.started = System.nanoTime();
+                    timed.spawnNanos = timed.started - spawnStart;
                 }
+                feedInput(session, process, fds.get(0));
+                CompletableFuture<Void> output = pumpOutput(session, process, fds);
+                status = process.waitFor();
+                output.join();
+                if (timed != null) timed.finished = System.nanoTime();
+            } catch (IOException e) {
+                // Found, but neither exec nor /bin/sh could run it
+                session.err.println(cmdName + ": " + e.getMessage());
+                status = 126;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = 130;
             }
-            else if (cmdName.equals("type")) {
-                if (tokens.length < 2) {
-                    String msg = "type: missing operand" + System.lineSeparator();
-                    if (redir.stdoutTarget != null) writeToFile(currentDir, redir.stdoutTarget, msg, redir.stdoutAppend);
-                    else System.out.print(msg);
-                    continue;
-                }
-                if (redir.stderrTarget != null) writeToFile(currentDir, redir.stderrTarget, "", redir.stderrAppend);
-                String name = tokens[1];
-                if (Arrays.asList(buildInCommands).contains(name)){
-                    String msg = name+" is a shell builtin" + System.lineSeparator();
-                    if (redir.stdoutTarget != null) writeToFile(currentDir, redir.stdoutTarget, msg, redir.stdoutAppend);
-                    else System.out.print(msg);
-                }
-                else{
-                    String path = findInPath(name);
-                    if (path != null) {
-                        String msg = name + " is " + path + System.lineSeparator();
-                        if (redir.stdoutTarget != null) writeToFile(currentDir, redir.stdoutTarget, msg, redir.stdoutAppend);
-                        else System.out.print(msg);
-                    } else {
-                        String msg = name + ": not found" + System.lineSeparator();
-                        if (redir.stdoutTarget != null) writeToFile(currentDir, redir.stdoutTarget, msg, redir.stdoutAppend);
-                        else System.out.print(msg);
-                    }
-                }
+        } else {
+            session.out.println(cmdName + ": command not found");
+            status = 127;
+        }
+        session.lastStatus = status;
+    }
+
+    // Run a builtin in the shell itself, on the streams of its descriptor table.
+    // Sets the session's last status and, after cd, its working directory.
+    private static void runBuiltin(Session session, Builtin builtin, List<String> argv, FdTable fds) throws IOException {
+        FdTable.Streams streams;
+        try {
+            streams = fds.open(session, null, null);
+        } catch (IOException e) {
+            session.err.println(e.getMessage());
+            session.lastStatus = 1;
+            return;
+        }
+        Builtin.Context ctx = new Builtin.Context(session, argv, session.dir, streams, false);
+        try {
+            session.lastStatus = builtin.run(ctx);
+        } finally {
+            try {
+                ctx.out.flush();
+                ctx.err.flush();
+            } finally {
+                streams.close();
             }
-            else if (cmdName.equals("history")) {
-                if (redir.stderrTarget != null) writeToFile(currentDir, redir.stderrTarget, "", redir.stderrAppend);
-                // Options: history -r <file>, -w <file>, -a <file> or numeric limit
-                if (tokens.length >= 2 && "-r".equals(tokens[1])) {
-                    if (tokens.length >= 3) {
-                        // Read history lines from file and append (ignore empty lines)
-                        try {
-                            List<String> lines = Files.readAllLines(resolvePath(currentDir, tokens[2]).toPath(), StandardCharsets.UTF_8);
-                            for (String line : lines) {
-                                String t = line.trim();
-                                if (!t.isEmpty()) {
-                                    HISTORY.add(t);
-                                }
-                            }
-                        } catch (IOException ioe) {
-                            // Silently ignore if cannot read (tester provides valid file)
-                        }
-                    }
-                    // -r produces no output
-                } else if (tokens.length >= 2 && "-w".equals(tokens[1])) {
-                    if (tokens.length >= 3) {
-                        // Write entire in-memory history to file (truncate). Include trailing newline.
-                        StringBuilder sb = new StringBuilder();
-                        for (String h : HISTORY) {
-                            sb.append(h).append('\n');
-                        }
-                        writeToFile(currentDir, tokens[2], sb.toString(), false);
-                        // After -w, it's reasonable to advance LAST_APPEND_INDEX to end
-                        LAST_APPEND_INDEX = HISTORY.size();
-                    }
-                    // -w produces no output
-                } else if (tokens.length >= 2 && "-a".equals(tokens[1])) {
-                    if (tokens.length >= 3) {
-                        // Append only new entries since last -a to file. Include trailing newline.
-                        int startIdx = Math.max(0, LAST_APPEND_INDEX);
-                        if (startIdx < HISTORY.size()) {
-                            StringBuilder sb = new StringBuilder();
-                            for (int i = startIdx; i < HISTORY.size(); i++) {
-                                sb.append(HISTORY.get(i)).append('\n');
-                            }
-                            writeToFile(currentDir, tokens[2], sb.toString(), true);
-                        } else {
-                            // Ensure file exists even if nothing new
-                            writeToFile(currentDir, tokens[2], "", true);
-                        }
-                        LAST_APPEND_INDEX = HISTORY.size();
-                    }
-                    // -a produces no output
-                } else {
-                    int limit = -1; // -1 means print all
-                    if (tokens.length >= 2) {
-                        try {
-                            limit = Integer.parseInt(tokens[1]);
-                        } catch (NumberFormatException nfe) {
-                            limit = -1; // ignore invalid argument for now
-                        }
-                    }
-                    StringBuilder out = new StringBuilder();
-                    int total = HISTORY.size();
-                    int start = 1;
-                    if (limit >= 0) {
-                        start = Math.max(1, total - limit + 1);
-                    }
-                    for (int i = start; i <= total; i++) {
-                        String cmd = HISTORY.get(i - 1);
-                        out.append(String.format("%5d  %s%n", i, cmd));
-                    }
-                    String msg = out.toString();
-                    if (redir.stdoutTarget != null) writeToFile(currentDir, redir.stdoutTarget, msg, redir.stdoutAppend);
-                    else System.out.print(msg);
-                }
+        }
+        session.dir = ctx.dir;
+    }
+
+    // Give a started command its stdin when nothing else writes to it: the bytes of a here-string,
+    // or the session's stdin when that is not the console's (both written on a stage thread, so a
+    // command that never reads them cannot block the shell), or EOF for a pipe that no stage feeds.
+    private static void feedInput(Session session, Process process, FdTable.Target in) {
+        OutputStream stdin = process.getOutputStream();
+        boolean here = in.kind == FdTable.Kind.HERE;
+        if (!here && !pumped(session, in)) {
+            try {
+                stdin.close();
+            } catch (IOException ignored) {
             }
-            else if (cmdName.equals("exit")) {
-                // Only exit when explicitly given 0 as per stage requirements
-                if (tokens.length >= 2 && tokens[1].equals("0")) {
-                    // If HISTFILE is set, write in-memory history to it on exit
-                    if (histFileEnv != null && !histFileEnv.isEmpty()) {
-                        StringBuilder sb = new StringBuilder();
-                        for (String h : HISTORY) sb.append(h).append('\n');
-                        writeToFile(currentDir, histFileEnv, sb.toString(), false);
-                        LAST_APPEND_INDEX = HISTORY.size();
-                    }
-                    System.exit(0);
-                } else {
-                    // Not supported variants: treat as no-op for now
-                }
+            return;
+        }
+        STAGES.execute(() -> {
+            try (stdin) {
+                if (here) stdin.write(in.data);
+                else if (in.shellFd == 0) session.in.transferTo(stdin);
+            } catch (IOException ignored) {
+                // the command exited without reading it all
             }
-            else {
-                // Try to execute external command found in PATH
-                String path = findInPath(cmdName);
-                if (path != null) {
-                    // Use sh -c with positional parameters so argv[0] equals the typed command name
-                    List<String> command = new ArrayList<>();
-                    command.add("/bin/sh");
-                    command.add("-c");
-                    command.add("exec \"$0\" \"$@\"");
-                    command.add(cmdName); // this becomes $0 for the exec'ed program
-                    for (int i = 1; i < tokens.length; i++) {
-                        command.add(tokens[i]); // these become $1..$n
-                    }
-                    ProcessBuilder pb = new ProcessBuilder(command);
-                    pb.directory(currentDir);
-                    // Configure redirections
-                    if (redir.stdoutTarget != null) {
-                        File f = resolvePath(currentDir, redir.stdoutTarget);
-                        pb.redirectOutput(redir.stdoutAppend ? ProcessBuilder.Redirect.appendTo(f)
-                                                            : ProcessBuilder.Redirect.to(f));
-                    } else {
-                        pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                    }
-                    if (redir.stderrTarget != null) {
-                        File f = resolvePath(currentDir, redir.stderrTarget);
-                        pb.redirectError(redir.stderrAppend ? ProcessBuilder.Redirect.appendTo(f)
-                                                           : ProcessBuilder.Redirect.to(f));
-                    } else {
-                        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
-                    }
-                    try {
-                        Process process = pb.start();
-                        process.waitFor();
-                    } catch (IOException | InterruptedException e) {
-                        // If execution fails, mimic not found message
-                        System.out.println(cmdName + ": command not found");
-                        if (e instanceof InterruptedException) {
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                } else {
-                    System.out.println(cmdName + ": command not found");
+        });
+    }
+
+    // Copy what a started command writes to the shell's stdout and stderr into the session's
+    // streams, when those are not the console's and the command got pipes in their place (see
+    // FdTable.configure). Completes once the command has closed both.
+    private static CompletableFuture<Void> pumpOutput(Session session, Process process, FdTable fds) {
+        FdTable.Target out = fds.get(1);
+        FdTable.Target err = fds.get(2);
+        CompletableFuture<Void> stdout = pumped(session, out)
+            ? pump(session, process.getInputStream(), out.shellFd == 2 ? session.err : session.out)
+            : CompletableFuture.completedFuture(null);
+        if (err == out || session.console) return stdout;
+        CompletableFuture<Void> stderr;
+        if (err.kind == FdTable.Kind.PIPE) stderr = pump(session, process.getErrorStream(), session.err); // stays on the shell's stderr
+        else if (pumped(session, err)) stderr = pump(session, process.getErrorStream(), err.shellFd == 1 ? session.out : session.err);
+        else stderr = CompletableFuture.completedFuture(null);
+        return CompletableFuture.allOf(stdout, stderr);
+    }
+
+    // Whether a command's descriptor is one of the shell's own that is carried over a pipe
+    private static boolean pumped(Session session, FdTable.Target t) {
+        return !session.console && t.kind == FdTable.Kind.SHELL;
+    }
+
+    // Copy from a command's output pipe to one of the session's streams, a read at a time so
+    // output shows up while the command runs
+    private static CompletableFuture<Void> pump(Session session, InputStream from, PrintStream to) {
+        return CompletableFuture.runAsync(() -> {
+            byte[] buf = new byte[8192];
+            try (from) {
+                int n;
+                while ((n = from.read(buf)) > 0) {
+                    to.write(buf, 0, n);
+                    to.flush();
+                    session.stats.pipeBytes.add(n);
                 }
+            } catch (IOException ignored) {
+                // the command's end of the pipe is gone
             }
+        }, STAGES);
+    }
+
+    // Substitute $? into a command's words and redirection targets
+    private static Ast.Command expand(Ast.Command command, int lastStatus) {
+        if (!command.expands) return command;
+        String status = Integer.toString(lastStatus);
+        List<String> argv = new ArrayList<>(command.argv.size());
+        for (String word : command.argv) argv.add(word.replace(String.valueOf(Lexer.STATUS), status));
+        List<Ast.Redirect> redirects = new ArrayList<>(command.redirects.size());
+        for (Ast.Redirect r : command.redirects) {
+            redirects.add(new Ast.Redirect(r.fd, r.op, r.target.replace(String.valueOf(Lexer.STATUS), status)));
+        }
+        return new Ast.Command(argv, redirects);
+    }
+
+    // Builtin commands by name
+    private static Map<String, Builtin> builtins() {
+        Map<String, Builtin> table = new HashMap<>();
+        table.put("exit", Main::exitBuiltin);
+        table.put("echo", Main::echoBuiltin);
+        table.put("type", Main::typeBuiltin);
+        table.put("pwd", Main::pwdBuiltin);
+        table.put("cd", Main::cdBuiltin);
+        table.put("history", Main::historyBuiltin);
+        table.put("hash", Main::hashBuiltin);
+        table.put("jobs", Main::jobsBuiltin);
+        table.put("wait", Main::waitBuiltin);
+        table.put("fg", Main::fgBuiltin);
+        table.put("bg", Main::bgBuiltin);
+        table.put("set", Main::setBuiltin);
+        table.put("enable", Main::enableBuiltin);
+        table.put("shellstat", Main::shellstatBuiltin);
+        // As GNU parallel: the number of failed jobs, capped at 101
+        table.put("parallel", ctx -> Math.min(parallelBuiltin(ctx.session, ctx.argv, ctx.dir, ctx.in, ctx.out, ctx.err), 101));
+        return table;
+    }
+
+    // exit [n]: n defaults to the status of the last command. In a subshell it only ends the command,
+    // and in a server session the session.
+    private static int exitBuiltin(Builtin.Context ctx) throws IOException {
+        int code = ctx.session.lastStatus;
+        if (ctx.argv.size() >= 2) {
+            try {
+                code = Integer.parseInt(ctx.argv.get(1)) & 0xff;
+            } catch (NumberFormatException e) {
+                ctx.out.print("exit: ").print(ctx.argv.get(1)).print(": numeric argument required").newline();
+                code = 2;
             }
+        }
+        if (ctx.subshell) return code;
+        if (!ctx.session.console) {
+            ctx.session.exited = true;
+            return code;
+        }
+        ctx.out.flush();
+        // If HISTFILE is set, append whatever has not been saved yet and apply HISTFILESIZE
+        ctx.session.history.close();
+        ctx.session.frecency.save();
+        System.out.flush();
+        System.exit(code);
+        return code;
+    }
 
-    // Restore terminal mode if we changed it
-    if (rawEnabled) setRawMode(false);
-    scanner.close();
+    private static int echoBuiltin(Builtin.Context ctx) throws IOException {
+        // Join arguments with a single space (outside-quote spaces collapsed, quoted spaces preserved in tokens)
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            if (i > 1) ctx.out.print(' ');
+            ctx.out.print(ctx.argv.get(i));
+        }
+        ctx.out.newline();
+        return 0;
     }
 
-    private static boolean setRawMode(boolean enable) {
+    private static int typeBuiltin(Builtin.Context ctx) throws IOException {
+        String name = ctx.arg(1);
+        if (name == null) {
+            ctx.out.print("type: missing operand").newline();
+            return 1;
+        }
+        if (builtin(ctx.session, name) != null) {
+            ctx.out.print(name).print(" is a shell builtin").newline();
+            return 0;
+        }
+        if ("time".equals(name)) {
+            ctx.out.print(name).print(" is a shell keyword").newline();
+            return 0;
+        }
+        String path = findInPath(ctx.session, name, ctx.dir);
+        if (path == null) {
+            ctx.out.print(name).print(": not found").newline();
+            return 1;
+        }
+        ctx.out.print(name).print(" is ").print(path).newline();
+        return 0;
+    }
+
+    // Print absolute current working directory tracked by the shell
+    private static int pwdBuiltin(Builtin.Context ctx) throws IOException {
+        String path;
         try {
-            List<String> cmd = new ArrayList<>();
-            cmd.add("/bin/sh");
-            cmd.add("-c");
-            if (enable) {
-                cmd.add("stty -echo -icanon min 1 time 0 2>/dev/null");
-            } else {
-                cmd.add("stty echo icanon 2>/dev/null");
+            path = ctx.dir.getCanonicalPath();
+        } catch (IOException e) {
+            path = ctx.dir.getPath();
+        }
+        ctx.out.print(path).newline();
+        return 0;
+    }
+
+    // cd handling (absolute and relative paths, ~ expanded to HOME)
+    private static int cdBuiltin(Builtin.Context ctx) throws IOException {
+        String target = ctx.arg(1);
+        if (target == null) return 0; // No directory provided. Do nothing for now (later stages may use HOME).
+        if (target.equals("~") || target.startsWith("~/")) {
+            String home = ctx.session.env.get("HOME");
+            if (home == null || home.isEmpty()) {
+                home = System.getProperty("user.home", "");
             }
-            Process p = new ProcessBuilder(cmd).inheritIO().start();
-            int code = p.waitFor();
-            // Return true only if stty succeeded (exit code 0)
-            return code == 0;
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
-    // Redraw the current input line with prompt
-    private static void redrawLine(String buffer) {
-        System.out.print('\r');
-        System.out.print("$ ");
-        System.out.print(buffer);
-        // Clear to end of line (ANSI); harmless if not supported
-        System.out.print("\u001B[K");
-        System.out.flush();
+            if (!home.isEmpty()) {
+                target = target.equals("~") ? home : home + target.substring(1); // replace leading ~ with HOME
+            }
+        }
+        File dest = target.startsWith("/") ? new File(target) : new File(ctx.dir, target);
+        File canonical;
+        try {
+            canonical = dest.getCanonicalFile();
+        } catch (IOException e) {
+            canonical = dest;
+        }
+        if (!canonical.isDirectory()) {
+            ctx.out.print("cd: ").print(target).print(": No such file or directory").newline();
+            return 1;
+        }
+        ctx.dir = canonical;
+        return 0;
     }
 
-    // Find the first executable matching name in PATH and return its absolute path or null if not found.
-    private static String findInPath(String name) {
-        if (name == null || name.isEmpty()) return null;
-        String pathEnv = System.getenv("PATH");
-        if (pathEnv == null || pathEnv.isEmpty()) return null;
-        String[] dirs = pathEnv.split(":", -1); // keep empty entries as current dir
-        for (String dir : dirs) {
-            String base = dir.isEmpty() ? "." : dir;
-            File candidate = new File(base, name);
-            if (candidate.exists() && candidate.isFile() && candidate.canExecute()) {
-                return candidate.getAbsolutePath();
+    // history [n], history -c, history -r/-w/-a/-n [file]
+    private static int historyBuiltin(Builtin.Context ctx) throws IOException {
+        String option = ctx.arg(1);
+        if ("-c".equals(option)) {
+            ctx.session.history.clear();
+            return 0;
+        }
+        if ("-r".equals(option) || "-w".equals(option) || "-a".equals(option) || "-n".equals(option)) {
+            // -r/-w/-a/-n [file] produce no output; file defaults to HISTFILE
+            Path file = ctx.arg(2) != null ? resolvePath(ctx.dir, ctx.arg(2)).toPath().normalize() : ctx.session.history.file();
+            if (file != null) historyFileOption(ctx.session.history, option, file);
+            return 0;
+        }
+        int limit = -1; // -1 means print all
+        if (option != null) {
+            try {
+                limit = Integer.parseInt(option);
+            } catch (NumberFormatException nfe) {
+                limit = -1; // ignore invalid argument for now
             }
         }
-        return null;
+        int total = ctx.session.history.size();
+        int first = ctx.session.history.firstNumber();
+        int start = limit >= 0 ? Math.max(1, total - limit + 1) : 1;
+        for (int i = start; i <= total; i++) {
+            ctx.out.pad(first + i - 1, 5).print("  ").print(ctx.session.history.get(i - 1)).newline();
+        }
+        return 0;
     }
 
-    // Find all executable file names in PATH that start with the given prefix.
-    private static List<String> findExecutablesByPrefix(String prefix) {
-        List<String> results = new ArrayList<>();
-        if (prefix == null || prefix.isEmpty()) return results;
-        String pathEnv = System.getenv("PATH");
-        if (pathEnv == null || pathEnv.isEmpty()) return results;
-        String[] dirs = pathEnv.split(":", -1);
-        Set<String> seen = new LinkedHashSet<>();
-        for (String dir : dirs) {
-            String base = dir.isEmpty() ? "." : dir;
-            File d = new File(base);
-            if (!d.isDirectory()) continue;
-            File[] files = d.listFiles();
-            if (files == null) continue;
-            for (File f : files) {
-                String name = f.getName();
-                if (!name.startsWith(prefix)) continue;
-                if (f.isFile() && f.canExecute()) {
-                    if (seen.add(name)) {
-                        results.add(name);
-                    }
-                }
+    // hash builtin: no args prints the table, -r empties it, names are looked up and remembered
+    private static int hashBuiltin(Builtin.Context ctx) throws IOException {
+        PathIndex index = ctx.session.commands;
+        if (ctx.argv.size() < 2) {
+            List<PathIndex.Hashed> entries = index.entries();
+            if (entries.isEmpty()) {
+                ctx.out.print("hash: hash table empty").newline();
+                return 0;
+            }
+            ctx.out.print("hits\tcommand").newline();
+            for (PathIndex.Hashed e : entries) {
+                ctx.out.pad(e.hits, 4).print('\t').print(e.path).newline();
+            }
+            return 0;
+        }
+        int status = 0;
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            String name = ctx.argv.get(i);
+            if ("-r".equals(name)) {
+                index.clear();
+            } else if (!index.remember(name, ctx.dir)) {
+                ctx.out.print("hash: ").print(name).print(": not found").newline();
+                status = 1;
             }
         }
-        return results;
+        return status;
     }
 
-    // Redirection configuration holder
-    private static class Redir {
-        String stdoutTarget;
-        boolean stdoutAppend;
-        String stderrTarget;
-        boolean stderrAppend;
+    private static int jobsBuiltin(Builtin.Context ctx) throws IOException {
+        ctx.out.print(ctx.session.jobs.list());
+        return 0;
     }
 
-    private static File resolvePath(File currentDir, String target) {
-        if (target == null) return null;
-        if (target.startsWith("/")) return new File(target);
-        return new File(currentDir, target);
+    // wait: all jobs; wait %n or wait PID: that one. The status is that of the last job waited
+    // for by name.
+    private static int waitBuiltin(Builtin.Context ctx) throws IOException {
+        int status = 0;
+        if (ctx.argv.size() < 2) {
+            for (Jobs.Job job : ctx.session.jobs.all()) job.completion.join();
+        }
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            String spec = ctx.argv.get(i);
+            Jobs.Job job = spec.startsWith("%") ? ctx.session.jobs.find(spec) : jobByPid(ctx.session, spec);
+            if (job != null) {
+                job.completion.join();
+                status = job.status;
+                continue;
+            }
+            if (spec.startsWith("%")) ctx.out.print("wait: ").print(spec).print(": no such job").newline();
+            else ctx.out.print("wait: pid ").print(spec).print(" is not a child of this shell").newline();
+            status = 127;
+        }
+        return status;
     }
 
-    private static void writeToFile(File currentDir, String target, String content, boolean append) {
-        try {
-            File f = resolvePath(currentDir, target);
-            Path p = f.toPath();
-            if (append) {
-                Files.write(p, content.getBytes(StandardCharsets.UTF_8),
-                           StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-            } else {
-                Files.write(p, content.getBytes(StandardCharsets.UTF_8),
-                           StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    // Wait for the job in the foreground; it leaves the table without a Done notice
+    private static int fgBuiltin(Builtin.Context ctx) throws IOException {
+        String spec = ctx.arg(1);
+        Jobs.Job job = ctx.session.jobs.find(spec);
+        if (job == null) {
+            ctx.out.print("fg: ").print(spec == null ? "current" : spec).print(": no such job").newline();
+            return 1;
+        }
+        ctx.out.print(job.command).newline();
+        ctx.out.flush();
+        continueJob(ctx.session, job);
+        job.completion.join();
+        ctx.session.jobs.remove(job);
+        return job.status;
+    }
+
+    // Resume a stopped job in the background
+    private static int bgBuiltin(Builtin.Context ctx) throws IOException {
+        String spec = ctx.arg(1);
+        Jobs.Job job = ctx.session.jobs.find(spec);
+        if (job == null) {
+            ctx.out.print("bg: ").print(spec == null ? "current" : spec).print(": no such job").newline();
+            return 1;
+        }
+        if (job.done || !Jobs.stopped(job)) {
+            ctx.out.print("bg: job ").print(job.id).print(" already in background").newline();
+            return 0;
+        }
+        continueJob(ctx.session, job);
+        ctx.session.jobs.touch(job);
+        ctx.out.print('[').print(job.id).print("]+ ").print(job.command).print(" &").newline();
+        return 0;
+    }
+
+    // set -o / set +o: print the options; set -o name / set +o name: turn an option on / off
+    private static int setBuiltin(Builtin.Context ctx) throws IOException {
+        List<String> tokens = ctx.argv;
+        if (tokens.size() == 2 && ("-o".equals(tokens.get(1)) || "+o".equals(tokens.get(1)))) {
+            boolean pipefail = ctx.session.pipefail;
+            if ("-o".equals(tokens.get(1))) ctx.out.print("pipefail       \t").print(pipefail ? "on" : "off").newline();
+            else ctx.out.print("set ").print(pipefail ? "-o" : "+o").print(" pipefail").newline();
+            return 0;
+        }
+        for (int i = 1; i < tokens.size(); i++) {
+            String flag = tokens.get(i);
+            if (!"-o".equals(flag) && !"+o".equals(flag)) {
+                ctx.out.print("set: ").print(flag).print(": invalid option").newline();
+                return 2;
             }
-        } catch (IOException e) {
-            // If writing fails, print nothing (real shells may report errors to stderr)
+            if (i + 1 >= tokens.size()) break;
+            String name = tokens.get(++i);
+            if (!"pipefail".equals(name)) {
+                ctx.out.print("set: ").print(name).print(": invalid option name").newline();
+                return 1;
+            }
+            if (!ctx.subshell) ctx.session.pipefail = "-o".equals(flag);
         }
+        return 0;
     }
 
-    // Tokenize an input line honoring single and double quotes and backslashes
-    private static List<String> tokenize(String input) {
-        List<String> tokens = new ArrayList<>();
-        StringBuilder current = new StringBuilder();
-        boolean inSingle = false;
-        boolean inDouble = false;
-        int n = input.length();
-        for (int i = 0; i < n; i++) {
-            char c = input.charAt(i);
-            if (inSingle) {
-                if (c == '\'') {
-                    inSingle = false;
-                } else {
-                    current.append(c); // backslashes are literal in single quotes
-                }
-            } else if (inDouble) {
-                if (c == '"') {
-                    inDouble = false;
-                } else if (c == '\\') {
-                    if (i + 1 < n) {
-                        char next = input.charAt(i + 1);
-                        // In double quotes, backslash escapes " and \
-                        if (next == '"' || next == '\\') {
-                            current.append(next);
-                            i++;
-                        } else {
-                            // Keep backslash literally for other chars
-                            current.append('\\');
-                        }
-                    } else {
-                        current.append('\\');
-                    }
-                } else {
-                    current.append(c);
-                }
-            } else {
-                if (Character.isWhitespace(c)) {
-                    if (current.length() > 0) {
-                        tokens.add(current.toString());
-                        current.setLength(0);
-                    }
-                    // collapse consecutive spaces
-                } else if (c == '\'') {
-                    inSingle = true;
-                } else if (c == '"') {
-                    inDouble = true;
-                } else if (c == '|') {
-                    // Pipe character: emit current token if any, then emit pipe as separate token
-                    if (current.length() > 0) {
-                        tokens.add(current.toString());
-                        current.setLength(0);
-                    }
-                    tokens.add("|");
-                } else if (c == '\\') {
-                    if (i + 1 < n) {
-                        // Outside quotes, backslash escapes next char (including whitespace)
-                        current.append(input.charAt(i + 1));
-                        i++;
-                    } else {
-                        current.append('\\');
-                    }
-                } else {
-                    current.append(c);
+    // enable [-a]: list the in-process utilities that are on (with -a, all of them)
+    // enable name...: run them in-process; enable -n name...: back to the programs in PATH
+    private static int enableBuiltin(Builtin.Context ctx) throws IOException {
+        List<String> tokens = ctx.argv;
+        boolean disable = false;
+        boolean all = false;
+        int i = 1;
+        for (; i < tokens.size() && tokens.get(i).startsWith("-"); i++) {
+            if ("-n".equals(tokens.get(i))) disable = true;
+            else if ("-a".equals(tokens.get(i))) all = true;
+            else {
+                ctx.out.print("enable: ").print(tokens.get(i)).print(": invalid option").newline();
+                return 2;
+            }
+        }
+        if (i == tokens.size()) {
+            for (String name : new TreeMap<>(UTILITIES).keySet()) {
+                boolean on = ctx.session.enabled.contains(name);
+                if (on ? !disable : all || disable) ctx.out.print(on ? "enable " : "enable -n ").print(name).newline();
+            }
+            return 0;
+        }
+        int status = 0;
+        for (; i < tokens.size(); i++) {
+            String name = tokens.get(i);
+            if (!UTILITIES.containsKey(name)) {
+                if (disable || !BUILTINS.containsKey(name)) {
+                    ctx.out.print("enable: ").print(name).print(BUILTINS.containsKey(name) ? ": cannot be disabled" : ": not a shell builtin").newline();
+                    status = 1;
                 }
+                continue;
             }
+            if (ctx.subshell) continue;
+            if (disable) ctx.session.enabled.remove(name);
+            else ctx.session.enabled.add(name);
         }
-        if (current.length() > 0) {
-            tokens.add(current.toString());
+        return status;
+    }
+
+    // shellstat: counters and latency percentiles of this session; shellstat -r: reset them
+    private static int shellstatBuiltin(Builtin.Context ctx) throws IOException {
+        String opt = ctx.arg(1);
+        if (opt == null) {
+            ctx.session.stats.print(ctx.out);
+            return 0;
+        }
+        if ("-r".equals(opt)) {
+            if (!ctx.subshell) ctx.session.stats.reset();
+            return 0;
         }
-        return tokens;
+        ctx.out.print("shellstat: ").print(opt).print(": invalid option").newline();
+        return 2;
     }
 
-    // Execute a pipeline between two commands (replaced by generic chain executor)
+    // Start an and-or list without waiting for it and add it to the job table. The first pipeline
+    // starts now; each later one is started from the completion of the status before it.
+    private static void runInBackground(Session session, Ast.Item item) {
+        session.stats.commands.increment();
+        ShellEvents.Command event = new ShellEvents.Command();
+        event.begin();
+        // Options apply as they were when the job started, like in a forked subshell
+        boolean pipefail = session.pipefail;
+        File currentDir = session.dir;
+        List<Process> procs = new CopyOnWriteArrayList<>();
+        CompletableFuture<Integer> status = launchInBackground(session, item.pipelines.get(0), currentDir, procs, pipefail);
+        if (item.pipelines.size() == 1 && status == null) {
+            session.lastStatus = 127;
+            return;
+        }
+        if (status == null) status = CompletableFuture.completedFuture(127);
+        for (int i = 1; i < item.pipelines.size(); i++) {
+            Lexer.Kind operator = item.operators.get(i - 1);
+            Ast.Pipeline next = item.pipelines.get(i);
+            status = status.thenCompose(s -> {
+                if (!runsAfter(operator, s)) return CompletableFuture.completedFuture(s);
+                CompletableFuture<Integer> started = launchInBackground(session, next, currentDir, procs, pipefail);
+                return started != null ? started : CompletableFuture.completedFuture(127);
+            });
+        }
+        if (event.isEnabled()) {
+            status = status.whenComplete((s, e) -> {
+                if (event.shouldCommit()) {
+                    event.command = item.text;
+                    event.status = e == null ? s : 1;
+                    event.background = true;
+                    event.commit();
+                }
+            });
+        }
+        Jobs.Job job = session.jobs.add(item.text, procs, status);
+        if (session.interactive) session.out.println("[" + job.id + "] " + job.pid());
+        session.lastStatus = 0;
+    }
 
-    // Execute N-stage pipeline with builtin/external mixing
-    private static void executePipelineChain(List<List<String>> stages, File currentDir) {
+    // Start one pipeline of a background job, adding its processes to procs. Returns its status
+    // future, or null if a command was not found or could not be started.
+    private static CompletableFuture<Integer> launchInBackground(Session session, Ast.Pipeline pipeline, File currentDir,
+                                                                 List<Process> procs, boolean pipefail) {
+        for (Ast.Command command : pipeline.commands) {
+            String name = command.argv.isEmpty() ? null : command.argv.get(0);
+            if (name != null && builtin(session, name) == null && commandPath(session, name, currentDir) == null) {
+                session.out.println(name + ": command not found");
+                return null;
+            }
+        }
+        List<Process> started = new ArrayList<>();
+        List<CompletableFuture<Integer>> stages = new ArrayList<>();
         try {
-            // Prepare per-stage cleaned tokens and redirections
-            int n = stages.size();
-            List<List<String>> cleanedStages = new ArrayList<>(n);
-            List<Redir> redirs = new ArrayList<>(n);
-            for (int i = 0; i < n; i++) {
-                Redir r = new Redir();
-                List<String> cleaned = extractRedirectionsAndClean(stages.get(i), r);
-                if (cleaned.isEmpty()) return; // nothing to run
-                cleanedStages.add(cleaned);
-                redirs.add(r);
+            if (!launchPipeline(session, pipeline, currentDir, true, started, stages, null)) return null;
+        } catch (IOException e) {
+            for (Process p : started) p.destroy();
+            session.err.println(e.getMessage());
+            return null;
+        }
+        procs.addAll(started);
+        return pipelineStatus(stages, pipefail);
+    }
+
+    // parallel [-j N] [-k] command [args...] [::: items...]
+    // Runs command once per item on N workers (default: one per CPU; at most PARALLEL_MAX_WORKERS,
+    // and no more than there are items after :::). Items come after ::: or,
+    // without it, one per line from stdin. {} in the arguments is replaced by the item; if there
+    // is no {}, the item is appended. Each job's stdout and stderr are buffered and written as
+    // one block when it finishes (with -k, in input order), so lines from different jobs never
+    // interleave. A summary with the job count, failures and throughput goes to stderr.
+    // Returns the number of failed jobs.
+    private static int parallelBuiltin(Session session, List<String> tokens, File currentDir, InputStream in,
+                                       OutputStream out, OutputStream err) throws IOException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        boolean keepOrder = false;
+        int i = 1;
+        for (; i < tokens.size() && tokens.get(i).startsWith("-"); i++) {
+            String opt = tokens.get(i);
+            try {
+                if ("--".equals(opt)) { i++; break; }
+                else if ("-k".equals(opt)) keepOrder = true;
+                else if ("-j".equals(opt) && i + 1 < tokens.size()) workers = Integer.parseInt(tokens.get(++i));
+                else if (opt.startsWith("-j")) workers = Integer.parseInt(opt.substring(2));
+                else break;
+            } catch (NumberFormatException e) {
+                workers = 0;
             }
+        }
+        int sep = tokens.indexOf(":::");
+        List<String> template = new ArrayList<>(tokens.subList(i, sep >= 0 ? sep : tokens.size()));
+        if (template.isEmpty() || template.get(0).equals(":::") || workers < 1) {
+            err.write(("parallel: usage: parallel [-j jobs] [-k] command [args...] [::: items...]" + System.lineSeparator())
+                .getBytes(StandardCharsets.UTF_8));
+            err.flush();
+            return 1;
+        }
+        ParallelItems items = sep >= 0 ? new ParallelItems(tokens.subList(sep + 1, tokens.size()))
+                                       : new ParallelItems(in);
+        // Each worker is a thread for the whole run, so -j cannot ask for an unbounded number
+        workers = Math.min(workers, PARALLEL_MAX_WORKERS);
+        if (sep >= 0) workers = Math.max(1, Math.min(workers, tokens.size() - sep - 1));
+
+        ParallelOutput sink = new ParallelOutput(out, err, keepOrder);
+        long started = System.nanoTime();
+        List<CompletableFuture<Void>> pool = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            pool.add(CompletableFuture.runAsync(() -> {
+                ParallelItem next;
+                while ((next = items.next()) != null) {
+                    sink.done(next.index, runParallelJob(session, template, next.value, currentDir));
+                }
+            }, STAGES));
+        }
+        for (CompletableFuture<Void> f : pool) f.join();
 
-            // Only apply stdout/stderr redirection of the LAST stage to the final output.
-            Redir lastRedir = redirs.get(n - 1);
+        // "parallel: 8 jobs, 0 failed, 1.25 s, 6.4 jobs/s"
+        long micros = (System.nanoTime() - started) / 1000;
+        long centis = micros / 10_000;
+        long jobsPerTenSeconds = micros > 0 ? sink.jobs * 10_000_000L / micros : 0;
+        BuiltinOutput summary = new BuiltinOutput(err, 128);
+        synchronized (err) {
+            summary.print("parallel: ").print(sink.jobs).print(" jobs, ").print(sink.failed).print(" failed, ")
+                .print(centis / 100).print('.').print(centis / 10 % 10).print(centis % 10)
+                .print(" s, ").print(jobsPerTenSeconds / 10).print('.').print(jobsPerTenSeconds % 10).print(" jobs/s").newline();
+            summary.flush();
+        }
+        return sink.failed;
+    }
 
-            // If all stages are external commands, use native streaming pipeline
-            boolean allExternal = true;
-            for (List<String> ts : cleanedStages) {
-                if (isPipelineBuiltin(ts.get(0))) { allExternal = false; break; }
+    // One parallel job: its stdout, stderr and exit status
+    private static final class ParallelResult {
+        byte[] stdout = new byte[0];
+        byte[] stderr = new byte[0];
+        int status;
+    }
+
+    // Run template for one item. Builtins run in-process; anything else goes through the same
+    // launch path as other external commands, with stdin from /dev/null.
+    private static ParallelResult runParallelJob(Session session, List<String> template, String item, File currentDir) {
+        List<String> argv = new ArrayList<>(template.size() + 1);
+        boolean substituted = false;
+        for (String arg : template) {
+            if (arg.contains("{}")) {
+                argv.add(arg.replace("{}", item));
+                substituted = true;
+            } else {
+                argv.add(arg);
             }
-            if (allExternal) {
-                List<ProcessBuilder> builders = new ArrayList<>(n);
-                for (int i = 0; i < n; i++) {
-                    List<String> tokens = cleanedStages.get(i);
-                    String cmd = tokens.get(0);
-                    // Build command via sh -c so argv[0] is the typed name
-                    List<String> command = new ArrayList<>();
-                    command.add("/bin/sh");
-                    command.add("-c");
-                    command.add("exec \"$0\" \"$@\"");
-                    command.add(cmd);
-                    for (int a = 1; a < tokens.size(); a++) command.add(tokens.get(a));
-                    ProcessBuilder pb = new ProcessBuilder(command);
-                    pb.directory(currentDir);
-                    // Only apply last stage redirections
-                    if (i == n - 1) {
-                        if (lastRedir.stdoutTarget != null) {
-                            File f = resolvePath(currentDir, lastRedir.stdoutTarget);
-                            pb.redirectOutput(lastRedir.stdoutAppend ? ProcessBuilder.Redirect.appendTo(f)
-                                                                     : ProcessBuilder.Redirect.to(f));
-                        } else {
-                            pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                        }
-                        if (lastRedir.stderrTarget != null) {
-                            File f = resolvePath(currentDir, lastRedir.stderrTarget);
-                            pb.redirectError(lastRedir.stderrAppend ? ProcessBuilder.Redirect.appendTo(f)
-                                                                   : ProcessBuilder.Redirect.to(f));
-                        } else {
-                            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
-                        }
-                    } else {
-                        pb.redirectOutput(ProcessBuilder.Redirect.PIPE); // will be wired by startPipeline
-                        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
-                    }
-                    builders.add(pb);
+        }
+        if (!substituted) argv.add(item);
+
+        ParallelResult result = new ParallelResult();
+        if (builtin(session, argv.get(0)) != null && !"parallel".equals(argv.get(0))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            try {
+                result.status = runSubshellBuiltin(session, argv, currentDir, null, out, err);
+            } catch (IOException e) {
+                result.status = 1; // in-memory streams do not fail
+            }
+            result.stdout = out.toByteArray();
+            result.stderr = err.toByteArray();
+            return result;
+        }
+        String path = commandPath(session, argv.get(0), currentDir);
+        if (path == null) {
+            result.stderr = (argv.get(0) + ": command not found" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            result.status = 127;
+            return result;
+        }
+        ProcessBuilder pb = externalCommand(session, path, argv, currentDir);
+        pb.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        try {
+            Process p = startProcess(session, pb);
+            // Drain stderr alongside stdout so neither pipe can fill up and stall the child
+            CompletableFuture<byte[]> stderr = CompletableFuture.supplyAsync(() -> {
+                try (InputStream es = p.getErrorStream()) {
+                    return es.readAllBytes();
+                } catch (IOException e) {
+                    return new byte[0];
                 }
-                List<Process> procs = ProcessBuilder.startPipeline(builders);
-                for (Process p : procs) p.waitFor();
-                return;
+            }, STAGES);
+            try (InputStream os = p.getInputStream()) {
+                result.stdout = os.readAllBytes();
             }
+            result.stderr = stderr.join();
+            result.status = p.waitFor();
+        } catch (IOException e) {
+            result.stderr = (argv.get(0) + ": " + e.getMessage() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            result.status = 126;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.status = 130;
+        }
+        return result;
+    }
 
-            // Stream the pipeline stage-by-stage in memory when builtins are involved.
-            // Strategy: for each stage i
-            //  - If external: start process, feed previous output (if any), capture stdout
-            //  - If builtin: run via execBuiltinForPipeline with proper input/output stream
-            byte[] prevOutput = null; // null means no stdin provided
-            for (int i = 0; i < n; i++) {
-                List<String> tokens = cleanedStages.get(i);
-                String cmd = tokens.get(0);
-                boolean isBuiltin = isPipelineBuiltin(cmd);
-                boolean isLast = (i == n - 1);
-
-                // Decide output sink for this stage:
-                OutputStream stageOut;
-                if (isLast) {
-                    // Honor last stage redirection
-                    if (lastRedir.stdoutTarget != null) {
-                        File f = resolvePath(currentDir, lastRedir.stdoutTarget);
-                        stageOut = Files.newOutputStream(
-                            f.toPath(),
-                            lastRedir.stdoutAppend ? new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.APPEND}
-                                                   : new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING});
-                    } else {
-                        stageOut = System.out;
-                    }
-                } else {
-                    // Intermediate stage: capture to buffer
-                    stageOut = new ByteArrayOutputStream();
+    // Work queue for parallel: numbered items from a list or from stdin lines
+    private static final class ParallelItems {
+        private final List<String> list;
+        private final BufferedReader reader;
+        private int next;
+
+        ParallelItems(List<String> list) {
+            this.list = list;
+            this.reader = null;
+        }
+
+        ParallelItems(InputStream in) {
+            this.list = null;
+            this.reader = in == null ? null : new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        // The next item, or null when the input is exhausted
+        synchronized ParallelItem next() {
+            String item;
+            if (list != null) {
+                if (next >= list.size()) return null;
+                item = list.get(next);
+            } else {
+                if (reader == null) return null;
+                try {
+                    do {
+                        item = reader.readLine();
+                    } while (item != null && item.isEmpty());
+                } catch (IOException e) {
+                    item = null;
                 }
+                if (item == null) return null;
+            }
+            return new ParallelItem(next++, item);
+        }
+    }
 
-                try (OutputStream os = (stageOut == System.out ? null : stageOut)) {
-                    OutputStream actualOut = (os == null ? System.out : os);
-                    if (isBuiltin) {
-                        execBuiltinForPipeline(tokens, currentDir,
-                            prevOutput == null ? null : new ByteArrayInputStream(prevOutput),
-                            actualOut);
-                    } else {
-                        // Build external command
-                        List<String> command = new ArrayList<>();
-                        command.add("/bin/sh");
-                        command.add("-c");
-                        command.add("exec \"$0\" \"$@\"");
-                        command.add(cmd);
-                        for (int a = 1; a < tokens.size(); a++) command.add(tokens.get(a));
-
-                        ProcessBuilder pb = new ProcessBuilder(command);
-                        pb.directory(currentDir);
-
-                        // stderr handling: for intermediate stages, inherit; for last stage, honor lastRedir
-                        if (isLast && lastRedir.stderrTarget != null) {
-                            File f = resolvePath(currentDir, lastRedir.stderrTarget);
-                            pb.redirectError(lastRedir.stderrAppend ? ProcessBuilder.Redirect.appendTo(f)
-                                                                    : ProcessBuilder.Redirect.to(f));
-                        } else {
-                            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
-                        }
+    // An item for parallel and its position in the input
+    private static final class ParallelItem {
+        final int index;
+        final String value;
 
-                        if (prevOutput == null) {
-                            pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
-                        } else {
-                            pb.redirectInput(ProcessBuilder.Redirect.PIPE);
-                        }
+        ParallelItem(int index, String value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
 
-                        if (isLast && lastRedir.stdoutTarget != null) {
-                            // When last stage has redirection, let ProcessBuilder write directly to file
-                            File f = resolvePath(currentDir, lastRedir.stdoutTarget);
-                            pb.redirectOutput(lastRedir.stdoutAppend ? ProcessBuilder.Redirect.appendTo(f)
-                                                                     : ProcessBuilder.Redirect.to(f));
-                            Process p = pb.start();
-                            if (prevOutput != null) {
-                                try (OutputStream pin = p.getOutputStream()) {
-                                    pin.write(prevOutput);
-                                }
-                            }
-                            p.waitFor();
-                            // nothing to capture further
-                        } else {
-                            pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-                            Process p = pb.start();
-                            if (prevOutput != null) {
-                                try (OutputStream pin = p.getOutputStream()) {
-                                    pin.write(prevOutput);
-                                }
-                            }
-                            // Read process stdout and forward to stageOut (System.out or buffer)
-                            try (InputStream procOut = p.getInputStream()) {
-                                byte[] buf = new byte[8192];
-                                int r;
-                                while ((r = procOut.read(buf)) != -1) {
-                                    actualOut.write(buf, 0, r);
-                                }
-                            }
-                            actualOut.flush();
-                            p.waitFor();
-                        }
-                    }
+    // Writes finished parallel jobs as whole blocks; with keepOrder, holds them back until every
+    // earlier item has been written
+    private static final class ParallelOutput {
+        private final OutputStream out;
+        private final OutputStream err;
+        private final boolean keepOrder;
+        private final TreeMap<Integer, ParallelResult> held = new TreeMap<>();
+        private int nextToWrite;
+        int jobs;
+        int failed;
 
-                    // Prepare prevOutput for next stage if needed
-                    if (!isLast) {
-                        if (actualOut instanceof ByteArrayOutputStream) {
-                            prevOutput = ((ByteArrayOutputStream) actualOut).toByteArray();
-                        } else if (stageOut instanceof ByteArrayOutputStream) {
-                            prevOutput = ((ByteArrayOutputStream) stageOut).toByteArray();
-                        } else {
-                            // If output went to System.out unexpectedly, no data for next stage
-                            prevOutput = null;
-                        }
+        ParallelOutput(OutputStream out, OutputStream err, boolean keepOrder) {
+            this.out = out;
+            this.err = err;
+            this.keepOrder = keepOrder;
+        }
+
+        synchronized void done(int index, ParallelResult result) {
+            jobs++;
+            if (result.status != 0) failed++;
+            if (!keepOrder) {
+                write(result);
+                return;
+            }
+            held.put(index, result);
+            while (!held.isEmpty() && held.firstKey() == nextToWrite) {
+                write(held.pollFirstEntry().getValue());
+                nextToWrite++;
+            }
+        }
+
+        private void write(ParallelResult result) {
+            try {
+                if (result.stdout.length > 0) {
+                    out.write(result.stdout);
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+                // reader went away; keep running the remaining jobs for their side effects
+            }
+            try {
+                if (result.stderr.length > 0) {
+                    synchronized (err) {
+                        err.write(result.stderr);
+                        err.flush();
                     }
                 }
+            } catch (IOException ignored) {
             }
-            
-        } catch (IOException | InterruptedException e) {
-            System.out.println("Pipeline execution failed: " + e.getMessage());
+        }
+    }
+
+    private static Jobs.Job jobByPid(Session session, String pid) {
+        try {
+            return session.jobs.byPid(Long.parseLong(pid));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Send SIGCONT to the processes of a stopped job (Java has no API for it, so use kill(1))
+    private static void continueJob(Session session, Jobs.Job job) {
+        if (!Jobs.stopped(job)) return;
+        List<String> command = new ArrayList<>();
+        command.add("kill");
+        command.add("-CONT");
+        for (Process p : job.processes) command.add(Long.toString(p.pid()));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        // kill's own complaints belong to this session, which may not be on our descriptors
+        if (session.console) pb.inheritIO();
+        else pb.redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD);
+        try {
+            pb.start().waitFor();
+        } catch (IOException e) {
+            session.err.println("kill: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Read the next key, flushing pending terminal output first unless more input is already waiting
+    private static int readKey(Session session, InputStream in, LineRenderer screen) throws IOException {
+        if (in.available() == 0) redraw(session, screen);
+        int ch = in.read();
+        if (session.keyReadAt == 0) session.keyReadAt = System.nanoTime();
+        return ch;
+    }
+
+    // Flush pending terminal output and record how long the first key it answers waited for it
+    private static void redraw(Session session, LineRenderer screen) {
+        screen.flush();
+        if (session.keyReadAt != 0) {
+            session.stats.keyToRedraw.record(System.nanoTime() - session.keyReadAt);
+            session.keyReadAt = 0;
+        }
+    }
+
+    // TAB completion candidates for prefix
+    private static CompletionIndex.Matches complete(Session session, String prefix) {
+        ShellEvents.CompletionLookup event = new ShellEvents.CompletionLookup();
+        event.begin();
+        CompletionIndex.Matches matches = completionIndex(session).complete(prefix, session.dir);
+        if (event.shouldCommit()) {
+            event.prefix = prefix;
+            event.matches = matches.size();
+            event.commit();
+        }
+        return matches;
+    }
+
+    // The builtin that runs name in session, or null if it is an external command
+    private static Builtin builtin(Session session, String name) {
+        Builtin builtin = BUILTINS.get(name);
+        if (builtin == null && session.enabled.contains(name)) builtin = UTILITIES.get(name);
+        return builtin;
+    }
+
+    // Find the first executable matching name in PATH, with relative PATH entries taken from dir,
+    // and return its absolute path or null if not found. Lookups go through the hashed command
+    // table, so repeated commands cost one stat per PATH dir.
+    private static String findInPath(Session session, String name, File dir) {
+        return session.commands.lookup(name, dir);
+    }
+
+    // What to exec for a command name: a name with a slash is a file relative to dir, as in bash,
+    // and any other name is looked up in PATH. null if that is not an executable file.
+    private static String commandPath(Session session, String name, File dir) {
+        if (name.indexOf('/') < 0) return findInPath(session, name, dir);
+        File file = resolvePath(dir, name);
+        return file.isFile() && file.canExecute() ? file.toPath().normalize().toString() : null;
+    }
+
+    // Sorted builtin + PATH name table used for first-word completion
+    private static CompletionIndex completionIndex(Session session) {
+        return CompletionIndex.forPath(session.path(), BUILTIN_NAMES);
+    }
+
+    // Print the double-TAB candidate list, then the prompt and current buffer on a fresh line
+    private static void printCandidates(LineRenderer screen, List<String> candidates, CharSequence buffer) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i > 0) sb.append("  ");
+            sb.append(candidates.get(i));
+        }
+        screen.printAbove(sb, buffer);
+    }
+
+    // HISTSIZE/HISTFILESIZE value: a number (negative = unlimited), else the default
+    private static int historyLimit(String value, int dflt) {
+        if (value == null || value.isEmpty()) return dflt;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return dflt;
+        }
+    }
+
+    // history -r/-w/-a/-n <file>. Failures are silent, as with other builtin file writes.
+    // -n only tracks HISTFILE, the one file whose read offset the session keeps.
+    private static void historyFileOption(History history, String option, Path file) {
+        try {
+            if ("-n".equals(option) && file.equals(history.file())) history.readNew();
+            else if ("-r".equals(option)) history.read(file);
+            else if ("-w".equals(option)) history.write(file);
+            else if ("-a".equals(option)) history.appendNew(file);
+        } catch (IOException ignored) {
+            // unreadable source or unwritable target
+        }
+    }
+
+    private static File resolvePath(File currentDir, String target) {
+        if (target == null) return null;
+        if (target.startsWith("/")) return new File(target);
+        return new File(currentDir, target);
+    }
+
+    // Execute N-stage pipeline with builtin/external mixing and return its exit status.
+    // Each external stage is its own process and each builtin stage runs on its own thread; they
+    // are connected by bounded pipes (bytes between two processes are copied across by a stage
+    // thread), so all stages overlap and memory use does not depend on how much data flows through.
+    private static int executePipelineChain(Session session, Ast.Pipeline pipeline) {
+        return executePipelineChain(session, pipeline, null);
+    }
+
+    // timing: set under `time`, else null
+    private static int executePipelineChain(Session session, Ast.Pipeline pipeline, Timing timing) {
+        List<Process> procs = new ArrayList<>();
+        List<CompletableFuture<Integer>> stages = new ArrayList<>();
+        try {
+            if (!launchPipeline(session, pipeline, session.dir, false, procs, stages, timing)) return 0;
+            return pipelineStatus(stages, session.pipefail).get();
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            for (Process p : procs) p.destroy();
+            session.out.println("Pipeline execution failed: " + e.getMessage());
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
             }
+            return 1;
         }
     }
 
- 
+    // Status of a pipeline from the status futures of its stages, in stage order: the last stage's,
+    // or with pipefail the last non-zero one. Completes when every stage has.
+    private static CompletableFuture<Integer> pipelineStatus(List<CompletableFuture<Integer>> stages, boolean pipefail) {
+        return CompletableFuture.allOf(stages.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            int status = 0;
+            for (CompletableFuture<Integer> stage : stages) {
+                int s = stage.join();
+                if (!pipefail || s != 0) status = s;
+            }
+            return status;
+        });
+    }
 
-    private static boolean isPipelineBuiltin(String cmd) {
+    // Start every stage of a pipeline without waiting for any of them. Started processes are
+    // added to procs, and one status future per stage, in stage order, to stages: Process.onExit()
+    // for external stages and the stage task for builtins. Background pipelines read stdin from
+    // /dev/null instead of sharing the terminal with the shell. Returns false if a stage is empty.
+    // A redirection that cannot be applied is reported and nothing is started; the pipeline's
+    // status is then 1. Under `time`, timing gets the phases of every stage.
+    private static boolean launchPipeline(Session session, Ast.Pipeline pipeline, File currentDir, boolean background,
+                                          List<Process> procs, List<CompletableFuture<Integer>> stages,
+                                          Timing timing) throws IOException {
+        // Per-stage words and descriptor tables
+        int n = pipeline.commands.size();
+        List<List<String>> cleanedStages = new ArrayList<>(n);
+        FdTable[] fds = new FdTable[n];
+        for (int i = 0; i < n; i++) {
+            Ast.Command command = expand(pipeline.commands.get(i), session.lastStatus);
+            if (command.argv.isEmpty()) return false; // nothing to run
+            cleanedStages.add(command.argv);
+            FdTable.Target in = i > 0 ? FdTable.PIPE
+                              : background ? FdTable.file(new File("/dev/null"), false, false) : FdTable.STDIN;
+            try {
+                fds[i] = new FdTable(in, i < n - 1 ? FdTable.PIPE : FdTable.STDOUT, FdTable.STDERR)
+                    .apply(command.redirects, currentDir);
+            } catch (IOException e) {
+                session.err.println(e.getMessage());
+                stages.add(CompletableFuture.completedFuture(1));
+                return true;
+            }
+        }
+        List<CompletableFuture<Integer>> status = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) status.add(null);
 
-        return "echo".equals(cmd) || "type".equals(cmd) || "pwd".equals(cmd) || "history".equals(cmd);
-    }
+        // Every command is resolved before any stage starts: paths[i] is what external stage i
+        // execs, or null for a builtin or a command that was not found
+        boolean[] builtin = new boolean[n];
+        String[] paths = new String[n];
+        Timing.Stage[] timed = timing == null ? null : new Timing.Stage[n];
+        ShellEvents.PipelineStage[] events = new ShellEvents.PipelineStage[n];
+        for (int i = 0; i < n; i++) {
+            long lookupStart = System.nanoTime();
+            String name = cleanedStages.get(i).get(0);
+            builtin[i] = builtin(session, name) != null;
+            if (!builtin[i]) {
+                paths[i] = commandPath(session, name, currentDir);
+                if (paths[i] == null) session.out.println(name + ": command not found");
+            }
+            events[i] = new ShellEvents.PipelineStage();
+            events[i].begin();
+            if (timed != null) {
+                timed[i] = timing.stage(cleanedStages.get(i));
+                timed[i].lookupNanos = System.nanoTime() - lookupStart;
+            }
+        }
+        // connected[i]: stage i's stdout still goes to stage i+1's stdin. A redirection on either
+        // side cuts the pipe: the writer's output goes elsewhere (or, on its side, gets SIGPIPE)
+        // and the reader sees EOF. Stderr that was duplicated onto the pipe before stdout was
+        // redirected (`2>&1 >file |`) stays on the terminal.
+        boolean[] connected = new boolean[n];
+        for (int i = 0; i < n - 1; i++) {
+            connected[i] = fds[i].get(1).kind == FdTable.Kind.PIPE && fds[i + 1].get(0).kind == FdTable.Kind.PIPE;
+        }
 
-    // Minimal builtin executor for pipeline contexts. Writes to provided OutputStream only (stdout).
-    private static void execBuiltinForPipeline(List<String> tokens, File currentDir, InputStream in, OutputStream out) {
-        
-        String cmd = tokens.get(0);
-        try {
+        // Start external stages first so builtins can be wired to their stdin/stdout.
+        // stdinOf[i]: pipe into external stage i from stage i-1
+        // stdoutOf[i]: pipe out of external stage i to stage i+1
+        OutputStream[] stdinOf = new OutputStream[n];
+        InputStream[] stdoutOf = new InputStream[n];
+        for (int i = 0; i < n; i++) {
+            if (builtin[i]) continue;
+            if (paths[i] == null) {
+                // Not found: to its neighbours it is a command that exited at once with 127
+                if (timed != null) timed[i].started = System.nanoTime();
+                status.set(i, CompletableFuture.completedFuture(127));
+                stdinOf[i] = closedPipe();
+                stdoutOf[i] = InputStream.nullInputStream();
+                continue;
+            }
+            ProcessBuilder pb = externalCommand(session, paths[i], cleanedStages.get(i), currentDir);
+            fds[i].configure(pb, session.console); // a PIPE to a neighbouring stage is wired below
+            long spawnStart = System.nanoTime();
+            Process p = startProcess(session, pb);
+            if (timed != null) {
+                timed[i].started = System.nanoTime();
+                timed[i].spawnNanos = timed[i].started - spawnStart;
+            }
+            procs.add(p);
+            // A stage is done once its output carried to the session has been drained, too
+            status.set(i, p.onExit().thenCombine(pumpOutput(session, p, fds[i]), (exited, v) -> exited.exitValue()));
+            if (i > 0 && connected[i - 1]) stdinOf[i] = p.getOutputStream();
+            else feedInput(session, p, fds[i].get(0));
+            if (i < n - 1 && connected[i]) stdoutOf[i] = p.getInputStream();
+            else if (!pumped(session, fds[i].get(1))) p.getInputStream().close();
+        }
+        for (int i = 0; i < n - 1; i++) {
+            if (connected[i] && !builtin[i] && !builtin[i + 1]) connectStages(session, stdoutOf[i], stdinOf[i + 1]);
+        }
 
-            if ("echo".equals(cmd)) {
-                StringBuilder sb = new StringBuilder();
-                for (int i = 1; i < tokens.size(); i++) {
-                    if (i > 1) sb.append(' ');
-                    sb.append(tokens.get(i));
+        // Then start one thread per builtin stage
+        InputStream[] pipeInto = new InputStream[n]; // builtin -> builtin pipes
+        for (int i = 0; i < n; i++) {
+            if (!builtin[i]) continue;
+            InputStream in = null; // no pipe: stdin is the shell's or redirected
+            if (i > 0) {
+                if (!connected[i - 1]) in = InputStream.nullInputStream();
+                else in = builtin[i - 1] ? pipeInto[i] : stdoutOf[i - 1];
+            }
+            OutputStream out = null; // no pipe: stdout is the shell's, redirected or discarded
+            if (i < n - 1 && connected[i]) {
+                if (builtin[i + 1]) {
+                    PipedInputStream next = new PipedInputStream(PIPE_BUFFER_SIZE);
+                    out = new PipedOutputStream(next);
+                    pipeInto[i + 1] = next;
+                } else {
+                    out = stdinOf[i + 1];
                 }
-                sb.append(System.lineSeparator());
-                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
-                out.flush();
-            } else if ("pwd".equals(cmd)) {
-                String line;
+            }
+            long spawnStart = System.nanoTime();
+            status.set(i, startBuiltinStage(session, cleanedStages.get(i), currentDir, fds[i], in, out));
+            if (timed != null) {
+                timed[i].started = System.nanoTime();
+                timed[i].spawnNanos = timed[i].started - spawnStart;
+            }
+        }
+        if (events[0].isEnabled()) {
+            for (int i = 0; i < n; i++) {
+                ShellEvents.PipelineStage event = events[i];
+                String command = String.join(" ", cleanedStages.get(i));
+                boolean isBuiltin = builtin[i];
+                status.set(i, status.get(i).whenComplete((s, e) -> {
+                    if (event.shouldCommit()) {
+                        event.command = command;
+                        event.builtin = isBuiltin;
+                        event.status = e == null ? s : 1;
+                        event.commit();
+                    }
+                }));
+            }
+        }
+        if (timed != null) {
+            // Stamp each stage's end before the pipeline's status can complete
+            for (int i = 0; i < n; i++) {
+                Timing.Stage stage = timed[i];
+                status.set(i, status.get(i).whenComplete((s, e) -> stage.finished = System.nanoTime()));
+            }
+        }
+        stages.addAll(status);
+        return true;
+    }
+
+    // Run a builtin pipeline stage concurrently with the others. Every stage reads and writes on
+    // its own thread, so a stage feeding an external command never waits for that command's
+    // output to be drained. pipeIn and pipeOut are its pipes to the neighbouring stages, or null.
+    // When it finishes its output pipe is closed (EOF for the next stage) and so is its input
+    // pipe, so an upstream producer that is still writing gets a broken pipe instead of blocking
+    // forever. Completes with the builtin's exit status.
+    private static CompletableFuture<Integer> startBuiltinStage(Session session, List<String> tokens, File currentDir,
+                                                                FdTable fds, InputStream pipeIn, OutputStream pipe) {
+        OutputStream pipeOut = pipe == null ? null : session.stats.countingPipe(pipe);
+        return CompletableFuture.supplyAsync(() -> {
+            Thread.currentThread().setName("pipeline-" + tokens.get(0));
+            try {
+                FdTable.Streams streams;
                 try {
-                    line = currentDir.getCanonicalPath() + System.lineSeparator();
+                    streams = fds.open(session, pipeIn, pipeOut);
                 } catch (IOException e) {
-                    line = currentDir.getPath() + System.lineSeparator();
+                    session.err.println(e.getMessage());
+                    return 1;
                 }
-                out.write(line.getBytes(StandardCharsets.UTF_8));
-                out.flush();
-            } else if ("type".equals(cmd)) {
-                String[] buildInCommands = {"exit", "echo", "type", "pwd", "cd", "history"};
-                String msg;
-                if (tokens.size() < 2) {
-                    msg = "type: missing operand" + System.lineSeparator();
-                } else {
-                    String name = tokens.get(1);
-                    if (Arrays.asList(buildInCommands).contains(name)) {
-                        msg = name + " is a shell builtin" + System.lineSeparator();
-                    } else {
-                        String path = findInPath(name);
-                        if (path != null) msg = name + " is " + path + System.lineSeparator();
-                        else msg = name + ": not found" + System.lineSeparator();
-                    }
+                try (streams) {
+                    return runSubshellBuiltin(new Builtin.Context(session, tokens, currentDir, streams, true));
+                } catch (IOException e) {
+                    return BROKEN_PIPE; // downstream stage already exited
                 }
-                out.write(msg.getBytes(StandardCharsets.UTF_8));
-                out.flush();
-            } else if ("history".equals(cmd)) {
-                // Support -r, -w, -a and numeric printing in pipeline contexts too
-                if (tokens.size() >= 2 && "-r".equals(tokens.get(1))) {
-                    if (tokens.size() >= 3) {
-                        try {
-                            List<String> lines = Files.readAllLines(resolvePath(currentDir, tokens.get(2)).toPath(), StandardCharsets.UTF_8);
-                            for (String line : lines) {
-                                String t = line.trim();
-                                if (!t.isEmpty()) HISTORY.add(t);
-                            }
-                        } catch (IOException ignored) {}
-                    }
-                    // no output
-                } else if (tokens.size() >= 2 && "-w".equals(tokens.get(1))) {
-                    if (tokens.size() >= 3) {
-                        StringBuilder sb = new StringBuilder();
-                        for (String h : HISTORY) sb.append(h).append('\n');
-                        writeToFile(currentDir, tokens.get(2), sb.toString(), false);
-                        LAST_APPEND_INDEX = HISTORY.size();
-                    }
-                } else if (tokens.size() >= 2 && "-a".equals(tokens.get(1))) {
-                    if (tokens.size() >= 3) {
-                        int startIdx = Math.max(0, LAST_APPEND_INDEX);
-                        if (startIdx < HISTORY.size()) {
-                            StringBuilder sb = new StringBuilder();
-                            for (int i = startIdx; i < HISTORY.size(); i++) sb.append(HISTORY.get(i)).append('\n');
-                            writeToFile(currentDir, tokens.get(2), sb.toString(), true);
-                        } else {
-                            writeToFile(currentDir, tokens.get(2), "", true);
-                        }
-                        LAST_APPEND_INDEX = HISTORY.size();
-                    }
-                } else {
-                    int limit = -1;
-                    if (tokens.size() >= 2) {
-                        try { limit = Integer.parseInt(tokens.get(1)); }
-                        catch (NumberFormatException nfe) { limit = -1; }
-                    }
-                    int total = HISTORY.size();
-                    int start = 1;
-                    if (limit >= 0) start = Math.max(1, total - limit + 1);
-                    for (int i = start; i <= total; i++) {
-                        String line = String.format("%5d  %s%n", i, HISTORY.get(i - 1));
-                        out.write(line.getBytes(StandardCharsets.UTF_8));
-                    }
-                    out.flush();
+            } finally {
+                try {
+                    if (pipeOut != null) pipeOut.close();
+                } catch (IOException ignored) {
                 }
-            }
-        } catch (IOException ioe) {
-            // swallow for pipeline context
-        }
-    }
-    
-    // Helper method to extract redirections from tokens and return clean command tokens
-    private static List<String> extractRedirectionsAndClean(List<String> tokenList, Redir redir) {
-        List<String> cleaned = new ArrayList<>();
-        for (int i = 0; i < tokenList.size(); i++) {
-            String t = tokenList.get(i);
-            String next = (i + 1 < tokenList.size()) ? tokenList.get(i + 1) : null;
-            if (t.equals(">") || t.equals("1>") || t.equals(">>") || t.equals("1>>")) {
-                if (next != null) {
-                    redir.stdoutTarget = next;
-                    redir.stdoutAppend = t.endsWith(">>");
-                    i++;
+                try {
+                    if (pipeIn != null) pipeIn.close();
+                } catch (IOException ignored) {
                 }
-            } else if (t.equals("2>") || t.equals("2>>")) {
-                if (next != null) {
-                    redir.stderrTarget = next;
-                    redir.stderrAppend = t.endsWith(">>");
-                    i++;
+                if (pipeIn instanceof PipedInputStream) {
+                    // A writer blocked on the full pipe only rechecks once a second unless woken
+                    synchronized (pipeIn) {
+                        pipeIn.notifyAll();
+                    }
                 }
-            } else if (t.startsWith("1>>")) {
-                redir.stdoutTarget = t.substring(3).isEmpty() && next != null ? next : t.substring(3);
-                redir.stdoutAppend = true;
-                if (t.substring(3).isEmpty() && next != null) { i++; }
-            } else if (t.startsWith(">>")) {
-                redir.stdoutTarget = t.substring(2).isEmpty() && next != null ? next : t.substring(2);
-                redir.stdoutAppend = true;
-                if (t.substring(2).isEmpty() && next != null) { i++; }
-            } else if (t.startsWith("1>")) {
-                redir.stdoutTarget = t.substring(2).isEmpty() && next != null ? next : t.substring(2);
-                redir.stdoutAppend = false;
-                if (t.substring(2).isEmpty() && next != null) { i++; }
-            } else if (t.startsWith(">")) {
-                redir.stdoutTarget = t.substring(1).isEmpty() && next != null ? next : t.substring(1);
-                redir.stdoutAppend = false;
-                if (t.substring(1).isEmpty() && next != null) { i++; }
-            } else if (t.startsWith("2>>")) {
-                redir.stderrTarget = t.substring(3).isEmpty() && next != null ? next : t.substring(3);
-                redir.stderrAppend = true;
-                if (t.substring(3).isEmpty() && next != null) { i++; }
-            } else if (t.startsWith("2>")) {
-                redir.stderrTarget = t.substring(2).isEmpty() && next != null ? next : t.substring(2);
-                redir.stderrAppend = false;
-                if (t.substring(2).isEmpty() && next != null) { i++; }
-            } else {
-                cleaned.add(t);
             }
-        }
-        return cleaned;
+        }, STAGES);
+    }
+
+    // Run a builtin as a pipeline stage or parallel job: cd, set and exit only affect the command
+    // itself. Its output is flushed, but the streams are left open.
+    private static int runSubshellBuiltin(Session session, List<String> argv, File currentDir, InputStream in,
+                                          OutputStream out, OutputStream err) throws IOException {
+        return runSubshellBuiltin(new Builtin.Context(session, argv, currentDir, in, out, err, true));
+    }
+
+    private static int runSubshellBuiltin(Builtin.Context ctx) throws IOException {
+        int status = builtin(ctx.session, ctx.argv.get(0)).run(ctx);
+        ctx.out.flush();
+        ctx.err.flush();
+        return status;
     }
 
-    // Compute the longest common prefix among a list of strings
-    private static String longestCommonPrefix(List<String> items) {
-        if (items == null || items.isEmpty()) return "";
-        String prefix = items.get(0);
-        for (int i = 1; i < items.size(); i++) {
-            String s = items.get(i);
-            int j = 0;
-            int max = Math.min(prefix.length(), s.length());
-            while (j < max && prefix.charAt(j) == s.charAt(j)) {
-                j++;
+    // Virtual threads (JDK 21+) are looked up reflectively because the build targets Java 17;
+    // -Dshell.stages=platform keeps platform threads on newer JDKs as well.
+    private static ExecutorService stageExecutor() {
+        if (!"platform".equals(System.getProperty("shell.stages"))) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // Java 17-20: fall through
             }
-            prefix = prefix.substring(0, j);
-            if (prefix.isEmpty()) break;
         }
-        return prefix;
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pipeline-stage");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // ProcessBuilder for an external pipeline stage or command, in the session's environment.
+    // path is where commandPath found tokens[0], and it is what runs, with tokens[0] as typed for
+    // argv[0]. ProcessBuilder execs its argv[0], so it is used directly when that comes to path: a
+    // name with a slash (resolved in currentDir, as path was), or a bare name in a session whose
+    // PATH is the JDK's, where the JDK's search from currentDir is the lookup that found path.
+    // Otherwise the trampoline runs path under the typed name.
+    private static ProcessBuilder externalCommand(Session session, String path, List<String> tokens, File currentDir) {
+        boolean direct = DIRECT_LAUNCH
+            && (tokens.get(0).indexOf('/') >= 0 || Objects.equals(session.path(), JVM_PATH));
+        ProcessBuilder pb = new ProcessBuilder(direct ? new ArrayList<>(tokens) : trampoline(path, tokens));
+        pb.directory(currentDir);
+        if (!session.inheritsEnvironment()) {
+            Map<String, String> env = pb.environment();
+            env.clear();
+            env.putAll(session.env);
+        }
+        return pb;
+    }
+
+    // Run path with argv[0] as typed in tokens: `exec -a` where a bash is installed, else plain
+    // sh -c 'exec', which finds the typed name in the session's PATH (the search that gave path)
+    private static List<String> trampoline(String path, List<String> tokens) {
+        List<String> command = new ArrayList<>(tokens.size() + 4);
+        if (ARGV0_SHELL != null) {
+            command.add(ARGV0_SHELL);
+            command.add("-c");
+            command.add("exec -a \"$0\" \"$@\"");
+            command.add(tokens.get(0));
+            command.add(path);
+            command.addAll(tokens.subList(1, tokens.size()));
+        } else {
+            command.add("/bin/sh");
+            command.add("-c");
+            command.add("exec \"$0\" \"$@\"");
+            command.addAll(tokens);
+        }
+        return command;
+    }
+
+    private static String argv0Shell() {
+        for (String bash : new String[]{"/bin/bash", "/usr/bin/bash"}) {
+            if (new File(bash).canExecute()) return bash;
+        }
+        return null;
+    }
+
+    // Start one command. If a direct exec is refused, retry through the trampoline.
+    private static Process startProcess(Session session, ProcessBuilder pb) throws IOException {
+        // Children inheriting our stdout must not overtake output still sitting in our buffer
+        session.out.flush();
+        ShellEvents.Spawn event = new ShellEvents.Spawn();
+        event.begin();
+        String program = pb.command().get(0);
+        long spawnStart = System.nanoTime();
+        Process started;
+        try {
+            started = pb.start();
+        } catch (IOException e) {
+            List<String> argv = pb.command();
+            if (!DIRECT_LAUNCH || argv.get(0).equals(ARGV0_SHELL) || argv.get(0).equals("/bin/sh")) throw e;
+            pb.command(trampoline(argv.get(0), argv));
+            started = pb.start();
+        }
+        session.stats.spawn.record(System.nanoTime() - spawnStart);
+        if (event.shouldCommit()) {
+            event.program = program;
+            event.commit();
+        }
+        return started;
+    }
+
+    // Stands for the stdin of a pipeline stage that never started: every write fails, so the
+    // stage before it stops as it would on a closed pipe
+    private static OutputStream closedPipe() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+    }
+
+    // Copy between two external pipeline stages on a stage thread, a read at a time so output
+    // shows up downstream while the writer runs. Once the reader has exited, both pipes are
+    // closed and the writer dies of SIGPIPE on its next write, as between two children of bash.
+    private static void connectStages(Session session, InputStream from, OutputStream to) {
+        STAGES.execute(() -> {
+            byte[] buf = new byte[PIPE_BUFFER_SIZE];
+            try (from; to) {
+                int n;
+                while ((n = from.read(buf)) > 0) {
+                    to.write(buf, 0, n);
+                    to.flush();
+                    session.stats.pipeBytes.add(n);
+                }
+            } catch (IOException ignored) {
+                // the reader is gone
+            }
+        });
     }
 }
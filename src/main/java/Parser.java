@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builds an Ast.Script from the typed tokens of one command line.
+//   script   := andOr ((';' | '&') andOr)* [';' | '&']
+//   andOr    := pipeline (('&&' | '||') pipeline)*
+//   pipeline := command ('|' command)*
+//   command  := (WORD | REDIRECT WORD)+
+// Syntax errors are reported as IllegalArgumentException with bash's wording. Parsed lines are
+// kept in a small LRU cache, since history recall and scripts repeat the same lines.
+final class Parser {
+    private static final int CACHE_SIZE = 256;
+    private static final Map<String, Ast.Script> CACHE = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Ast.Script> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String input;
+    private final List<Lexer.Token> tokens;
+    private int pos;
+
+    private Parser(String input) {
+        this.input = input;
+        this.tokens = Lexer.lex(input);
+    }
+
+    static Ast.Script parse(String line) {
+        synchronized (CACHE) {
+            Ast.Script cached = CACHE.get(line);
+            if (cached != null) return cached;
+        }
+        Ast.Script script = new Parser(line).script();
+        synchronized (CACHE) {
+            CACHE.put(line, script);
+        }
+        return script;
+    }
+
+    private Ast.Script script() {
+        List<Ast.Item> items = new ArrayList<>();
+        while (pos < tokens.size()) {
+            int first = pos;
+            List<Ast.Pipeline> pipelines = new ArrayList<>();
+            List<Lexer.Kind> operators = new ArrayList<>();
+            pipelines.add(pipeline());
+            while (pos < tokens.size()
+                   && (tokens.get(pos).kind == Lexer.Kind.AND_IF || tokens.get(pos).kind == Lexer.Kind.OR_IF)) {
+                operators.add(tokens.get(pos++).kind);
+                pipelines.add(pipeline());
+            }
+            String text = input.substring(tokens.get(first).start, tokens.get(pos - 1).end);
+            boolean background = false;
+            if (pos < tokens.size()) {
+                Lexer.Token sep = tokens.get(pos);
+                if (sep.kind == Lexer.Kind.AMP) {
+                    background = true;
+                } else if (sep.kind != Lexer.Kind.SEMI) {
+                    throw unexpected(sep);
+                }
+                pos++;
+            }
+            items.add(new Ast.Item(pipelines, operators, background, text));
+        }
+        return new Ast.Script(items);
+    }
+
+    private Ast.Pipeline pipeline() {
+        int first = pos;
+        List<Ast.Command> commands = new ArrayList<>();
+        commands.add(command());
+        while (pos < tokens.size() && tokens.get(pos).kind == Lexer.Kind.PIPE) {
+            pos++;
+            commands.add(command());
+        }
+        String text = input.substring(tokens.get(first).start, tokens.get(pos - 1).end);
+        return new Ast.Pipeline(commands, text);
+    }
+
+    private Ast.Command command() {
+        List<String> argv = new ArrayList<>();
+        List<Ast.Redirect> redirects = new ArrayList<>();
+        while (pos < tokens.size()) {
+            Lexer.Token t = tokens.get(pos);
+            if (t.kind == Lexer.Kind.WORD) {
+                argv.add(t.text);
+                pos++;
+            } else if (t.kind == Lexer.Kind.REDIRECT) {
+                pos++;
+                if (pos >= tokens.size()) throw unexpected(null);
+                Lexer.Token target = tokens.get(pos);
+                if (target.kind != Lexer.Kind.WORD) throw unexpected(target);
+                redirect(t, target.text, redirects);
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (argv.isEmpty() && redirects.isEmpty()) {
+            throw unexpected(pos < tokens.size() ? tokens.get(pos) : null);
+        }
+        return new Ast.Command(argv, redirects);
+    }
+
+    private static void redirect(Lexer.Token t, String target, List<Ast.Redirect> out) {
+        int fd = t.fd;
+        switch (t.text) {
+            case "<":
+                out.add(new Ast.Redirect(fd < 0 ? 0 : fd, Ast.Redirect.Op.READ, target));
+                break;
+            case ">":
+            case ">|":
+                out.add(new Ast.Redirect(fd < 0 ? 1 : fd, Ast.Redirect.Op.WRITE, target));
+                break;
+            case ">>":
+                out.add(new Ast.Redirect(fd < 0 ? 1 : fd, Ast.Redirect.Op.APPEND, target));
+                break;
+            case "<<<":
+                out.add(new Ast.Redirect(fd < 0 ? 0 : fd, Ast.Redirect.Op.HERE_STRING, target));
+                break;
+            case ">&":
+            case "<&":
+                if (isNumber(target)) {
+                    out.add(new Ast.Redirect(fd < 0 ? (t.text.equals(">&") ? 1 : 0) : fd, Ast.Redirect.Op.DUP, target));
+                } else if (fd < 0 && t.text.equals(">&")) {
+                    bothTo(Ast.Redirect.Op.WRITE, target, out); // >&file is &>file
+                } else {
+                    throw new IllegalArgumentException(target + ": ambiguous redirect");
+                }
+                break;
+            case "&>":
+                bothTo(Ast.Redirect.Op.WRITE, target, out);
+                break;
+            case "&>>":
+                bothTo(Ast.Redirect.Op.APPEND, target, out);
+                break;
+            default:
+                throw unexpected(t); // << here-documents need more than one line
+        }
+    }
+
+    private static void bothTo(Ast.Redirect.Op op, String target, List<Ast.Redirect> out) {
+        out.add(new Ast.Redirect(1, op, target));
+        out.add(new Ast.Redirect(2, Ast.Redirect.Op.DUP, "1"));
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    // null means end of line
+    private static IllegalArgumentException unexpected(Lexer.Token t) {
+        return new IllegalArgumentException("syntax error near unexpected token `" + (t == null ? "newline" : t.text) + "'");
+    }
+}
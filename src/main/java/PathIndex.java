@@ -0,0 +1,200 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Hashed command table for PATH lookups (like bash's `hash`). Each session has its own
+// (Session.commands), so its hits and `hash -r` are its alone; forPath gives the shared index of a
+// PATH value that completion lists executables from.
+// A resolved name remembers the PATH directory it was found in. The hit is trusted while
+// that directory and every directory ahead of it in PATH keep the modification time they
+// had when the name was hashed; any change drops the affected entries and they are resolved again.
+// Empty and relative PATH entries name a directory relative to the working directory of each
+// lookup, as in bash; one that comes to a different directory than last time counts as changed.
+final class PathIndex {
+    // Shared indexes of the most recently used PATH values
+    private static final int INDEXES_SIZE = 16;
+    private static final Map<String, PathIndex> INDEXES = new LinkedHashMap<>(INDEXES_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PathIndex> eldest) {
+            return size() > INDEXES_SIZE;
+        }
+    };
+
+    private final Dir[] dirs;
+    // Where hits and misses are counted, or null
+    private final ShellStats stats;
+    // Bumped whenever a PATH directory is seen to change, so derived indexes know to rebuild
+    private long generation;
+    // Remembered lookups in insertion order (what `hash` prints)
+    private final Map<String, Entry> table = new LinkedHashMap<>();
+
+    PathIndex(String pathEnv, ShellStats stats) {
+        this.stats = stats;
+        String[] parts = pathEnv == null || pathEnv.isEmpty() ? new String[0] : pathEnv.split(":", -1);
+        dirs = new Dir[parts.length];
+        for (int i = 0; i < parts.length; i++) dirs[i] = new Dir(parts[i]);
+    }
+
+    static PathIndex forPath(String pathEnv) {
+        synchronized (INDEXES) {
+            return INDEXES.computeIfAbsent(pathEnv == null ? "" : pathEnv, p -> new PathIndex(p, null));
+        }
+    }
+
+    // Absolute path of the first executable called name in PATH, from working directory cwd, or
+    // null if there is none. A name with a slash is not looked up in PATH: it is returned as is if
+    // it names an executable file from cwd.
+    synchronized String lookup(String name, File cwd) {
+        if (name == null || name.isEmpty()) return null;
+        if (name.indexOf('/') >= 0) {
+            File file = new File(name).isAbsolute() ? new File(name) : new File(cwd, name);
+            return file.isFile() && file.canExecute() ? name : null;
+        }
+        Entry e = table.get(name);
+        if (e != null && unchangedThrough(e.dirIndex, cwd)) {
+            e.hits++;
+            if (stats != null) stats.pathHits.increment();
+            return e.path;
+        }
+        if (stats != null) stats.pathMisses.increment();
+        e = resolve(name, cwd);
+        if (e == null) return null;
+        e.hits = 1;
+        return e.path;
+    }
+
+    // `hash name`: resolve and remember without counting it as a use. Returns false if not found.
+    synchronized boolean remember(String name, File cwd) {
+        if (name == null || name.isEmpty() || name.indexOf('/') >= 0) return false;
+        Entry e = table.get(name);
+        if (e != null && unchangedThrough(e.dirIndex, cwd)) return true;
+        return resolve(name, cwd) != null;
+    }
+
+    // `hash -r`: forget every remembered location
+    synchronized void clear() {
+        table.clear();
+    }
+
+    // Snapshot of the table in insertion order
+    synchronized List<Hashed> entries() {
+        List<Hashed> out = new ArrayList<>(table.size());
+        for (Entry e : table.values()) out.add(new Hashed(e.path, e.hits));
+        return out;
+    }
+
+    // Re-validate every PATH directory from cwd and return the current generation
+    synchronized long refresh(File cwd) {
+        for (int i = 0; i < dirs.length; i++) validate(i, cwd);
+        return generation;
+    }
+
+    // Every executable name in PATH from cwd, deduplicated, in PATH order
+    synchronized List<String> allExecutables(File cwd) {
+        Set<String> seen = new LinkedHashSet<>();
+        for (int i = 0; i < dirs.length; i++) {
+            validate(i, cwd);
+            seen.addAll(listing(dirs[i]));
+        }
+        return new ArrayList<>(seen);
+    }
+
+    private Entry resolve(String name, File cwd) {
+        table.remove(name);
+        for (int i = 0; i < dirs.length; i++) {
+            validate(i, cwd);
+            File candidate = new File(dirs[i].file, name);
+            if (candidate.isFile() && candidate.canExecute()) {
+                Entry e = new Entry(candidate.getAbsolutePath(), i);
+                table.put(name, e);
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private boolean unchangedThrough(int dirIndex, File cwd) {
+        for (int i = 0; i <= dirIndex && i < dirs.length; i++) {
+            if (!validate(i, cwd)) return false;
+        }
+        return true;
+    }
+
+    // Re-stat one PATH directory as seen from cwd. Returns false (and drops dependent state) if it
+    // changed.
+    private boolean validate(int i, File cwd) {
+        Dir d = dirs[i];
+        File file = d.at(cwd);
+        long m = file.lastModified();
+        if (m == d.mtime && file.equals(d.file)) return true;
+        boolean firstSeen = d.mtime == Long.MIN_VALUE;
+        d.file = file;
+        d.mtime = m;
+        d.executables = null;
+        generation++;
+        if (firstSeen) return true;
+        // Entries found at or after this directory may now be shadowed or gone
+        table.values().removeIf(e -> e.dirIndex >= i);
+        return false;
+    }
+
+    private static List<String> listing(Dir d) {
+        if (d.executables == null) {
+            List<String> names = new ArrayList<>();
+            File[] files = d.file.isDirectory() ? d.file.listFiles() : null;
+            if (files != null) {
+                for (File f : files) {
+                    if (f.isFile() && f.canExecute()) names.add(f.getName());
+                }
+            }
+            d.executables = names;
+        }
+        return d.executables;
+    }
+
+    private static final class Dir {
+        final String entry;          // as written in PATH
+        final boolean relative;      // empty or relative: depends on the working directory
+        File file;                   // where it was last seen
+        long mtime = Long.MIN_VALUE; // last observed modification time; MIN_VALUE = never checked
+        List<String> executables;     // cached listing, dropped whenever mtime or file changes
+
+        Dir(String entry) {
+            this.entry = entry;
+            relative = !new File(entry).isAbsolute();
+            file = relative ? null : new File(entry);
+        }
+
+        // The directory this entry names from cwd
+        File at(File cwd) {
+            if (!relative) return file;
+            return entry.isEmpty() ? cwd : new File(cwd, entry).toPath().normalize().toFile();
+        }
+    }
+
+    // One row of `hash` output
+    static final class Hashed {
+        final String path;
+        final int hits;
+
+        Hashed(String path, int hits) {
+            this.path = path;
+            this.hits = hits;
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final int dirIndex;
+        int hits;
+
+        Entry(String path, int dirIndex) {
+            this.path = path;
+            this.dirIndex = dirIndex;
+        }
+    }
+}
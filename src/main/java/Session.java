@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One shell: its standard streams, working directory, environment, history, job table and
+// options. Nothing a session changes is visible to another, so any number of them can run in one
+// JVM at once; what they share (the PATH listings and completion indexes, the parse cache and the
+// stage threads) is thread-safe. The terminal shell is one session, and
+// the server (ShellServer) makes one per connection.
+final class Session {
+    final InputStream in;
+    final PrintStream out;
+    final PrintStream err;
+    // in, out and err are this process's own descriptors 0-2, so child processes inherit them.
+    // Otherwise children get pipes that are pumped to and from the streams.
+    final boolean console;
+    // Environment of child processes; its PATH is also where commands are looked up
+    final Map<String, String> env;
+    // Command history (trimmed input lines in order), backed by the mapped HISTFILE if there is one
+    final History history = new History();
+    // Commands run at the prompt, for ranking completion; only the interactive shell keeps a file
+    final Frecency frecency = new Frecency();
+    // Hashed locations of the commands this session has run (`hash`); PATH does not change
+    final PathIndex commands;
+    // What `shellstat` reports
+    final ShellStats stats = new ShellStats();
+    // Commands started with `&`
+    final Jobs jobs = new Jobs();
+    // In-process utilities turned on with `enable`; the other utility names run from PATH
+    final Set<String> enabled = ConcurrentHashMap.newKeySet();
+    // Working directory; cd changes it
+    File dir;
+    // Exit status of the last foreground pipeline, expanded for $?
+    int lastStatus;
+    // set -o pipefail: a pipeline fails if any stage fails, not only the last one
+    boolean pipefail;
+    // exit ran where it cannot end the process (a server connection): skip the rest of the input
+    boolean exited;
+    // Set once the line editor runs: job start and completion notices are only printed then
+    boolean interactive;
+    // How long lexing and parsing the current line took, for `time -v`
+    long parseNanos;
+    // When the first key not yet answered by a redraw was read, or 0
+    long keyReadAt;
+
+    Session(InputStream in, PrintStream out, PrintStream err, boolean console, Map<String, String> env, File dir) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+        this.console = console;
+        this.env = env;
+        this.dir = dir;
+        this.commands = new PathIndex(path(), stats);
+    }
+
+    // The shell on this process's own stdin, stdout and stderr, with the process environment
+    static Session console(File dir) {
+        return new Session(System.in, System.out, System.err, true, System.getenv(), dir);
+    }
+
+    String path() {
+        return env.get("PATH");
+    }
+
+    // Whether children can be given env by inheriting this process's environment unchanged
+    boolean inheritsEnvironment() {
+        return env == System.getenv();
+    }
+}
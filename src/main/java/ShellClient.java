@@ -0,0 +1,84 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+// Client of the shell server (see ShellServer):
+//   java -cp shell.jar ShellClient [-s socket] (-c 'commands' | script | < script)
+// Sends this process's working directory, environment and script, copies the output frames to
+// its own stdout and stderr as they arrive and exits with the script's status. It loads none of
+// the shell itself.
+public final class ShellClient {
+    private ShellClient() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path socket = null;
+        String script = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-s".equals(args[i]) && i + 1 < args.length) {
+                socket = Path.of(args[++i]);
+            } else if ("-c".equals(args[i]) && i + 1 < args.length) {
+                script = args[++i];
+            } else if (script == null) {
+                try {
+                    script = Files.readString(Path.of(args[i]));
+                } catch (IOException e) {
+                    System.err.println(args[i] + ": No such file or directory");
+                    System.exit(127);
+                }
+            }
+        }
+        if (script == null) script = new String(System.in.readAllBytes(), StandardCharsets.UTF_8);
+        if (socket == null) socket = ShellServer.defaultSocket();
+
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            System.err.println("shell: no server at " + socket + " (start one with --server)");
+            System.exit(1);
+        }
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            ShellServer.writeString(request, System.getProperty("user.dir"));
+            Map<String, String> env = System.getenv();
+            request.writeInt(env.size());
+            for (Map.Entry<String, String> e : env.entrySet()) ShellServer.writeString(request, e.getKey() + "=" + e.getValue());
+            ShellServer.writeString(request, script);
+            request.flush();
+
+            OutputStream out = new FileOutputStream(FileDescriptor.out);
+            OutputStream err = new FileOutputStream(FileDescriptor.err);
+            DataInputStream response = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            byte[] buf = new byte[8192];
+            while (true) {
+                int stream = response.readByte();
+                if (stream == ShellServer.EXIT) System.exit(response.readInt());
+                OutputStream to = stream == ShellServer.STDERR ? err : out;
+                for (int left = response.readInt(); left > 0; ) {
+                    int n = response.read(buf, 0, Math.min(left, buf.length));
+                    if (n < 0) throw new EOFException();
+                    to.write(buf, 0, n);
+                    left -= n;
+                }
+            }
+        } catch (EOFException e) {
+            System.err.println("shell: server closed the connection");
+            System.exit(1);
+        }
+    }
+}
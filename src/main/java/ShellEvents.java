@@ -0,0 +1,95 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events of the shell, under the "Shell" category. They cost a flag check
+// unless a recording enables them, e.g.
+//   java -XX:StartFlightRecording:filename=shell.jfr,settings=profile -jar shell.jar
+// or `jcmd <pid> JFR.start` on a running shell, then `jfr print --categories Shell shell.jfr`.
+final class ShellEvents {
+    private ShellEvents() {
+    }
+
+    @Name("shell.Command")
+    @Label("Command")
+    @Description("A foreground pipeline or background list, from start to exit status")
+    @Category("Shell")
+    @StackTrace(false)
+    static final class Command extends Event {
+        @Label("Command Line")
+        String command;
+        @Label("Exit Status")
+        int status;
+        @Label("Background")
+        boolean background;
+    }
+
+    @Name("shell.Spawn")
+    @Label("Process Spawn")
+    @Description("Starting one external command")
+    @Category("Shell")
+    @StackTrace(false)
+    static final class Spawn extends Event {
+        @Label("Program")
+        String program;
+    }
+
+    @Name("shell.PipelineStage")
+    @Label("Pipeline Stage")
+    @Description("One stage of a pipeline, from launch until its status is known")
+    @Category("Shell")
+    @StackTrace(false)
+    static final class PipelineStage extends Event {
+        @Label("Command")
+        String command;
+        @Label("Builtin")
+        boolean builtin;
+        @Label("Exit Status")
+        int status;
+    }
+
+    @Name("shell.CompletionLookup")
+    @Label("Completion Lookup")
+    @Description("Looking up TAB completion candidates for a command prefix")
+    @Category("Shell")
+    @StackTrace(false)
+    static final class CompletionLookup extends Event {
+        @Label("Prefix")
+        String prefix;
+        @Label("Matches")
+        int matches;
+    }
+
+    @Name("shell.HistoryLoad")
+    @Label("History Load")
+    @Description("Mapping HISTFILE at startup or reading a file with history -r")
+    @Category("Shell")
+    @StackTrace(false)
+    static final class HistoryLoad extends Event {
+        @Label("Path")
+        String path;
+        @Label("Operation")
+        String operation;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("shell.HistorySave")
+    @Label("History Save")
+    @Description("Appending to or rewriting a history file")
+    @Category("Shell")
+    @StackTrace(false)
+    static final class HistorySave extends Event {
+        @Label("Path")
+        String path;
+        @Label("Operation")
+        String operation;
+        @Label("Entries")
+        long entries;
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+// `shell --server [socket]`: a shell that stays up and runs scripts sent to it over a Unix domain
+// socket, so a short command costs a connection instead of a JVM start and warm-up. ShellClient
+// is the other end. Each connection is a session of its own, with the client's working directory
+// and environment, and connections run concurrently; the script's stdout and stderr are
+// streamed back while it runs, then its exit status. Only the user running the server may connect.
+//
+// Protocol (integers big-endian, strings as an int byte count and UTF-8):
+//   request:  cwd, number of environment entries, the entries as NAME=value, script
+//   response: frames {byte stream, int length, bytes} with stream STDOUT or STDERR, then
+//             {byte EXIT, int status}
+// A request of more than MAX_REQUEST bytes of strings, or with a negative length or count, is
+// answered with an error on STDERR and status 2 before anything of its size is allocated.
+final class ShellServer {
+    static final int EXIT = 0;
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+    static final int MAX_REQUEST = 16 << 20;
+
+    private ShellServer() {
+    }
+
+    // $SHELL_SOCKET, else shell.sock in $XDG_RUNTIME_DIR, else a per-user name in the temp dir
+    static Path defaultSocket() {
+        String socket = System.getenv("SHELL_SOCKET");
+        if (socket != null && !socket.isEmpty()) return Path.of(socket);
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        if (runtime != null && !runtime.isEmpty()) return Path.of(runtime, "shell.sock");
+        return Path.of(System.getProperty("java.io.tmpdir"), "shell-" + System.getProperty("user.name") + ".sock");
+    }
+
+    // Accept connections until the process is killed; each is served on a thread of its own
+    static void serve(Path socket) throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+        removeStale(address);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException ignored) {
+                }
+            }));
+            System.err.println("shell: listening on " + socket);
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread t = new Thread(() -> session(client), "session");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    // A socket file left behind by a server that is gone; one that answers is in use
+    private static void removeStale(UnixDomainSocketAddress address) throws IOException {
+        if (!Files.exists(address.getPath())) return;
+        boolean answered;
+        try {
+            SocketChannel.open(address).close();
+            answered = true;
+        } catch (IOException e) {
+            answered = false;
+        }
+        if (answered) throw new IOException(address.getPath() + ": a server is already listening");
+        Files.delete(address.getPath());
+    }
+
+    private static void session(SocketChannel client) {
+        try (client) {
+            if (!sameUser(client)) return;
+            Request request = new Request(new DataInputStream(new BufferedInputStream(Channels.newInputStream(client))));
+            DataOutputStream response = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client), 1 << 16));
+            File dir;
+            Map<String, String> env = new HashMap<>();
+            String script;
+            try {
+                dir = new File(request.string());
+                for (int i = request.count(); i > 0; i--) {
+                    String entry = request.string();
+                    int eq = entry.indexOf('=');
+                    if (eq > 0) env.put(entry.substring(0, eq), entry.substring(eq + 1));
+                }
+                script = request.string();
+            } catch (BadRequest e) {
+                refuse(response, e.getMessage());
+                return;
+            }
+
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FrameOutput(response, STDOUT), 1 << 16), false);
+            PrintStream err = new PrintStream(new FrameOutput(response, STDERR), true);
+            Session session = new Session(InputStream.nullInputStream(), out, err, false,
+                                          Collections.unmodifiableMap(env), dir.getCanonicalFile());
+            if (!dir.isDirectory()) {
+                err.println(dir + ": No such file or directory");
+                session.lastStatus = 1;
+            } else {
+                Main.runScript(session, new BufferedReader(new StringReader(script)));
+                Main.awaitJobs(session);
+            }
+            out.flush();
+            err.flush();
+            synchronized (response) {
+                response.writeByte(EXIT);
+                response.writeInt(session.lastStatus);
+                response.flush();
+            }
+        } catch (IOException e) {
+            // the client went away or sent something else
+        }
+    }
+
+    // Whether the peer runs as the same user as the server; the socket's mode says the same,
+    // unless the directory it is in lets others replace it
+    private static boolean sameUser(SocketChannel client) throws IOException {
+        UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+        return peer.user().getName().equals(System.getProperty("user.name"));
+    }
+
+    // Answer a request that cannot be run with an error and status 2
+    private static void refuse(DataOutputStream response, String message) throws IOException {
+        byte[] bytes = ("shell: " + message + "\n").getBytes(StandardCharsets.UTF_8);
+        response.writeByte(STDERR);
+        response.writeInt(bytes.length);
+        response.write(bytes);
+        response.writeByte(EXIT);
+        response.writeInt(2);
+        response.flush();
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // The fields of one request, checked against what is left of MAX_REQUEST before each is read
+    private static final class Request {
+        private final DataInputStream in;
+        private int left = MAX_REQUEST;
+
+        Request(DataInputStream in) {
+            this.in = in;
+        }
+
+        String string() throws IOException {
+            int length = in.readInt();
+            if (length < 0) throw new BadRequest("invalid string length " + length);
+            if (length > left) throw new BadRequest("request larger than " + MAX_REQUEST + " bytes");
+            left -= length;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Every entry takes at least its length field
+        int count() throws IOException {
+            int count = in.readInt();
+            if (count < 0) throw new BadRequest("invalid environment size " + count);
+            if (count > left / Integer.BYTES) throw new BadRequest("request larger than " + MAX_REQUEST + " bytes");
+            left -= count * Integer.BYTES;
+            return count;
+        }
+    }
+
+    private static final class BadRequest extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    // One of the session's output streams: every write becomes a frame on the connection, which
+    // stdout and stderr share
+    private static final class FrameOutput extends OutputStream {
+        private final DataOutputStream connection;
+        private final int stream;
+
+        FrameOutput(DataOutputStream connection, int stream) {
+            this.connection = connection;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            synchronized (connection) {
+                connection.writeByte(stream);
+                connection.writeInt(len);
+                connection.write(b, off, len);
+                connection.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms of one session (Session.stats), printed by `shellstat`.
+// Everything is updated lock-free from whichever thread does the work, since pipeline stages and
+// process completions run off the main thread.
+final class ShellStats {
+    final LongAdder commands = new LongAdder();
+    final LongAdder pathHits = new LongAdder();   // answered from the hashed command table
+    final LongAdder pathMisses = new LongAdder(); // needed a PATH search
+    final LongAdder pipeBytes = new LongAdder();  // carried by the shell: builtin stage output,
+                                                  // copies between stages and to session streams
+    final Histogram spawn = new Histogram();
+    final Histogram keyToRedraw = new Histogram();
+
+    void reset() {
+        commands.reset();
+        pathHits.reset();
+        pathMisses.reset();
+        pipeBytes.reset();
+        spawn.reset();
+        keyToRedraw.reset();
+    }
+
+    void print(BuiltinOutput out) throws IOException {
+        out.print("commands             ").print(commands.sum()).newline();
+        out.print("spawn latency        ");
+        spawn.print(out);
+        long hits = pathHits.sum();
+        long lookups = hits + pathMisses.sum();
+        out.print("path cache hits      ").print(hits).print(" of ").print(lookups);
+        if (lookups > 0) {
+            long permille = hits * 1000 / lookups;
+            out.print(" (").print(permille / 10).print('.').print(permille % 10).print("%)");
+        }
+        out.newline();
+        out.print("pipe bytes           ").print(pipeBytes.sum()).newline();
+        out.print("keystroke to redraw  ");
+        keyToRedraw.print(out);
+    }
+
+    // Counts the bytes a builtin stage writes into its output pipe
+    OutputStream countingPipe(OutputStream pipe) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                pipe.write(b);
+                pipeBytes.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                pipe.write(b, off, len);
+                pipeBytes.add(len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                pipe.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                pipe.close();
+            }
+        };
+    }
+
+    // Log-linear histogram of nanosecond latencies: each power of two is split into 8 buckets,
+    // so a percentile is reported within 12.5% of the recorded value. Fixed size, no allocation
+    // per sample.
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB + SUB);
+        private final AtomicLong max = new AtomicLong();
+        private final LongAdder count = new LongAdder();
+
+        void record(long nanos) {
+            if (nanos < 0) return;
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        // The smallest recorded value that at least p (0-1) of the samples do not exceed,
+        // rounded to its bucket's upper bound
+        long percentile(double p) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+            max.set(0);
+            count.reset();
+        }
+
+        // "12  p50 0.812ms  p90 1.204ms  p99 3.100ms  max 5.000ms"
+        void print(BuiltinOutput out) throws IOException {
+            out.print(count());
+            if (count() > 0) {
+                out.print("  p50 ");
+                millis(out, percentile(0.50));
+                out.print("  p90 ");
+                millis(out, percentile(0.90));
+                out.print("  p99 ");
+                millis(out, percentile(0.99));
+                out.print("  max ");
+                millis(out, max.get());
+            }
+            out.newline();
+        }
+
+        private static void millis(BuiltinOutput out, long nanos) throws IOException {
+            long micros = nanos / 1000;
+            out.print(micros / 1000).print('.').print(micros % 1000 / 100).print(micros % 100 / 10).print(micros % 10).print("ms");
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int exponent = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+            int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB - 1);
+            return (exponent - SUB_BITS + 1) * SUB + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB) return index;
+            int exponent = index / SUB + SUB_BITS - 1;
+            long sub = index % SUB;
+            return ((SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
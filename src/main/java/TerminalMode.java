@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jline.terminal.Attributes;
+import org.jline.terminal.Attributes.ControlChar;
+import org.jline.terminal.Attributes.LocalFlag;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
+import org.jline.terminal.spi.SystemStream;
+import org.jline.terminal.spi.TerminalProvider;
+
+// Switches the controlling terminal between the line editor's raw mode (-icanon -echo, one byte
+// per read) and the cooked mode it started in.
+// termios is changed in-process through JLine's JNI provider, so a switch takes microseconds
+// and the shell can afford to hand foreground commands a cooked terminal on every line. Where
+// the native library is unavailable it falls back to running stty, as before.
+final class TerminalMode {
+    // Keep a strong reference so the level sticks; JLine logs provider failures as warnings
+    private static final Logger JLINE_LOG = Logger.getLogger("org.jline");
+
+    private final Terminal terminal; // null when using the stty fallback
+    private final Attributes cooked;
+    private final Attributes raw;
+    private boolean isRaw;
+
+    private TerminalMode(Terminal terminal, Attributes cooked, Attributes raw) {
+        this.terminal = terminal;
+        this.cooked = cooked;
+        this.raw = raw;
+    }
+
+    static TerminalMode open() {
+        JLINE_LOG.setLevel(Level.OFF);
+        try {
+            Terminal t = TerminalBuilder.builder()
+                .system(true)
+                .provider("jni")
+                .dumb(false)
+                .nativeSignals(false)
+                .build();
+            Attributes cooked = t.getAttributes();
+            Attributes raw = new Attributes(cooked);
+            raw.setLocalFlag(LocalFlag.ICANON, false);
+            raw.setLocalFlag(LocalFlag.ECHO, false);
+            raw.setControlChar(ControlChar.VMIN, 1);
+            raw.setControlChar(ControlChar.VTIME, 0);
+            return new TerminalMode(t, cooked, raw);
+        } catch (Exception | UnsatisfiedLinkError e) {
+            // not a tty, or no native library for this platform
+            return new TerminalMode(null, null, null);
+        }
+    }
+
+    // Whether stdin (fd 0) is a terminal: isatty through the JNI provider, else `test -t 0`
+    static boolean stdinIsTerminal() {
+        JLINE_LOG.setLevel(Level.OFF);
+        try {
+            return TerminalProvider.load("jni").isSystemStream(SystemStream.Input);
+        } catch (Exception | UnsatisfiedLinkError e) {
+            return stty("test -t 0");
+        }
+    }
+
+    // True when mode switches are cheap enough to do around every command
+    boolean inProcess() {
+        return terminal != null;
+    }
+
+    // Enter raw mode. Returns false if the terminal could not be switched.
+    boolean raw() {
+        if (isRaw) return true;
+        if (terminal == null) {
+            isRaw = stty("stty -echo -icanon min 1 time 0 2>/dev/null");
+            return isRaw;
+        }
+        try {
+            terminal.setAttributes(raw);
+            isRaw = true;
+        } catch (RuntimeException e) {
+            isRaw = false;
+        }
+        return isRaw;
+    }
+
+    // Restore the original (cooked) mode
+    void cooked() {
+        if (!isRaw) return;
+        isRaw = false;
+        if (terminal == null) {
+            stty("stty echo icanon 2>/dev/null");
+            return;
+        }
+        try {
+            terminal.setAttributes(cooked);
+        } catch (RuntimeException ignored) {
+            // terminal went away
+        }
+    }
+
+    void close() {
+        cooked();
+        if (terminal == null) return;
+        try {
+            terminal.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private static boolean stty(String command) {
+        try {
+            List<String> cmd = new ArrayList<>();
+            cmd.add("/bin/sh");
+            cmd.add("-c");
+            cmd.add(command);
+            Process p = new ProcessBuilder(cmd).inheritIO().start();
+            // Return true only if stty succeeded (exit code 0)
+            return p.waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// Measurements of one `time` pipeline. Real time is wall-clock. User and system time are the
+// CPU time of the shell plus that of the children it has waited for, as bash reports them, taken
+// from /proc/self/stat (utime + cutime and stime + cstime). A child's ProcessHandle.Info is gone
+// once it has been reaped, so it cannot account for a command after the fact.
+// With -v each stage also records how long resolving its name, starting it and waiting for it took.
+final class Timing {
+    private static final Path PROC_STAT = Path.of("/proc/self/stat");
+    private static final long NANOS_PER_TICK = 10_000_000L; // USER_HZ is 100 on Linux
+
+    final boolean posix;   // -p: "real 0.01" instead of "real\t0m0.010s"
+    final boolean verbose; // -v: per-stage phases as well
+    private final long parseNanos;
+    private final long start = System.nanoTime();
+    private final long[] cpuStart = cpu();
+    private final List<Stage> stages = new ArrayList<>();
+
+    Timing(boolean posix, boolean verbose, long parseNanos) {
+        this.posix = posix;
+        this.verbose = verbose;
+        this.parseNanos = parseNanos;
+    }
+
+    // One pipeline stage. The phases are set by the thread launching the pipeline, except
+    // `finished`, which the stage's completion sets.
+    static final class Stage {
+        final String command;
+        long lookupNanos;
+        long spawnNanos;
+        long started;           // System.nanoTime() once running
+        volatile long finished;
+
+        private Stage(String command) {
+            this.command = command;
+        }
+    }
+
+    Stage stage(List<String> argv) {
+        Stage s = new Stage(String.join(" ", argv));
+        synchronized (stages) {
+            stages.add(s);
+        }
+        return s;
+    }
+
+    // The report, in bash's format, for stderr
+    String report() {
+        long real = System.nanoTime() - start;
+        long[] cpu = cpu();
+        long user = cpu[0] - cpuStart[0];
+        long sys = cpu[1] - cpuStart[1];
+        StringBuilder sb = new StringBuilder();
+        if (posix) {
+            sb.append("real ").append(seconds(real)).append('\n');
+            sb.append("user ").append(seconds(user)).append('\n');
+            sb.append("sys ").append(seconds(sys)).append('\n');
+        } else {
+            sb.append("\nreal\t").append(minutes(real)).append('\n');
+            sb.append("user\t").append(minutes(user)).append('\n');
+            sb.append("sys\t").append(minutes(sys)).append('\n');
+        }
+        if (!verbose) return sb.toString();
+
+        // Shell overhead: what the slowest stage's own run time does not explain
+        long longest = 0;
+        sb.append("lex/parse ").append(millis(parseNanos)).append('\n');
+        synchronized (stages) {
+            for (int i = 0; i < stages.size(); i++) {
+                Stage s = stages.get(i);
+                long wait = s.finished > s.started ? s.finished - s.started : 0;
+                longest = Math.max(longest, wait);
+                sb.append("stage ").append(i + 1)
+                  .append("  lookup ").append(millis(s.lookupNanos))
+                  .append("  spawn ").append(millis(s.spawnNanos))
+                  .append("  wait ").append(millis(wait))
+                  .append("  ").append(s.command).append('\n');
+            }
+        }
+        sb.append("shell ").append(millis(Math.max(0, real - longest))).append('\n');
+        return sb.toString();
+    }
+
+    // {user, system} CPU nanoseconds of the shell and its reaped children
+    private static long[] cpu() {
+        try {
+            String stat = new String(Files.readAllBytes(PROC_STAT), StandardCharsets.US_ASCII);
+            // Fields after the parenthesised command name, which may itself contain spaces
+            String[] f = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            // f[0] is field 3 (state); utime, stime, cutime, cstime are fields 14-17
+            long user = Long.parseLong(f[11]) + Long.parseLong(f[13]);
+            long sys = Long.parseLong(f[12]) + Long.parseLong(f[14]);
+            return new long[]{user * NANOS_PER_TICK, sys * NANOS_PER_TICK};
+        } catch (IOException | RuntimeException e) {
+            // No procfs: the shell's own CPU time only, not split into user and system
+            return new long[]{ProcessHandle.current().info().totalCpuDuration().orElse(Duration.ZERO).toNanos(), 0};
+        }
+    }
+
+    // 0m1.234s
+    private static String minutes(long nanos) {
+        long millis = nanos / 1_000_000;
+        return (millis / 60_000) + "m" + (millis % 60_000 / 1000) + "." + pad(millis % 1000, 3) + "s";
+    }
+
+    // 1.23
+    private static String seconds(long nanos) {
+        long centis = nanos / 10_000_000;
+        return (centis / 100) + "." + pad(centis % 100, 2);
+    }
+
+    // 0.123ms
+    private static String millis(long nanos) {
+        long micros = nanos / 1000;
+        return (micros / 1000) + "." + pad(micros % 1000, 3) + "ms";
+    }
+
+    private static String pad(long n, int width) {
+        String s = Long.toString(n);
+        return "0".repeat(Math.max(0, width - s.length())) + s;
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+// Substring index over history entries for Ctrl-R search, keyed by history number.
+// Every distinct trigram (three consecutive chars) of an entry maps to an ascending posting list
+// of the numbers of the entries containing it. An entry can only contain a query if it is on the
+// list of each of the query's trigrams, so a search walks the shortest of those lists from the
+// newest number down, checks the other lists by binary search and confirms the few entries left
+// with String.contains. Entries are only ever added with a number above all earlier ones; numbers
+// that have left history are skipped when searching and dropped when their list next grows.
+final class TrigramIndex {
+    // Open addressing: keys[slot] is a packed trigram (0 = free), lists/sizes its posting list
+    private long[] keys = new long[1 << 10];
+    private int[][] lists = new int[1 << 10][];
+    private int[] sizes = new int[1 << 10];
+    private int count;
+
+    // Index entry number text; first is the oldest number still in history
+    void add(int number, String text, int first) {
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            int slot = slot(key(text, i), true);
+            int n = sizes[slot];
+            int[] list = lists[slot];
+            if (n > 0 && list[n - 1] == number) continue; // trigram repeats within the entry
+            if (n == list.length) {
+                n = prune(slot, first);
+                list = lists[slot];
+                if (n == list.length) lists[slot] = list = Arrays.copyOf(list, n * 2);
+            }
+            list[n] = number;
+            sizes[slot] = n + 1;
+        }
+    }
+
+    // Newest number in [first, before) whose entry contains query, or -1. query has at least
+    // three chars; entry maps a number to its text.
+    int search(String query, int before, int first, IntFunction<String> entry) {
+        int terms = query.length() - 2;
+        int[] slots = new int[terms];
+        int shortest = 0;
+        for (int i = 0; i < terms; i++) {
+            slots[i] = slot(key(query, i), false);
+            if (slots[i] < 0) return -1; // a trigram no entry has
+            if (sizes[slots[i]] < sizes[slots[shortest]]) shortest = i;
+        }
+        int[] walk = lists[slots[shortest]];
+        candidates:
+        for (int pos = lowerBound(walk, sizes[slots[shortest]], before) - 1; pos >= 0; pos--) {
+            int number = walk[pos];
+            if (number < first) break;
+            for (int s : slots) {
+                if (Arrays.binarySearch(lists[s], 0, sizes[s], number) < 0) continue candidates;
+            }
+            if (entry.apply(number).contains(query)) return number;
+        }
+        return -1;
+    }
+
+    // Drop numbers below first from a full list; returns its new size
+    private int prune(int slot, int first) {
+        int[] list = lists[slot];
+        int n = sizes[slot];
+        int gone = lowerBound(list, n, first);
+        if (gone == 0) return n;
+        System.arraycopy(list, gone, list, 0, n - gone);
+        sizes[slot] = n - gone;
+        return n - gone;
+    }
+
+    // Index of the first element >= value in list[0, n)
+    private static int lowerBound(int[] list, int n, int value) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (list[mid] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // The three chars at i packed into 48 bits, with a marker bit so that no key is 0
+    private static long key(String s, int i) {
+        return 1L << 48 | (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+    }
+
+    private int slot(long key, boolean create) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return slot;
+            if (keys[slot] == 0) {
+                if (!create) return -1;
+                if ((count + 1) * 2 > keys.length) {
+                    grow();
+                    return slot(key, true);
+                }
+                keys[slot] = key;
+                lists[slot] = new int[2];
+                count++;
+                return slot;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[][] oldLists = lists;
+        int[] oldSizes = sizes;
+        keys = new long[oldKeys.length * 2];
+        lists = new int[keys.length][];
+        sizes = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != 0) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            lists[slot] = oldLists[i];
+            sizes[slot] = oldSizes[i];
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,692 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// In-process versions of cat, head, tail, wc, grep and tee, so short filtering pipelines do not
+// pay for a process per stage. They work on raw bytes: lines are found by scanning a byte buffer
+// for '\n' and copied out unchanged, and only grep's regular expressions decode a line to text.
+// Each covers the options scripts commonly use. Anything else is a usage error that names the
+// real program (`enable -n name` switches back to it), never a silently different result.
+final class Utilities {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Utilities() {
+    }
+
+    static Map<String, Builtin> table() {
+        Map<String, Builtin> table = new HashMap<>();
+        table.put("cat", Utilities::cat);
+        table.put("head", Utilities::head);
+        table.put("tail", Utilities::tail);
+        table.put("wc", Utilities::wc);
+        table.put("grep", Utilities::grep);
+        table.put("tee", Utilities::tee);
+        return table;
+    }
+
+    // cat [file...]
+    private static int cat(Builtin.Context ctx) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            String arg = ctx.argv.get(i);
+            if (isOption(arg)) return unsupported(ctx, "cat", arg);
+            files.add(arg);
+        }
+        if (files.isEmpty()) files.add("-");
+        int status = 0;
+        for (String name : files) {
+            if (name.equals("-")) {
+                ctx.copyInput();
+            } else if (ctx.outFile != null) {
+                // File to file: let the kernel move the bytes
+                FileChannel src;
+                try {
+                    if (Files.isDirectory(resolve(ctx, name))) throw new IOException("Is a directory");
+                    src = FileChannel.open(resolve(ctx, name), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    status = error(ctx, "cat", name, e);
+                    continue;
+                }
+                try (src) {
+                    ctx.out.flush();
+                    long size = src.size();
+                    for (long pos = 0; pos < size; ) {
+                        long n = src.transferTo(pos, size - pos, ctx.outFile);
+                        if (n <= 0) break;
+                        pos += n;
+                    }
+                }
+            } else {
+                InputStream in = open(ctx, "cat", name);
+                if (in == null) {
+                    status = 1;
+                    continue;
+                }
+                try (in) {
+                    in.transferTo(ctx.out);
+                }
+            }
+        }
+        return status;
+    }
+
+    // head [-n N | -N | -c N] [file...]
+    private static int head(Builtin.Context ctx) throws IOException {
+        long count = 10;
+        boolean bytes = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            String arg = ctx.argv.get(i);
+            if (!isOption(arg)) {
+                files.add(arg);
+                continue;
+            }
+            String value = countOption(ctx, arg, i);
+            if (arg.equals("-n") || arg.equals("-c")) i++;
+            long n = value == null ? -1 : parseCount(value);
+            if (n < 0) return unsupported(ctx, "head", arg);
+            count = n;
+            bytes = arg.startsWith("-c");
+        }
+        if (files.isEmpty()) files.add("-");
+        int status = 0;
+        for (int f = 0; f < files.size(); f++) {
+            String name = files.get(f);
+            if (files.size() > 1) header(ctx, f, name);
+            InputStream in = open(ctx, "head", name);
+            if (in == null) {
+                status = 1;
+                continue;
+            }
+            try {
+                if (bytes) {
+                    copyBytes(in, ctx.out, count);
+                } else {
+                    LineReader lines = new LineReader(in);
+                    for (long n = 0; n < count && lines.next(); n++) lines.writeTo(ctx.out);
+                }
+            } finally {
+                close(ctx, in);
+            }
+        }
+        return status;
+    }
+
+    // tail [-n N | -N | -n +N] [file...]
+    private static int tail(Builtin.Context ctx) throws IOException {
+        long count = 10;
+        boolean fromStart = false; // -n +N: from line N on
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            String arg = ctx.argv.get(i);
+            if (!isOption(arg)) {
+                files.add(arg);
+                continue;
+            }
+            if (arg.startsWith("-c")) return unsupported(ctx, "tail", arg);
+            String value = countOption(ctx, arg, i);
+            if (arg.equals("-n")) i++;
+            boolean plus = value != null && value.startsWith("+");
+            long n = value == null ? -1 : parseCount(plus ? value.substring(1) : value);
+            if (n < 0) return unsupported(ctx, "tail", arg);
+            count = n;
+            fromStart = plus;
+        }
+        if (files.isEmpty()) files.add("-");
+        int status = 0;
+        for (int f = 0; f < files.size(); f++) {
+            String name = files.get(f);
+            if (files.size() > 1) header(ctx, f, name);
+            InputStream in = open(ctx, "tail", name);
+            if (in == null) {
+                status = 1;
+                continue;
+            }
+            try {
+                LineReader lines = new LineReader(in);
+                if (fromStart) {
+                    for (long n = 1; n < count && lines.next(); n++) {
+                        // skip
+                    }
+                    lines.writeRest(ctx.out);
+                } else if (count > 0) {
+                    // The last count lines, kept as copies since the buffer moves on
+                    ArrayDeque<byte[]> last = new ArrayDeque<>();
+                    while (lines.next()) {
+                        if (last.size() == count) last.removeFirst();
+                        last.addLast(lines.copy());
+                    }
+                    for (byte[] line : last) ctx.out.write(line);
+                }
+            } finally {
+                close(ctx, in);
+            }
+        }
+        return status;
+    }
+
+    // wc [-lwc] [file...]
+    private static int wc(Builtin.Context ctx) throws IOException {
+        boolean lines = false, words = false, chars = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            String arg = ctx.argv.get(i);
+            if (!isOption(arg)) {
+                files.add(arg);
+                continue;
+            }
+            for (int j = 1; j < arg.length(); j++) {
+                char c = arg.charAt(j);
+                if (c == 'l') lines = true;
+                else if (c == 'w') words = true;
+                else if (c == 'c') chars = true;
+                else return unsupported(ctx, "wc", arg);
+            }
+        }
+        if (!lines && !words && !chars) lines = words = chars = true;
+        boolean named = !files.isEmpty();
+        if (!named) files.add("-");
+
+        // Counts are lined up as GNU wc does: wide enough for the total size of the regular
+        // files, at least 7 when a pipe is involved, and unpadded for a single number.
+        int width = 1;
+        if ((lines ? 1 : 0) + (words ? 1 : 0) + (chars ? 1 : 0) > 1 || files.size() > 1) {
+            long regular = 0;
+            int minimum = 1;
+            for (String name : files) {
+                long size = regularSize(ctx, name);
+                if (size < 0) minimum = 7;
+                else regular += size;
+            }
+            for (; regular >= 10; regular /= 10) width++;
+            width = Math.max(width, minimum);
+        }
+
+        long[] total = new long[3];
+        int status = 0;
+        for (String name : files) {
+            InputStream in = open(ctx, "wc", name);
+            if (in == null) {
+                status = 1;
+                continue;
+            }
+            long[] counts;
+            try {
+                counts = count(in);
+            } finally {
+                close(ctx, in);
+            }
+            for (int k = 0; k < 3; k++) total[k] += counts[k];
+            printCounts(ctx, counts, lines, words, chars, width, named ? name : null);
+        }
+        if (files.size() > 1) printCounts(ctx, total, lines, words, chars, width, "total");
+        return status;
+    }
+
+    // {lines, words, bytes} of a stream, counted a buffer at a time
+    private static long[] count(InputStream in) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long lines = 0, words = 0, bytes = 0;
+        boolean inWord = false;
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            bytes += n;
+            for (int i = 0; i < n; i++) {
+                byte b = buf[i];
+                if (b == '\n') lines++;
+                boolean space = b == ' ' || (b >= '\t' && b <= '\r');
+                if (!space && !inWord) words++;
+                inWord = !space;
+            }
+        }
+        return new long[]{lines, words, bytes};
+    }
+
+    private static void printCounts(Builtin.Context ctx, long[] counts, boolean lines, boolean words,
+                                    boolean chars, int width, String name) throws IOException {
+        boolean first = true;
+        if (lines) {
+            ctx.out.pad(counts[0], width);
+            first = false;
+        }
+        if (words) {
+            if (!first) ctx.out.print(' ');
+            ctx.out.pad(counts[1], width);
+            first = false;
+        }
+        if (chars) {
+            if (!first) ctx.out.print(' ');
+            ctx.out.pad(counts[2], width);
+        }
+        if (name != null) ctx.out.print(' ').print(name);
+        ctx.out.newline();
+    }
+
+    // Size of a regular input file, or -1 for a pipe or terminal
+    private static long regularSize(Builtin.Context ctx, String name) {
+        try {
+            if (name.equals("-")) return ctx.inFile != null ? ctx.inFile.size() : -1;
+            Path p = resolve(ctx, name);
+            return Files.isRegularFile(p) ? Files.size(p) : Files.exists(p) ? -1 : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // grep [-ivcnlqxwFEG] [-e pattern | pattern] [file...]
+    // Exit status 0 if a line was selected, 1 if none was, 2 on an error.
+    private static int grep(Builtin.Context ctx) throws IOException {
+        boolean ignoreCase = false, invert = false, countOnly = false, numbers = false;
+        boolean namesOnly = false, quiet = false, wholeLine = false, wholeWord = false;
+        char syntax = 'G';
+        String pattern = null;
+        List<String> files = new ArrayList<>();
+        int i = 1;
+        for (; i < ctx.argv.size(); i++) {
+            String arg = ctx.argv.get(i);
+            if (arg.equals("--")) {
+                i++;
+                break;
+            }
+            if (!isOption(arg)) break;
+            for (int j = 1; j < arg.length(); j++) {
+                char c = arg.charAt(j);
+                switch (c) {
+                    case 'i': ignoreCase = true; break;
+                    case 'v': invert = true; break;
+                    case 'c': countOnly = true; break;
+                    case 'n': numbers = true; break;
+                    case 'l': namesOnly = true; break;
+                    case 'q': quiet = true; break;
+                    case 'x': wholeLine = true; break;
+                    case 'w': wholeWord = true; break;
+                    case 'F': case 'E': case 'G': syntax = c; break;
+                    case 'e':
+                        if (j + 1 < arg.length()) pattern = arg.substring(j + 1);
+                        else if (i + 1 < ctx.argv.size()) pattern = ctx.argv.get(++i);
+                        else return grepUsage(ctx);
+                        j = arg.length();
+                        break;
+                    default:
+                        unsupported(ctx, "grep", arg);
+                        return 2;
+                }
+            }
+        }
+        if (pattern == null) {
+            if (i >= ctx.argv.size()) return grepUsage(ctx);
+            pattern = ctx.argv.get(i++);
+        }
+        for (; i < ctx.argv.size(); i++) files.add(ctx.argv.get(i));
+        boolean prefix = files.size() > 1;
+        if (files.isEmpty()) files.add("-");
+
+        LineMatcher matcher;
+        try {
+            matcher = new LineMatcher(pattern, syntax, ignoreCase, wholeLine, wholeWord);
+        } catch (PatternSyntaxException e) {
+            ctx.err.print("grep: ").print(pattern).print(": invalid regular expression").newline();
+            return 2;
+        }
+
+        boolean selected = false;
+        boolean failed = false;
+        for (String name : files) {
+            InputStream in = open(ctx, "grep", name);
+            if (in == null) {
+                failed = true;
+                continue;
+            }
+            String label = name.equals("-") ? "(standard input)" : name;
+            long matches = 0;
+            try {
+                LineReader lines = new LineReader(in);
+                long number = 0;
+                while (lines.next()) {
+                    number++;
+                    if (matcher.matches(lines) == invert) continue;
+                    matches++;
+                    if (quiet) return 0;
+                    if (namesOnly) break;
+                    if (countOnly) continue;
+                    if (prefix) ctx.out.print(label).print(':');
+                    if (numbers) ctx.out.print(number).print(':');
+                    lines.writeTo(ctx.out);
+                    if (!lines.terminated) ctx.out.write('\n'); // grep ends every line it prints
+                }
+            } finally {
+                close(ctx, in);
+            }
+            if (matches > 0) selected = true;
+            if (countOnly && !namesOnly) {
+                if (prefix) ctx.out.print(label).print(':');
+                ctx.out.print(matches).newline();
+            }
+            if (namesOnly && matches > 0) ctx.out.print(label).newline();
+        }
+        return failed ? 2 : selected ? 0 : 1;
+    }
+
+    // tee [-a] [file...]
+    private static int tee(Builtin.Context ctx) throws IOException {
+        boolean append = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < ctx.argv.size(); i++) {
+            String arg = ctx.argv.get(i);
+            if (arg.equals("-a")) append = true;
+            else if (isOption(arg)) return unsupported(ctx, "tee", arg);
+            else files.add(arg);
+        }
+        int status = 0;
+        List<OutputStream> outputs = new ArrayList<>(files.size());
+        try {
+            for (String name : files) {
+                try {
+                    outputs.add(append
+                        ? Files.newOutputStream(resolve(ctx, name), StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                        : Files.newOutputStream(resolve(ctx, name)));
+                } catch (IOException e) {
+                    status = error(ctx, "tee", name, e);
+                }
+            }
+            if (ctx.in == null) return status;
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = ctx.in.read(buf)) > 0) {
+                ctx.out.write(buf, 0, n);
+                ctx.out.flush(); // tee passes data on as it arrives
+                for (OutputStream out : outputs) out.write(buf, 0, n);
+            }
+        } finally {
+            for (OutputStream out : outputs) out.close();
+        }
+        return status;
+    }
+
+    // Lines of a stream, found in place in one reusable buffer. The current line is
+    // buf[start, end) without its '\n'; the last line of the input may have none.
+    private static final class LineReader {
+        private final InputStream in;
+        byte[] buf = new byte[BUFFER_SIZE];
+        private int pos;      // start of the unread bytes
+        private int limit;    // end of the bytes read so far
+        private boolean eof;
+        int start;
+        int end;
+        boolean terminated;   // the current line ended with '\n'
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        boolean next() throws IOException {
+            int scan = pos;
+            while (true) {
+                for (int i = scan; i < limit; i++) {
+                    if (buf[i] == '\n') {
+                        start = pos;
+                        end = i;
+                        terminated = true;
+                        pos = i + 1;
+                        return true;
+                    }
+                }
+                if (eof) {
+                    if (pos == limit) return false;
+                    start = pos;
+                    end = limit;
+                    terminated = false;
+                    pos = limit;
+                    return true;
+                }
+                scan = limit - pos;
+                fill();
+                scan += pos;
+            }
+        }
+
+        // Move the unread bytes to the front, growing the buffer for a long line, and read more
+        private void fill() throws IOException {
+            int unread = limit - pos;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, unread);
+                pos = 0;
+                limit = unread;
+            } else if (limit == buf.length) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, bigger, 0, limit);
+                buf = bigger;
+            }
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) eof = true;
+            else limit += n;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, start, end - start);
+            if (terminated) out.write('\n');
+        }
+
+        byte[] copy() {
+            int len = end - start;
+            byte[] line = new byte[terminated ? len + 1 : len];
+            System.arraycopy(buf, start, line, 0, len);
+            if (terminated) line[len] = '\n';
+            return line;
+        }
+
+        // Everything after the current line
+        void writeRest(OutputStream out) throws IOException {
+            out.write(buf, pos, limit - pos);
+            pos = limit;
+            if (!eof) in.transferTo(out);
+        }
+    }
+
+    // grep's line test. A plain fixed string is searched for in the raw bytes; everything else
+    // goes through java.util.regex on the decoded line, with BRE and ERE syntax translated.
+    private static final class LineMatcher {
+        private final byte[] fixed;
+        private final Matcher regex;
+
+        LineMatcher(String pattern, char syntax, boolean ignoreCase, boolean wholeLine, boolean wholeWord) {
+            if (syntax == 'F' && !ignoreCase && !wholeLine && !wholeWord) {
+                fixed = pattern.getBytes(StandardCharsets.UTF_8);
+                regex = null;
+                return;
+            }
+            String java = syntax == 'F' ? Pattern.quote(pattern) : translate(pattern, syntax == 'E');
+            if (wholeWord) java = "(?<![\\p{Alnum}_])(?:" + java + ")(?![\\p{Alnum}_])";
+            if (wholeLine) java = "^(?:" + java + ")$";
+            fixed = null;
+            regex = Pattern.compile(java, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0).matcher("");
+        }
+
+        boolean matches(LineReader line) {
+            if (fixed != null) return indexOf(line.buf, line.start, line.end, fixed) >= 0;
+            return regex.reset(new String(line.buf, line.start, line.end - line.start, StandardCharsets.UTF_8)).find();
+        }
+
+        private static int indexOf(byte[] buf, int from, int to, byte[] needle) {
+            if (needle.length == 0) return from;
+            byte first = needle[0];
+            for (int i = from, last = to - needle.length; i <= last; i++) {
+                if (buf[i] != first) continue;
+                int k = 1;
+                while (k < needle.length && buf[i + k] == needle[k]) k++;
+                if (k == needle.length) return i;
+            }
+            return -1;
+        }
+
+        // POSIX basic (or extended) regular expression to java.util.regex. In a BRE ? + { } | ( )
+        // are literal and special when escaped, the other way round from Java. Bracket
+        // expressions take [:class:] names and treat backslash as an ordinary character.
+        private static String translate(String re, boolean extended) {
+            StringBuilder sb = new StringBuilder(re.length() + 8);
+            for (int i = 0; i < re.length(); i++) {
+                char c = re.charAt(i);
+                if (c == '\\' && i + 1 < re.length()) {
+                    char next = re.charAt(++i);
+                    if (next == '<' || next == '>') sb.append("\\b");
+                    else if (!extended && "?+{}|()".indexOf(next) >= 0) sb.append(next);
+                    else sb.append('\\').append(next);
+                } else if (c == '[') {
+                    i = bracket(re, i, sb);
+                } else if (!extended && "?+{}|()".indexOf(c) >= 0) {
+                    sb.append('\\').append(c);
+                } else if (c == '*' && (i == 0 || (i == 1 && re.charAt(0) == '^'))) {
+                    sb.append("\\*"); // a leading * is literal
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        // Copy the bracket expression starting at re[open] and return the index of its ']'
+        private static int bracket(String re, int open, StringBuilder sb) {
+            int i = open + 1;
+            sb.append('[');
+            if (i < re.length() && re.charAt(i) == '^') {
+                sb.append('^');
+                i++;
+            }
+            if (i < re.length() && re.charAt(i) == ']') {
+                sb.append("\\]"); // a leading ] is a member
+                i++;
+            }
+            for (; i < re.length(); i++) {
+                char c = re.charAt(i);
+                if (c == ']') {
+                    sb.append(']');
+                    return i;
+                }
+                if (c == '[' && i + 1 < re.length() && re.charAt(i + 1) == ':') {
+                    int close = re.indexOf(":]", i + 2);
+                    if (close > 0) {
+                        sb.append("\\p{").append(posixClass(re.substring(i + 2, close))).append('}');
+                        i = close + 1;
+                        continue;
+                    }
+                }
+                if (c == '\\' || c == '[' || c == '&') sb.append('\\');
+                sb.append(c);
+            }
+            throw new PatternSyntaxException("unmatched [", re, open);
+        }
+
+        private static String posixClass(String name) {
+            switch (name) {
+                case "alpha": return "Alpha";
+                case "digit": return "Digit";
+                case "alnum": return "Alnum";
+                case "upper": return "Upper";
+                case "lower": return "Lower";
+                case "space": return "Space";
+                case "blank": return "Blank";
+                case "punct": return "Punct";
+                case "print": return "Print";
+                case "graph": return "Graph";
+                case "cntrl": return "Cntrl";
+                case "xdigit": return "XDigit";
+                default: throw new PatternSyntaxException("invalid character class", name, 0);
+            }
+        }
+    }
+
+    // "-n 5", "-n5", "-5" and "-c 5" style count options: the count's text, or null if the
+    // option is not one of these. A separate argument is taken from argv[i + 1].
+    private static String countOption(Builtin.Context ctx, String arg, int i) {
+        if (arg.equals("-n") || arg.equals("-c")) return ctx.arg(i + 1);
+        if (arg.startsWith("-n") || arg.startsWith("-c")) return arg.substring(2);
+        if (Character.isDigit(arg.charAt(1))) return arg.substring(1);
+        return null;
+    }
+
+    private static long parseCount(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void copyBytes(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 1))];
+        while (count > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, count));
+            if (n < 0) break;
+            out.write(buf, 0, n);
+            count -= n;
+        }
+    }
+
+    // "==> name <==" before each file when there are several, with a blank line between
+    private static void header(Builtin.Context ctx, int index, String name) throws IOException {
+        if (index > 0) ctx.out.newline();
+        ctx.out.print("==> ").print(name.equals("-") ? "standard input" : name).print(" <==").newline();
+    }
+
+    private static boolean isOption(String arg) {
+        return arg.length() > 1 && arg.charAt(0) == '-';
+    }
+
+    // An input operand: "-" is stdin (empty when the command has none), anything else a file.
+    // Returns null after reporting a file that cannot be opened.
+    private static InputStream open(Builtin.Context ctx, String util, String name) throws IOException {
+        if (name.equals("-")) return ctx.in != null ? ctx.in : InputStream.nullInputStream();
+        try {
+            Path p = resolve(ctx, name);
+            if (Files.isDirectory(p)) throw new IOException("Is a directory");
+            return Files.newInputStream(p);
+        } catch (IOException e) {
+            error(ctx, util, name, e);
+            return null;
+        }
+    }
+
+    // Close an operand opened by open(); stdin belongs to the caller
+    private static void close(Builtin.Context ctx, InputStream in) throws IOException {
+        if (in != ctx.in) in.close();
+    }
+
+    private static Path resolve(Builtin.Context ctx, String name) {
+        return ctx.dir.toPath().resolve(name);
+    }
+
+    // "cat: name: No such file or directory" on stderr; returns the status 1
+    private static int error(Builtin.Context ctx, String util, String name, IOException e) throws IOException {
+        String reason = e instanceof NoSuchFileException ? "No such file or directory"
+                      : e instanceof AccessDeniedException ? "Permission denied"
+                      : e.getMessage();
+        ctx.err.print(util).print(": ").print(name).print(": ").print(reason).newline();
+        return 1;
+    }
+
+    private static int unsupported(Builtin.Context ctx, String util, String option) throws IOException {
+        ctx.err.print(util).print(": ").print(option).print(": option not supported in-process (enable -n ")
+            .print(util).print(" runs the real ").print(util).print(')').newline();
+        return 1;
+    }
+
+    private static int grepUsage(Builtin.Context ctx) throws IOException {
+        ctx.err.print("grep: usage: grep [-ivcnlqxwFEG] [-e] PATTERN [FILE]...").newline();
+        return 2;
+    }
+}
@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BuiltinOutputTest {
+    @TempDir
+    Path dir;
+
+    // Records how many writes reach it and whether it was closed
+    private static final class Sink extends ByteArrayOutputStream {
+        int writes;
+        boolean closed;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    void textIsEncodedAsUtf8() throws IOException {
+        String text = "a é € 😀 x";
+        Sink sink = new Sink();
+        new BuiltinOutput(sink).print(text).print('ß').print("\uD800").flush();
+        assertArrayEquals((text + "ß?").getBytes(StandardCharsets.UTF_8), sink.toByteArray());
+    }
+
+    @Test
+    void numbersMatchStringFormat() throws IOException {
+        Sink sink = new Sink();
+        BuiltinOutput out = new BuiltinOutput(sink);
+        out.print(0).print(' ').print(-123).print(' ').print(Long.MIN_VALUE).print(' ').print(Long.MAX_VALUE);
+        out.print(' ').pad(42, 5).print(' ').pad(-7, 5).print(' ').pad(123456, 5).flush();
+        assertEquals(String.format("0 -123 %d %d %5d %5d %5d", Long.MIN_VALUE, Long.MAX_VALUE, 42, -7, 123456),
+                     sink.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void smallPrintsReachTheSinkOnlyOnFlush() throws IOException {
+        Sink sink = new Sink();
+        BuiltinOutput out = new BuiltinOutput(sink, 64);
+        for (int i = 0; i < 10; i++) out.print("ab").print(i);
+        assertEquals(0, sink.writes);
+        out.flush();
+        assertEquals(1, sink.writes);
+        assertEquals("ab0ab1ab2ab3ab4ab5ab6ab7ab8ab9", sink.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void fullBufferIsDrainedInOrder() throws IOException {
+        Sink sink = new Sink();
+        BuiltinOutput out = new BuiltinOutput(sink, 16);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            out.print("line ").print(i).newline();
+            expected.append("line ").append(i).append(System.lineSeparator());
+        }
+        byte[] big = "x".repeat(40).getBytes(StandardCharsets.UTF_8);
+        out.write(big, 0, big.length); // larger than the buffer: written straight through
+        expected.append("x".repeat(40));
+        out.flush();
+        assertEquals(expected.toString(), sink.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void closeFlushesButLeavesTheSinkOpen() throws IOException {
+        Sink sink = new Sink();
+        BuiltinOutput out = new BuiltinOutput(sink);
+        out.print("done");
+        out.close();
+        assertEquals("done", sink.toString(StandardCharsets.UTF_8));
+        assertFalse(sink.closed);
+    }
+
+    @Test
+    void sameOutputStandaloneRedirectedAndPiped() throws IOException {
+        TestSession shell = new TestSession(dir.toFile());
+        shell.session.enabled.add("cat");
+        String alone = shell.run("echo a  b é");
+        assertEquals("a b é\n", alone);
+        shell.run("echo a  b é >f");
+        assertEquals(alone, Files.readString(dir.resolve("f")));
+        assertEquals(alone, shell.run("echo a  b é | cat"));
+        // 2>&1: one buffer for both, so the order is kept
+        assertEquals(alone + "cat: missing: No such file or directory\n" + alone, shell.run("cat f missing f 2>&1"));
+    }
+}
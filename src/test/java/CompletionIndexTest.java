@@ -0,0 +1,80 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompletionIndexTest {
+    private static final String[] BUILTINS = {"echo", "exit", "type"};
+
+    @TempDir
+    Path dir;
+    private File cwd;
+    private CompletionIndex index;
+
+    @BeforeEach
+    void index() throws IOException {
+        for (String name : List.of("exa", "expand", "expr", "grep", "gzip")) executable(name);
+        cwd = dir.toFile();
+        index = CompletionIndex.forPath(dir.toString(), BUILTINS);
+    }
+
+    private void executable(String name) throws IOException {
+        Path file = dir.resolve(name);
+        Files.writeString(file, "#!/bin/sh\n");
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    // Move the directory's mtime on, in case the change fell in the millisecond it was last seen at
+    private void touch() throws IOException {
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(Files.getLastModifiedTime(dir).toMillis() + 1000));
+    }
+
+    @Test
+    void prefixNarrowsTheSortedRange() {
+        CompletionIndex.Matches e = index.complete("e", cwd);
+        assertEquals(List.of("echo", "exa", "exit", "expand", "expr"), e.list());
+        assertEquals("e", e.commonPrefix());
+        CompletionIndex.Matches ex = index.complete("ex", cwd);
+        assertEquals(List.of("exa", "exit", "expand", "expr"), ex.list());
+        CompletionIndex.Matches exp = index.complete("exp", cwd);
+        assertEquals(List.of("expand", "expr"), exp.list());
+        assertEquals("exp", exp.commonPrefix());
+        assertEquals(List.of("expr"), index.complete("expr", cwd).list());
+        assertEquals(0, index.complete("exz", cwd).size());
+        assertEquals(0, index.complete("", cwd).size());
+    }
+
+    @Test
+    void queriesThatDoNotExtendTheLastOneSearchEverything() {
+        assertEquals(List.of("expand", "expr"), index.complete("exp", cwd).list());
+        // shorter, then unrelated: the previous range must not be reused
+        assertEquals(List.of("exa", "exit", "expand", "expr"), index.complete("ex", cwd).list());
+        assertEquals(List.of("grep", "gzip"), index.complete("g", cwd).list());
+        assertEquals(List.of("type"), index.complete("t", cwd).list());
+        assertEquals(List.of("gzip"), index.complete("gz", cwd).list());
+    }
+
+    @Test
+    void rebuildsAfterPathChangesOncePerPrompt() throws IOException {
+        assertEquals(List.of("grep", "gzip"), index.complete("g", cwd).list());
+        executable("gcc");
+        touch();
+        // same prompt: PATH is not checked again
+        assertEquals(List.of("grep", "gzip"), index.complete("g", cwd).list());
+        index.revalidate();
+        assertEquals(List.of("gcc", "grep", "gzip"), index.complete("g", cwd).list());
+        assertEquals(List.of("gcc"), index.complete("gc", cwd).list());
+        Files.delete(dir.resolve("gcc"));
+        touch();
+        index.revalidate();
+        assertEquals(List.of("grep", "gzip"), index.complete("g", cwd).list());
+    }
+}
@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FrecencyTest {
+    @TempDir
+    Path dir;
+
+    private Frecency store(Path file) {
+        Frecency f = new Frecency();
+        f.open(file, null);
+        return f;
+    }
+
+    @Test
+    void ranksByUseAndKeepsUnusedInOrder() {
+        Frecency f = store(null);
+        File here = dir.toFile();
+        f.record("git status", here);
+        f.record("grep x file", here);
+        f.record("git log", here);
+        assertEquals(List.of("git", "grep", "gcc", "gzip"), f.rank(List.of("gcc", "git", "grep", "gzip"), here));
+    }
+
+    @Test
+    void directoryUsesCountTwice() {
+        Frecency f = store(null);
+        File a = dir.resolve("a").toFile();
+        File b = dir.resolve("b").toFile();
+        f.record("make", a);
+        f.record("mvn test", b);
+        f.record("mvn test", b);
+        assertEquals(List.of("make", "mvn"), f.rank(List.of("mvn", "make"), a));
+        assertEquals(List.of("mvn", "make"), f.rank(List.of("mvn", "make"), b));
+    }
+
+    @Test
+    void sessionsMergeOnSaveWithoutALockFile() throws IOException {
+        Path file = dir.resolve("frecency");
+        File here = dir.toFile();
+        Frecency one = store(file);
+        Frecency two = store(file);
+        one.record("ls", here);
+        two.record("cat x", here);
+        two.record("cat y", here);
+        one.save();
+        two.save();
+        assertEquals(List.of("cat", "ls", "cd"), store(file).rank(List.of("cd", "ls", "cat"), here));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(List.of(file), files.toList());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryTest {
+    @TempDir
+    Path dir;
+
+    private History shell(Path file, int size, int fileSize) {
+        History h = new History();
+        h.open(file);
+        h.limits(size, fileSize);
+        h.appendOnAdd(true);
+        return h;
+    }
+
+    private static List<String> lines(String prefix, int from, int to) {
+        return IntStream.rangeClosed(from, to).mapToObj(i -> prefix + i).toList();
+    }
+
+    private static List<String> entries(History h) {
+        return IntStream.range(0, h.size()).mapToObj(h::get).toList();
+    }
+
+    @Test
+    void exitCutsFileToNewestLines() throws IOException {
+        Path file = dir.resolve("hist");
+        Files.write(file, lines("old ", 1, 50));
+        History h = shell(file, 500, 20);
+        assertEquals(50, h.size());
+        for (String line : lines("new ", 1, 10)) h.add(line);
+        h.close();
+        List<String> expected = new ArrayList<>(lines("old ", 41, 50));
+        expected.addAll(lines("new ", 1, 10));
+        assertEquals(expected, Files.readAllLines(file));
+    }
+
+    @Test
+    void openIndexesOnlyNewestHistsizeLines() throws IOException {
+        Path file = dir.resolve("hist");
+        Files.write(file, lines("cmd ", 1, 1000));
+        History h = shell(file, 100, -1);
+        assertEquals(100, h.size());
+        assertEquals("cmd 901", h.get(0));
+        assertEquals("cmd 1000", h.get(99));
+    }
+
+    @Test
+    void ringEvictsOldestAndKeepsNumbering() {
+        History h = new History();
+        h.limits(3, -1);
+        for (String line : lines("c", 1, 5)) h.add(line);
+        assertEquals(List.of("c3", "c4", "c5"), entries(h));
+        assertEquals(3, h.firstNumber());
+    }
+
+    @Test
+    void ignoreboth() {
+        History h = new History();
+        h.control("ignoreboth");
+        h.add("ls");
+        h.add("ls");
+        h.add(" secret");
+        h.add("pwd");
+        h.add("ls");
+        assertEquals(List.of("ls", "pwd", "ls"), entries(h));
+    }
+
+    @Test
+    void erasedupsKeepsNewestOccurrence() throws IOException {
+        Path file = dir.resolve("hist");
+        Files.write(file, List.of("a", "b", "a", "c"));
+        History h = shell(file, 500, -1);
+        h.control("erasedups");
+        h.add("b");
+        assertEquals(List.of("a", "c", "b"), entries(h));
+    }
+
+    @Test
+    void appendAfterEvictionWritesOnlyNewEntries() throws IOException {
+        Path file = dir.resolve("out");
+        History h = new History();
+        h.limits(2, -1);
+        h.add("one");
+        h.appendNew(file);
+        for (String line : lines("n", 1, 5)) h.add(line);
+        h.appendNew(file);
+        assertEquals(List.of("one", "n4", "n5"), Files.readAllLines(file));
+    }
+
+    @Test
+    void compactionKeepsOtherShellsEntries() throws IOException {
+        Path file = dir.resolve("hist");
+        History a = shell(file, 500, 150);
+        History b = shell(file, 500, 150);
+        // Enough appends for background compactions to run while both shells write
+        for (int i = 1; i <= 200; i++) {
+            a.add("a " + i);
+            b.add("b " + i);
+        }
+        a.close();
+        b.close();
+        List<String> expected = new ArrayList<>();
+        for (int i = 126; i <= 200; i++) {
+            expected.add("a " + i);
+            expected.add("b " + i);
+        }
+        assertEquals(expected, Files.readAllLines(file));
+    }
+
+    @Test
+    void readNewSeesOtherShellAcrossCompaction() throws IOException {
+        Path file = dir.resolve("hist");
+        History a = shell(file, 500, 10);
+        History b = shell(file, 500, 10);
+        for (String line : lines("a ", 1, 30)) a.add(line);
+        a.close(); // trims the file to its newest 10 lines
+        assertTrue(Files.exists(dir.resolve("hist.lock")), "b still needs the trimmed count");
+        b.readNew();
+        assertEquals(lines("a ", 21, 30), entries(b));
+        b.add("b 1");
+        b.close();
+        List<String> expected = new ArrayList<>(lines("a ", 22, 30));
+        expected.add("b 1");
+        assertEquals(expected, Files.readAllLines(file));
+        assertFalse(Files.exists(dir.resolve("hist.lock")), "the last shell out deletes the sidecar");
+    }
+
+    @Test
+    void sidecarComesBackForTheNextShell() throws IOException {
+        Path file = dir.resolve("hist");
+        History a = shell(file, 500, 5);
+        for (String line : lines("a ", 1, 10)) a.add(line);
+        a.close();
+        History b = shell(file, 500, 5);
+        assertEquals(lines("a ", 6, 10), entries(b));
+        b.add("b 1");
+        b.close();
+        assertEquals(List.of("a 7", "a 8", "a 9", "a 10", "b 1"), Files.readAllLines(file));
+        assertFalse(Files.exists(dir.resolve("hist.lock")));
+    }
+
+    @Test
+    void rewritesKeepTheFilesPermissions() throws IOException {
+        Path file = dir.resolve("hist");
+        Files.write(file, lines("old ", 1, 50));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r-----"));
+        History h = shell(file, 500, 20);
+        h.add("new");
+        h.close(); // compaction
+        assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-rw-r--"));
+        h.write(file);
+        assertEquals("rw-rw-r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+    }
+
+    @Test
+    void addsBeforeTheFileIsIndexedEvictTheSameEntries() throws IOException {
+        Path file = dir.resolve("hist");
+        Files.write(file, lines("cmd ", 1, 1000));
+        History h = shell(file, 100, -1);
+        for (String line : lines("new ", 1, 5)) h.add(line);
+        assertEquals(100, h.size());
+        assertEquals("cmd 906", h.get(0));
+        assertEquals("new 5", h.get(99));
+        assertEquals(6, h.firstNumber());
+
+        History small = shell(file, 3, -1);
+        for (String line : lines("new ", 1, 5)) small.add(line);
+        assertEquals(lines("new ", 3, 5), entries(small));
+        assertEquals(6, small.firstNumber());
+    }
+
+    @Test
+    void ignoredupsComparesTheFirstEntryWithTheFile() throws IOException {
+        Path file = dir.resolve("hist");
+        Files.write(file, List.of("make", "  ls  ", "", ""));
+        History h = shell(file, 500, -1);
+        h.control("ignoredups");
+        h.add("ls");
+        h.add("pwd");
+        h.add("ls");
+        assertEquals(List.of("make", "ls", "pwd", "ls"), entries(h));
+    }
+
+    @Test
+    void searchCoversTheFileAndLaterEntries() throws IOException {
+        Path file = dir.resolve("hist");
+        Files.write(file, lines("make target", 1, 300));
+        History h = shell(file, 200, -1);
+        h.prepareSearch(); // built off this thread, then caught up
+        h.add("git status");
+        assertEquals(199, h.searchBackward("git st", h.size()));
+        assertEquals("make target300", h.get(h.searchBackward("target", h.size())));
+        assertEquals("make target150", h.get(h.searchBackward("target150", h.size())));
+        assertEquals(-1, h.searchBackward("target101", h.size())); // evicted by the add
+        // entries added after the index exists are in it
+        h.add("git log");
+        h.add("ls");
+        assertEquals("git log", h.get(h.searchBackward("git", h.size())));
+        assertEquals("git status", h.get(h.searchBackward("git", h.size() - 2)));
+    }
+
+    @Test
+    void searchAfterErasedupsRenumbers() {
+        History h = new History();
+        h.control("erasedups");
+        h.add("echo one");
+        h.add("echo two");
+        assertEquals(1, h.searchBackward("echo", 2));
+        h.prepareSearch();
+        h.add("echo one"); // moves to the end, the index is rebuilt
+        h.prepareSearch();
+        assertEquals(List.of("echo two", "echo one"), entries(h));
+        assertEquals(1, h.searchBackward("one", 2));
+        assertEquals(0, h.searchBackward("two", 2));
+    }
+}
@@ -0,0 +1,92 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JobsTest {
+    private static final Duration LIMIT = Duration.ofSeconds(30);
+
+    @TempDir
+    Path dir;
+    private TestSession shell;
+
+    @BeforeEach
+    void session() {
+        shell = new TestSession(dir.toFile());
+    }
+
+    @AfterEach
+    void killJobs() {
+        for (Jobs.Job job : shell.session.jobs.all()) {
+            for (Process p : job.processes) p.destroyForcibly();
+        }
+    }
+
+    @Test
+    void backgroundJobsDoNotBlockTheShell() throws IOException {
+        assertTimeoutPreemptively(LIMIT, () -> assertEquals("next\n", shell.run("sleep 60 & echo next")));
+        assertEquals(0, shell.session.lastStatus);
+        assertEquals("[1]+  Running                 sleep 60 &\n", shell.run("jobs"));
+    }
+
+    @Test
+    void finishedJobsAreReportedOnce() throws IOException {
+        shell.run("sh -c 'exit 3' &");
+        shell.run("true &");
+        assertTimeoutPreemptively(LIMIT, () -> shell.run("wait"));
+        assertEquals("[1]-  Exit 3                  sh -c 'exit 3'\n[2]+  Done                    true\n",
+                     shell.session.jobs.takeFinished());
+        assertEquals("", shell.session.jobs.takeFinished());
+        assertEquals("", shell.run("jobs"));
+    }
+
+    @Test
+    void waitReturnsTheStatusOfTheJob() throws IOException {
+        shell.run("sh -c 'exit 3' &");
+        assertTimeoutPreemptively(LIMIT, () -> assertEquals("3\n", shell.run("wait %1; echo $?")));
+        assertEquals("wait: %9: no such job\n127\n", shell.run("wait %9; echo $?"));
+        assertEquals("wait: pid 1 is not a child of this shell\n", shell.run("wait 1"));
+    }
+
+    @Test
+    void backgroundListsRunInOrder() throws IOException {
+        shell.run("false || echo ran >f && echo more >>f &");
+        assertTimeoutPreemptively(LIMIT, () -> shell.run("wait"));
+        assertEquals("ran\nmore\n", Files.readString(dir.resolve("f")));
+    }
+
+    @Test
+    void fgWaitsAndForgetsTheJob() throws IOException {
+        shell.run("sh -c 'sleep 0.2; exit 4' &");
+        assertTimeoutPreemptively(LIMIT,
+            () -> assertEquals("sh -c 'sleep 0.2; exit 4'\n4\n", shell.run("fg; echo $?")));
+        assertEquals("", shell.session.jobs.takeFinished());
+        assertEquals("fg: current: no such job\n", shell.run("fg"));
+    }
+
+    @Test
+    void bgContinuesAStoppedJob() throws IOException, InterruptedException {
+        shell.run("sleep 60 &");
+        Jobs.Job job = shell.session.jobs.find("%1");
+        assertEquals("bg: job 1 already in background\n", shell.run("bg"));
+        new ProcessBuilder("kill", "-STOP", Long.toString(job.pid())).start().waitFor();
+        assertTimeoutPreemptively(LIMIT, () -> {
+            while (!Jobs.stopped(job)) Thread.sleep(10);
+        });
+        assertEquals("[1]+  Stopped                 sleep 60\n", shell.run("jobs"));
+        assertEquals("[1]+ sleep 60 &\n", shell.run("bg %1"));
+        assertTimeoutPreemptively(LIMIT, () -> {
+            while (Jobs.stopped(job)) Thread.sleep(10);
+        });
+        assertTrue(job.processes.get(0).isAlive());
+        assertEquals("[1]+  Running                 sleep 60 &\n", shell.run("jobs"));
+    }
+}
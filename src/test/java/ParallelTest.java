@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParallelTest {
+    @TempDir
+    Path dir;
+    private TestSession shell;
+
+    @BeforeEach
+    void session() {
+        shell = new TestSession(dir.toFile());
+    }
+
+    @Test
+    void keepOrderWritesInInputOrder() throws IOException {
+        // The first item finishes last
+        assertEquals("0.3\n0.2\n0.1\n0\n", shell.run("parallel -j 4 -k sh -c 'sleep $0; echo $0' ::: 0.3 0.2 0.1 0"));
+    }
+
+    @Test
+    void jobOutputIsNeverInterleaved() throws IOException {
+        String out = shell.run("parallel -j 4 sh -c 'for i in 1 2 3; do echo $0; sleep 0.05; done' ::: a b c d");
+        List<String> lines = Arrays.asList(out.split("\n"));
+        assertEquals(12, lines.size());
+        for (int i = 0; i < 12; i += 3) {
+            assertEquals(lines.get(i), lines.get(i + 1));
+            assertEquals(lines.get(i), lines.get(i + 2));
+        }
+    }
+
+    @Test
+    void statusCountsFailedJobs() throws IOException {
+        assertEquals("2\n", shell.run("parallel sh -c 'exit $0' ::: 0 1 2; echo $?"));
+        assertTrue(shell.err().matches("parallel: 3 jobs, 2 failed, \\d+\\.\\d\\d s, \\d+\\.\\d jobs/s\n"), shell.err());
+        assertEquals("1\n", shell.run("parallel -k no-such-command-x ::: a; echo $?"));
+        assertTrue(shell.err().startsWith("no-such-command-x: command not found\n"), shell.err());
+    }
+
+    @Test
+    void itemsComeFromStdinWithoutSeparator() throws IOException {
+        TestSession fed = new TestSession(dir.toFile(), "a\n\nb\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("item a\nitem b\n", fed.run("parallel -k echo item"));
+    }
+
+    @Test
+    void bracesAreReplacedByTheItem() throws IOException {
+        assertEquals("x1y\nx2y\n", shell.run("parallel -k echo x{}y ::: 1 2"));
+    }
+
+    @Test
+    void oneWorkerRunsJobsOneAtATime() throws IOException {
+        long start = System.nanoTime();
+        shell.run("parallel -j 1 sleep ::: 0.2 0.2 0.2");
+        assertTrue(System.nanoTime() - start >= 600_000_000L);
+    }
+
+    @Test
+    void hugeWorkerCountIsCapped() throws IOException {
+        TestSession fed = new TestSession(dir.toFile(), "a\nb\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("a\nb\n", fed.run("parallel -j 1000000 -k echo"));
+    }
+
+    @Test
+    void badWorkerCountIsAUsageError() throws IOException {
+        assertEquals("1\n", shell.run("parallel -j 0 echo ::: a; echo $?"));
+        assertEquals("parallel: usage: parallel [-j jobs] [-k] command [args...] [::: items...]\n", shell.err());
+        shell.run("parallel -j x echo ::: a");
+        assertTrue(shell.err().startsWith("parallel: usage:"));
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ParserTest {
+    @Test
+    void quotesAndEscapesAreResolvedWhileLexing() {
+        List<Lexer.Token> tokens = Lexer.lex("echo 'a | b' \"c  d\" e\\ f");
+        assertEquals(4, tokens.size());
+        for (Lexer.Token t : tokens) assertEquals(Lexer.Kind.WORD, t.kind);
+        assertEquals("a | b", tokens.get(1).text);
+        assertEquals("c  d", tokens.get(2).text);
+        assertEquals("e f", tokens.get(3).text);
+    }
+
+    @Test
+    void operatorsAreTyped() {
+        List<Lexer.Token> tokens = Lexer.lex("a|b&&c||d;e&");
+        assertEquals(List.of(Lexer.Kind.WORD, Lexer.Kind.PIPE, Lexer.Kind.WORD, Lexer.Kind.AND_IF, Lexer.Kind.WORD,
+                             Lexer.Kind.OR_IF, Lexer.Kind.WORD, Lexer.Kind.SEMI, Lexer.Kind.WORD, Lexer.Kind.AMP),
+                     tokens.stream().map(t -> t.kind).toList());
+    }
+
+    @Test
+    void onlyDescriptorsZeroToTwoPrefixARedirection() {
+        List<Lexer.Token> two = Lexer.lex("cmd 2>err");
+        assertEquals(Lexer.Kind.REDIRECT, two.get(1).kind);
+        assertEquals(2, two.get(1).fd);
+        List<Lexer.Token> three = Lexer.lex("cmd 3>err");
+        assertEquals("3", three.get(1).text);
+        assertEquals(-1, three.get(2).fd);
+    }
+
+    @Test
+    void statusIsLeftAsPlaceholder() {
+        assertEquals("x" + Lexer.STATUS, Lexer.lex("echo x$?").get(1).text);
+        assertEquals("$?", Lexer.lex("echo '$?'").get(1).text);
+    }
+
+    @Test
+    void listsPipelinesAndBackgroundItems() {
+        Ast.Script script = Parser.parse("a | b && c || d; e &");
+        assertEquals(2, script.items.size());
+        Ast.Item first = script.items.get(0);
+        assertEquals(3, first.pipelines.size());
+        assertEquals(List.of(Lexer.Kind.AND_IF, Lexer.Kind.OR_IF), first.operators);
+        assertEquals(2, first.pipelines.get(0).commands.size());
+        assertEquals("a | b && c || d", first.text);
+        assertFalse(first.background);
+        assertTrue(script.items.get(1).background);
+    }
+
+    @Test
+    void redirectionsKeepSourceOrder() {
+        Ast.Command cmd = Parser.parse("ls 2>&1 >out <in").items.get(0).pipelines.get(0).commands.get(0);
+        assertEquals(List.of("ls"), cmd.argv);
+        assertEquals(3, cmd.redirects.size());
+        assertRedirect(cmd.redirects.get(0), 2, Ast.Redirect.Op.DUP, "1");
+        assertRedirect(cmd.redirects.get(1), 1, Ast.Redirect.Op.WRITE, "out");
+        assertRedirect(cmd.redirects.get(2), 0, Ast.Redirect.Op.READ, "in");
+    }
+
+    @Test
+    void bothStreamsToOneFile() {
+        Ast.Command cmd = Parser.parse("make &>>log").items.get(0).pipelines.get(0).commands.get(0);
+        assertRedirect(cmd.redirects.get(0), 1, Ast.Redirect.Op.APPEND, "log");
+        assertRedirect(cmd.redirects.get(1), 2, Ast.Redirect.Op.DUP, "1");
+    }
+
+    @Test
+    void syntaxErrorsNameTheToken() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> Parser.parse("a | | b"));
+        assertEquals("syntax error near unexpected token `|'", e.getMessage());
+        e = assertThrows(IllegalArgumentException.class, () -> Parser.parse("echo >"));
+        assertEquals("syntax error near unexpected token `newline'", e.getMessage());
+    }
+
+    private static void assertRedirect(Ast.Redirect r, int fd, Ast.Redirect.Op op, String target) {
+        assertEquals(fd, r.fd);
+        assertEquals(op, r.op);
+        assertEquals(target, r.target);
+    }
+}
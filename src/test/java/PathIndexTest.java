@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PathIndexTest {
+    @TempDir
+    Path dir;
+
+    private Path executable(String path) throws IOException {
+        Path file = dir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "#!/bin/sh\n");
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return file;
+    }
+
+    @Test
+    void firstPathDirectoryWins() throws IOException {
+        executable("a/tool");
+        Path second = executable("b/tool");
+        executable("b/other");
+        PathIndex index = new PathIndex(dir.resolve("a") + ":" + dir.resolve("b"), null);
+        assertEquals(dir.resolve("a/tool").toString(), index.lookup("tool", dir.toFile()));
+        assertEquals(dir.resolve("b/other").toString(), index.lookup("other", dir.toFile()));
+        Files.delete(dir.resolve("a/tool"));
+        assertEquals(second.toString(), index.lookup("tool", dir.toFile()));
+        assertNull(index.lookup("missing", dir.toFile()));
+    }
+
+    @Test
+    void relativeEntriesFollowTheWorkingDirectory() throws IOException {
+        executable("one/bin/tool");
+        executable("two/bin/tool");
+        executable("two/here");
+        PathIndex index = new PathIndex("bin::/nonexistent", null);
+        File one = dir.resolve("one").toFile();
+        File two = dir.resolve("two").toFile();
+        assertEquals(dir.resolve("one/bin/tool").toString(), index.lookup("tool", one));
+        // the hashed location is not reused from another directory
+        assertEquals(dir.resolve("two/bin/tool").toString(), index.lookup("tool", two));
+        assertEquals(dir.resolve("two/here").toString(), index.lookup("here", two));
+        assertNull(index.lookup("here", one));
+        assertEquals(List.of("tool", "here"), index.allExecutables(two));
+    }
+
+    @Test
+    void slashNamesAreNotSearchedInPath() throws IOException {
+        executable("bin/sub/tool");
+        executable("sub/tool");
+        PathIndex index = new PathIndex(dir.resolve("bin").toString(), null);
+        File cwd = dir.toFile();
+        assertEquals("sub/tool", index.lookup("sub/tool", cwd));
+        assertEquals("./sub/tool", index.lookup("./sub/tool", cwd));
+        assertNull(index.lookup("sub/tool", dir.resolve("bin/sub").toFile()));
+        assertNull(index.lookup("sub/missing", cwd));
+    }
+
+    @Test
+    void sharedIndexesAreBounded() {
+        PathIndex first = PathIndex.forPath("/lru/0");
+        assertSame(first, PathIndex.forPath("/lru/0"));
+        for (int i = 1; i <= 100; i++) PathIndex.forPath("/lru/" + i);
+        assertNotSame(first, PathIndex.forPath("/lru/0"));
+    }
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Several megabytes through pipelines that mix builtin and external stages. Every stage has to
+// be read while it writes, or the pipes fill up and the pipeline never finishes.
+class PipelineStressTest {
+    private static final Duration LIMIT = Duration.ofSeconds(60);
+
+    @TempDir
+    Path dir;
+    private TestSession shell;
+
+    @BeforeEach
+    void session() {
+        shell = new TestSession(dir.toFile());
+    }
+
+    @Test
+    void historyThroughExternalStages() {
+        long expected = 0;
+        for (int i = 1; i <= 100_000; i++) {
+            String entry = "entry " + i + " " + "x".repeat(40);
+            shell.session.history.add(entry);
+            expected += String.format("%5d  %s\n", i, entry).length();
+        }
+        // history adds the command line itself before it runs
+        String line = "history | cat | wc -c";
+        expected += String.format("%5d  %s\n", 100_001, line).length();
+        long bytes = expected;
+        assertTimeoutPreemptively(LIMIT, () -> assertEquals(bytes + "\n", shell.run(line)));
+    }
+
+    @Test
+    void fileThroughBuiltinAndExternalStages() throws IOException {
+        Path big = dir.resolve("big");
+        long matching = writeLines(big, 200_000);
+        shell.session.enabled.add("cat");
+        assertTimeoutPreemptively(LIMIT, () -> {
+            // builtin -> external -> builtin -> external
+            assertEquals(matching + "\n", shell.run("cat big | grep -F x | cat | wc -c"));
+            // and the other way round
+            assertEquals(matching + "\n", shell.run("grep -F x big | cat | cat | wc -c"));
+        });
+    }
+
+    @Test
+    void externalStagesCopiedByTheShell() {
+        assertTimeoutPreemptively(LIMIT,
+            () -> assertEquals("8000000\n", shell.run("head -c 8000000 /dev/zero | cat | wc -c")));
+    }
+
+    @Test
+    void consumerExitingEarlyStopsProducers() {
+        assertTimeoutPreemptively(LIMIT, () -> {
+            assertEquals("y\n", shell.run("yes | head -1"));
+            assertEquals("y\n", shell.run("yes | cat | head -1"));
+            shell.session.enabled.add("head");
+            assertEquals("y\n", shell.run("yes | head -n 1"));
+        });
+    }
+
+    // Lines of 64 bytes; every third contains an x. Returns the bytes in those lines.
+    private static long writeLines(Path file, int count) throws IOException {
+        long matching = 0;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < count; i++) {
+                String text = i % 3 == 0 ? "x" : "-";
+                String line = String.format("%08d %s %s\n", i, text, "y".repeat(52));
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                if (i % 3 == 0) matching += line.length();
+            }
+        }
+        return matching;
+    }
+}
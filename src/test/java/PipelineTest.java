@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PipelineTest {
+    private static final Duration LIMIT = Duration.ofSeconds(30);
+
+    @TempDir
+    Path dir;
+    private TestSession shell;
+
+    @BeforeEach
+    void session() {
+        shell = new TestSession(dir.toFile());
+    }
+
+    @Test
+    void builtinAndExternalStagesAreConnected() throws IOException {
+        assertEquals("HELLO\n", shell.run("echo hello | tr a-z A-Z"));
+        shell.session.enabled.add("cat");
+        assertEquals("b\n", shell.run("printf 'a\\nb\\n' | cat | tail -n 1"));
+    }
+
+    @Test
+    void builtinStagesRunTogether() {
+        shell.session.enabled.add("grep");
+        shell.session.enabled.add("head");
+        // yes never ends: this only finishes if head runs while grep and yes still write
+        assertTimeoutPreemptively(LIMIT, () -> assertEquals("y\ny\n", shell.run("yes | grep -F y | head -n 2")));
+    }
+
+    @Test
+    void statusIsTheLastStagesUnlessPipefail() throws IOException {
+        assertEquals("0\n", shell.run("false | true; echo $?"));
+        assertEquals("1\n", shell.run("true | false; echo $?"));
+        assertEquals("1\n", shell.run("set -o pipefail; false | true; echo $?"));
+    }
+
+    @Test
+    void missingCommandExitsWith127() throws IOException {
+        assertEquals("no-such-command-x: command not found\n127\n", shell.run("echo x | no-such-command-x; echo $?"));
+        assertEquals("no-such-command-x: command not found\n", shell.run("no-such-command-x | cat"));
+    }
+
+    @Test
+    void redirectionCutsThePipe() throws IOException {
+        assertEquals("", shell.run("echo a >f | cat"));
+        assertEquals("a\n", Files.readString(dir.resolve("f")));
+        assertEquals("a\n", shell.run("echo b | cat <f"));
+    }
+
+    @Test
+    void builtinStagesLeaveTheShellAlone() throws IOException {
+        shell.run("cd / | cat");
+        assertEquals(dir.toFile(), shell.session.dir);
+        shell.run("set -o pipefail | cat");
+        assertFalse(shell.session.pipefail);
+    }
+}
@@ -0,0 +1,78 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RedirectionTest {
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void input() throws IOException {
+        Files.writeString(dir.resolve("f.txt"), "hi\n");
+    }
+
+    private FdTable apply(String line) throws IOException {
+        Ast.Command cmd = Parser.parse(line).items.get(0).pipelines.get(0).commands.get(0);
+        return new FdTable(FdTable.STDIN, FdTable.STDOUT, FdTable.STDERR).apply(cmd.redirects, dir.toFile());
+    }
+
+    @Test
+    void appliedLeftToRight() throws IOException {
+        FdTable fds = apply("cmd 2>&1 >out");
+        assertSame(FdTable.STDOUT, fds.get(2));
+        assertEquals(FdTable.Kind.FILE, fds.get(1).kind);
+        fds = apply("cmd >out 2>&1");
+        assertSame(fds.get(1), fds.get(2));
+    }
+
+    @Test
+    void outputOnInputDescriptorIsRejected() {
+        IOException e = assertThrows(IOException.class, () -> apply("cat 0>g.txt"));
+        assertEquals("0: Bad file descriptor", e.getMessage());
+        assertFalse(Files.exists(dir.resolve("g.txt")));
+    }
+
+    @Test
+    void inputOnOutputDescriptorsIsRejected() {
+        assertEquals("1: Bad file descriptor", assertThrows(IOException.class, () -> apply("ls 1<f.txt")).getMessage());
+        assertEquals("2: Bad file descriptor", assertThrows(IOException.class, () -> apply("ls 2<f.txt")).getMessage());
+        assertEquals("1: Bad file descriptor", assertThrows(IOException.class, () -> apply("cat <f.txt >&0")).getMessage());
+        assertEquals("1: Bad file descriptor", assertThrows(IOException.class, () -> apply("cat 1<<<x")).getMessage());
+    }
+
+    @Test
+    void laterRedirectionCanFixTheDirection() throws IOException {
+        FdTable fds = apply("echo x 1<f.txt 1>out");
+        assertTrue(fds.get(1).write);
+    }
+
+    @Test
+    void wrongDirectionFailsTheCommandNotTheShell() throws IOException {
+        TestSession shell = new TestSession(dir.toFile());
+        String out = shell.run("echo x 1<f.txt\necho $?\ncat 0>g.txt\necho $?\nls 1<f.txt | cat\necho $?\necho still here\n");
+        assertEquals(List.of("1", "1", "1", "still here"), out.lines().toList());
+        assertEquals(List.of("1: Bad file descriptor", "0: Bad file descriptor", "1: Bad file descriptor"),
+                     shell.err().lines().toList());
+        assertFalse(Files.exists(dir.resolve("g.txt")));
+    }
+
+    @Test
+    void fileToFileThroughBuiltinAndExternal() throws IOException {
+        TestSession shell = new TestSession(dir.toFile());
+        shell.session.enabled.add("cat");
+        shell.run("cat <f.txt >copy1\n/bin/cat <f.txt >copy2 2>&1\necho more >>copy1\n");
+        assertEquals("hi\nmore\n", Files.readString(dir.resolve("copy1")));
+        assertEquals("hi\n", Files.readString(dir.resolve("copy2")));
+        assertEquals("abc\n", shell.run("cat <<<abc"));
+    }
+}
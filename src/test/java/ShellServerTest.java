@@ -0,0 +1,114 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Requests sent straight to a server running on a thread of the test JVM
+class ShellServerTest {
+    private static Path socket;
+
+    @BeforeAll
+    static void serve() throws Exception {
+        Path dir = Files.createTempDirectory("shell-server");
+        dir.toFile().deleteOnExit();
+        socket = dir.resolve("s.sock");
+        Thread server = new Thread(() -> {
+            try {
+                ShellServer.serve(socket);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "test-server");
+        server.setDaemon(true);
+        server.start();
+        while (!Files.exists(socket)) Thread.sleep(10);
+    }
+
+    // {status, stdout, stderr} of one exchange; request writes everything after the cwd
+    private static String[] exchange(RequestBody request) {
+        return assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+            try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                channel.connect(UnixDomainSocketAddress.of(socket));
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+                request.write(out);
+                out.flush();
+                DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+                ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+                ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+                for (;;) {
+                    int stream = in.readByte();
+                    if (stream == ShellServer.EXIT) {
+                        return new String[]{Integer.toString(in.readInt()), stdout.toString(StandardCharsets.UTF_8),
+                                            stderr.toString(StandardCharsets.UTF_8)};
+                    }
+                    byte[] frame = new byte[in.readInt()];
+                    in.readFully(frame);
+                    (stream == ShellServer.STDOUT ? stdout : stderr).write(frame);
+                }
+            }
+        });
+    }
+
+    private interface RequestBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    @Test
+    void runsAScript() {
+        String[] result = exchange(out -> {
+            ShellServer.writeString(out, "/");
+            out.writeInt(1);
+            ShellServer.writeString(out, "PATH=" + System.getenv("PATH"));
+            ShellServer.writeString(out, "pwd\necho hi | cat\nexit 3\n");
+        });
+        assertEquals("3", result[0]);
+        assertEquals("/\nhi\n", result[1]);
+    }
+
+    @Test
+    void negativeLengthIsRefused() {
+        String[] result = exchange(out -> out.writeInt(-1));
+        assertEquals("2", result[0]);
+        assertEquals("shell: invalid string length -1\n", result[2]);
+    }
+
+    @Test
+    void oversizedStringIsRefusedBeforeItIsSent() {
+        String[] result = exchange(out -> out.writeInt(Integer.MAX_VALUE));
+        assertEquals("2", result[0]);
+        assertEquals("shell: request larger than " + ShellServer.MAX_REQUEST + " bytes\n", result[2]);
+    }
+
+    @Test
+    void requestsAreLimitedInTotal() {
+        String[] result = exchange(out -> {
+            ShellServer.writeString(out, "/");
+            out.writeInt(Integer.MAX_VALUE / 2);
+        });
+        assertEquals("2", result[0]);
+        assertEquals("shell: request larger than " + ShellServer.MAX_REQUEST + " bytes\n", result[2]);
+        result = exchange(out -> {
+            ShellServer.writeString(out, "/");
+            out.writeInt(2);
+            byte[] big = new byte[ShellServer.MAX_REQUEST / 2];
+            out.writeInt(big.length);
+            out.write(big);
+            out.writeInt(big.length);
+        });
+        assertEquals("2", result[0]);
+        assertEquals("shell: request larger than " + ShellServer.MAX_REQUEST + " bytes\n", result[2]);
+    }
+}
@@ -0,0 +1,36 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShellStatsTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void pipeBytesCountEveryCopyTheShellMakes() throws IOException {
+        TestSession shell = new TestSession(dir.toFile());
+        // head -> cat and cat -> wc are copied by the shell, then wc's "100000\n" is pumped out
+        assertEquals("100000\n", shell.run("head -c 100000 /dev/zero | cat | wc -c"));
+        assertEquals(200_007, shell.session.stats.pipeBytes.sum());
+
+        shell.session.stats.reset();
+        shell.session.enabled.add("head");
+        // the builtin's output pipe, then the pumped count
+        assertEquals("5000\n", shell.run("head -c 5000 /dev/zero | wc -c"));
+        assertEquals(5_005, shell.session.stats.pipeBytes.sum());
+    }
+
+    @Test
+    void histogramPercentilesStayWithinABucket() {
+        ShellStats.Histogram h = new ShellStats.Histogram();
+        for (long v = 1; v <= 1000; v++) h.record(v * 1000);
+        long p50 = h.percentile(0.50);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 * 9 / 8, "p50 " + p50);
+        assertEquals(1_000_000, h.percentile(1.0));
+        assertEquals(1000, h.count());
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+// A session on in-memory streams and the test process's environment. run() feeds it lines the
+// way a script does, so external commands get pipes that are pumped into out and err.
+final class TestSession {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    final Session session;
+
+    TestSession(File dir) {
+        this(dir, new byte[0]);
+    }
+
+    TestSession(File dir, byte[] stdin) {
+        session = new Session(new ByteArrayInputStream(stdin),
+                              new PrintStream(out, true, StandardCharsets.UTF_8),
+                              new PrintStream(err, true, StandardCharsets.UTF_8),
+                              false, System.getenv(), dir);
+    }
+
+    // Run script and return what it wrote to stdout; its stderr is left in err()
+    String run(String script) throws IOException {
+        out.reset();
+        err.reset();
+        Main.runScript(session, new BufferedReader(new StringReader(script)));
+        session.out.flush();
+        session.err.flush();
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    String err() {
+        return err.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,80 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TimingTest {
+    private static final Pattern BASH = Pattern.compile(
+        "\nreal\t(\\d+)m(\\d+\\.\\d{3})s\nuser\t(\\d+)m(\\d+\\.\\d{3})s\nsys\t(\\d+)m(\\d+\\.\\d{3})s\n");
+    private static final Pattern POSIX = Pattern.compile("real (\\d+\\.\\d\\d)\nuser (\\d+\\.\\d\\d)\nsys (\\d+\\.\\d\\d)\n");
+    private static final String MILLIS = "\\d+\\.\\d{3}ms";
+
+    @TempDir
+    Path dir;
+    private TestSession shell;
+
+    @BeforeEach
+    void session() {
+        shell = new TestSession(dir.toFile());
+    }
+
+    @Test
+    void reportsInBashFormatOnStderr() throws IOException {
+        assertEquals("hi\n", shell.run("time echo hi"));
+        assertTrue(BASH.matcher(shell.err()).matches(), shell.err());
+        shell.run("time sleep 0.2");
+        Matcher m = BASH.matcher(shell.err());
+        assertTrue(m.matches(), shell.err());
+        assertTrue(Double.parseDouble(m.group(2)) >= 0.2, shell.err());
+    }
+
+    @Test
+    void posixFormat() throws IOException {
+        shell.run("time -p sleep 0.1");
+        Matcher m = POSIX.matcher(shell.err());
+        assertTrue(m.matches(), shell.err());
+        assertTrue(Double.parseDouble(m.group(1)) >= 0.1, shell.err());
+    }
+
+    @Test
+    void childCpuTimeIsCounted() throws IOException {
+        shell.run("time -p sh -c 'i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done'");
+        Matcher m = POSIX.matcher(shell.err());
+        assertTrue(m.matches(), shell.err());
+        assertTrue(Double.parseDouble(m.group(2)) + Double.parseDouble(m.group(3)) > 0, shell.err());
+    }
+
+    @Test
+    void verboseBreaksOutEveryStage() throws IOException {
+        assertEquals("1\n", shell.run("time -pv echo a b | wc -l"));
+        String[] lines = shell.err().split("\n");
+        assertEquals(7, lines.length, shell.err());
+        assertTrue(lines[3].matches("lex/parse " + MILLIS), lines[3]);
+        assertTrue(lines[4].matches("stage 1  lookup " + MILLIS + "  spawn " + MILLIS + "  wait " + MILLIS + "  echo a b"),
+                   lines[4]);
+        assertTrue(lines[5].matches("stage 2  lookup " + MILLIS + "  spawn " + MILLIS + "  wait " + MILLIS + "  wc -l"),
+                   lines[5]);
+        assertTrue(lines[6].matches("shell " + MILLIS), lines[6]);
+    }
+
+    @Test
+    void keepsTheStatusAndRedirections() throws IOException {
+        assertEquals("1\n", shell.run("time false; echo $?"));
+        assertEquals("3\n", shell.run("time -p -- sh -c 'exit 3'; echo $?"));
+        assertEquals("", shell.run("time echo hi >f"));
+        assertEquals("hi\n", Files.readString(dir.resolve("f")));
+        assertTrue(BASH.matcher(shell.err()).matches(), shell.err());
+    }
+
+    @Test
+    void isAKeyword() throws IOException {
+        assertEquals("time is a shell keyword\n", shell.run("type time"));
+    }
+}
@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TrigramIndexTest {
+    // Entries numbered from 1, indexed as History does
+    private final List<String> entries = new ArrayList<>();
+    private final TrigramIndex index = new TrigramIndex();
+
+    private void add(String... texts) {
+        for (String text : texts) {
+            entries.add(text);
+            index.add(entries.size(), text, 1);
+        }
+    }
+
+    private int search(String query, int before, int first) {
+        return index.search(query, before, first, n -> entries.get(n - 1));
+    }
+
+    @Test
+    void findsNewestEntryContainingQuery() {
+        add("git status", "ls -la", "git commit -m x", "make test");
+        assertEquals(3, search("git", 5, 1));
+        assertEquals(1, search("git", 3, 1));
+        assertEquals(-1, search("git", 1, 1));
+        assertEquals(2, search("ls -", 5, 1));
+    }
+
+    @Test
+    void unknownTrigramFindsNothing() {
+        add("echo hello");
+        assertEquals(-1, search("xyz", 2, 1));
+    }
+
+    @Test
+    void allTrigramsPresentIsNotEnough() {
+        // abcd's trigrams abc and bcd are both here, but not next to each other
+        add("abc bcd", "abcd");
+        assertEquals(2, search("abcd", 3, 1));
+        assertEquals(-1, search("abcd", 2, 1));
+    }
+
+    @Test
+    void entriesThatLeftHistoryAreSkipped() {
+        add("cat a", "cat b", "cat c");
+        assertEquals(-1, search("cat", 4, 4));
+        assertEquals(3, search("cat", 4, 3));
+        assertEquals(-1, search("cat", 3, 3));
+    }
+
+    @Test
+    void postingListsSurviveGrowthAndPruning() {
+        for (int i = 1; i <= 5000; i++) {
+            entries.add("cmd " + i);
+            // only the newest 100 are still in history
+            index.add(i, "cmd " + i, Math.max(1, i - 99));
+        }
+        assertEquals(5000, search("cmd", 5001, 4901));
+        assertEquals(4999, search("4999", 5001, 4901));
+        assertEquals(-1, search("cmd 12", 5001, 4901));
+        assertEquals(-1, search("cmd", 4901, 4901));
+    }
+}
@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The in-process utilities against the programs in PATH: each command line has to print the
+// same with `enable name` as with `enable -n name`.
+class UtilitiesTest {
+    private static final List<String> NAMES = List.of("cat", "head", "tail", "wc", "grep", "tee");
+
+    @TempDir
+    Path dir;
+    private TestSession shell;
+
+    @BeforeEach
+    void session() throws IOException {
+        shell = new TestSession(dir.toFile());
+        Files.writeString(dir.resolve("data"), "alpha one\nBeta two\n\ngamma  three four\nalphabet\nlast");
+        Files.writeString(dir.resolve("small"), "x\ny\n");
+    }
+
+    // Output of line with the utilities in-process, after checking the real programs print the same
+    private String both(String line) throws IOException {
+        shell.run("enable -n " + String.join(" ", NAMES));
+        String external = shell.run(line);
+        int externalStatus = shell.session.lastStatus;
+        shell.run("enable " + String.join(" ", NAMES));
+        String builtin = shell.run(line);
+        assertEquals(external, builtin, line);
+        assertEquals(externalStatus, shell.session.lastStatus, line);
+        return builtin;
+    }
+
+    @Test
+    void cat() throws IOException {
+        assertEquals("x\ny\nx\ny\n", both("cat small small"));
+        assertEquals("x\ny\n", both("cat small | cat"));
+        both("cat small - small <data");
+        shell.run("cat small >copy");
+        assertEquals("x\ny\n", Files.readString(dir.resolve("copy")));
+    }
+
+    @Test
+    void head() throws IOException {
+        assertEquals("alpha one\nBeta two\n", both("head -n 2 data"));
+        both("head -3 data");
+        both("head -c 7 data");
+        both("head data small");
+        both("cat data | head -n 1");
+    }
+
+    @Test
+    void tail() throws IOException {
+        assertEquals("alphabet\nlast", both("tail -n 2 data"));
+        both("tail -1 data");
+        both("tail -n +3 data");
+        both("tail data small");
+        both("cat data | tail -n 3");
+    }
+
+    @Test
+    void wc() throws IOException {
+        both("wc data");
+        both("wc -l data small");
+        both("wc -w <data");
+        both("cat data | wc -c");
+        both("cat data | wc");
+    }
+
+    @Test
+    void grep() throws IOException {
+        assertEquals("alpha one\nalphabet\n", both("grep alpha data"));
+        both("grep -i beta data");
+        both("grep -v a data");
+        both("grep -c a data");
+        both("grep -n -w alpha data");
+        both("grep -x last data");
+        both("grep -F . data");
+        both("grep '^[ab]' data");
+        both("grep -E 'one|two' data");
+        both("grep 'a\\{2\\}' data");
+        both("grep -l a data small");
+        both("grep a data small");
+        both("cat data | grep -e gamma");
+        assertEquals("1\n", both("grep zzz data; echo $?"));
+    }
+
+    @Test
+    void tee() throws IOException {
+        assertEquals("x\ny\n", both("cat small | tee out"));
+        assertEquals("x\ny\n", Files.readString(dir.resolve("out")));
+        both("cat small | tee -a out"); // once by each tee
+        assertEquals("x\ny\n".repeat(3), Files.readString(dir.resolve("out")));
+    }
+
+    @Test
+    void missingFileIsReported() throws IOException {
+        shell.session.enabled.add("cat");
+        assertEquals("x\ny\n1\n", shell.run("cat missing small; echo $?"));
+        assertEquals("cat: missing: No such file or directory\n", shell.err());
+    }
+
+    @Test
+    void unsupportedOptionsNameTheRealProgram() throws IOException {
+        shell.session.enabled.add("cat");
+        assertEquals("1\n", shell.run("cat -A small; echo $?"));
+        assertEquals("cat: -A: option not supported in-process (enable -n cat runs the real cat)\n", shell.err());
+        shell.run("enable -n cat");
+        assertEquals("x$\ny$\n", shell.run("cat -A small"));
+    }
+
+    @Test
+    void enableSelectsPerCommand() throws IOException {
+        assertTrue(shell.run("type cat").startsWith("cat is /"));
+        shell.run("enable cat grep");
+        assertEquals("cat is a shell builtin\n", shell.run("type cat"));
+        assertEquals("enable cat\nenable grep\n", shell.run("enable"));
+        shell.run("enable -n cat");
+        assertTrue(shell.run("type cat").startsWith("cat is /"));
+        assertEquals("grep is a shell builtin\n", shell.run("type grep"));
+        assertEquals("enable -n cat\nenable grep\nenable -n head\nenable -n tail\nenable -n tee\nenable -n wc\n",
+                     shell.run("enable -a"));
+        assertEquals("enable: echo: cannot be disabled\nenable: nope: not a shell builtin\n",
+                     shell.run("enable -n echo nope"));
+    }
+
+    @Test
+    void bytesPassThroughUnchanged() throws IOException {
+        byte[] bytes = {'a', (byte) 0xff, 'b', '\n', 0, (byte) 0xc3, '\n'};
+        Files.write(dir.resolve("bin"), bytes);
+        shell.run("enable " + String.join(" ", NAMES));
+        shell.run("cat bin | head -n 5 | tail -n 5 | tee copy >/dev/null");
+        assertEquals(new String(bytes, StandardCharsets.ISO_8859_1),
+                     new String(Files.readAllBytes(dir.resolve("copy")), StandardCharsets.ISO_8859_1));
+    }
+}